@@ -0,0 +1,155 @@
+package cn.emay.store.file.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileChannel 存储：按位置读写(pread/pwrite)，不建立内存映射<br/>
+ * 数据只经过页缓存，不计入进程的映射内存，适合常驻内存受限的环境；slice 返回只读拷贝；
+ *
+ * @author Frank
+ */
+public class ChannelStorageBackend implements StorageBackend {
+
+    /**
+     * 预读时每次读取的数据长度
+     */
+    private static final int PREFETCH_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * NIO文件
+     */
+    private RandomAccessFile raFile;
+    /**
+     * NIO通道
+     */
+    private FileChannel fc;
+
+    /**
+     * @param file     文件
+     * @param fileSize 文件大小
+     * @throws IOException io异常
+     */
+    public ChannelStorageBackend(File file, long fileSize) throws IOException {
+        raFile = new RandomAccessFile(file, "rw");
+        fc = raFile.getChannel();
+        if (raFile.length() < fileSize) {
+            raFile.setLength(fileSize);
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) {
+        try {
+            long offset = position;
+            while (src.hasRemaining()) {
+                offset += fc.write(src, offset);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void read(long position, int length, ByteBuffer dst) {
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + length);
+        try {
+            long offset = position;
+            while (part.hasRemaining()) {
+                int n = fc.read(part, offset);
+                if (n < 0) {
+                    throw new IOException("unexpected end of file at " + offset);
+                }
+                offset += n;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        dst.position(dst.position() + length);
+    }
+
+    @Override
+    public int readInt(long position) {
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        read(position, 4, bytes);
+        return bytes.getInt(0);
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        read(position, length, copy);
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void sync(DirtyPageTracker dirtyPages, boolean force) {
+        if (dirtyPages.clear() || force) {
+            try {
+                fc.force(false);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    @Override
+    public void preTouch() {
+        // 不建立映射，没有缺页开销
+    }
+
+    /**
+     * 分块顺序读取，把数据读入页缓存
+     */
+    @Override
+    public void prefetch(long position, long length) {
+        ByteBuffer buffer = ByteBuffer.allocate(PREFETCH_BLOCK_SIZE);
+        long offset = position;
+        long end = position + length;
+        try {
+            while (offset < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(PREFETCH_BLOCK_SIZE, end - offset));
+                int n = fc.read(buffer, offset);
+                if (n <= 0) {
+                    return;
+                }
+                offset += n;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void resize(long size) throws IOException {
+        fc.force(false);
+        raFile.setLength(size);
+    }
+
+    @Override
+    public void close() {
+        if (fc != null) {
+            try {
+                fc.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            fc = null;
+        }
+        if (raFile != null) {
+            try {
+                raFile.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            raFile = null;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package cn.emay.store.file.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 脏页记录：按页(4K)记录文件中被修改过的区域，刷盘时只刷新这些区域<br/>
+ * 每页一个bit，1G文件占用32K内存；标记与取出均为无锁操作
+ *
+ * @author Frank
+ */
+public class DirtyPageTracker {
+
+    /**
+     * 页大小位移【4K】
+     */
+    private static final int PAGE_SHIFT = 12;
+
+    /**
+     * 页大小
+     */
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    /**
+     * 页标记
+     */
+    private final AtomicLongArray words;
+
+    /**
+     * 文件大小
+     */
+    private final long capacity;
+
+    /**
+     * @param capacity 文件大小
+     */
+    public DirtyPageTracker(long capacity) {
+        this.capacity = capacity;
+        long pages = (capacity + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+        this.words = new AtomicLongArray((int) ((pages + 63) >>> 6));
+    }
+
+    /**
+     * 标记区域为脏页【在数据写入之后调用，保证刷盘时清除标记的写入已经完成】
+     *
+     * @param position 起始位置
+     * @param length   长度
+     */
+    public void mark(long position, long length) {
+        if (length <= 0) {
+            return;
+        }
+        long firstPage = position >>> PAGE_SHIFT;
+        long lastPage = (position + length - 1) >>> PAGE_SHIFT;
+        for (long page = firstPage; page <= lastPage; ) {
+            int word = (int) (page >>> 6);
+            int fromBit = (int) (page & 63);
+            int toBit = (int) Math.min(63, lastPage - ((long) word << 6));
+            long mask = (-1L >>> (63 - toBit + fromBit)) << fromBit;
+            while (true) {
+                long current = words.get(word);
+                if ((current & mask) == mask || words.compareAndSet(word, current, current | mask)) {
+                    break;
+                }
+            }
+            page = ((long) word + 1) << 6;
+        }
+    }
+
+    /**
+     * 取出并清除所有脏页，连续的脏页合并为一个区域回调
+     *
+     * @param handler 区域处理
+     */
+    public void drain(RangeHandler handler) {
+        long runStart = -1;
+        long runEnd = -1;
+        for (int i = 0; i < words.length(); i++) {
+            if (words.get(i) == 0) {
+                continue;
+            }
+            long word = words.getAndSet(i, 0);
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                long page = ((long) i << 6) + bit;
+                if (page == runEnd) {
+                    runEnd++;
+                    continue;
+                }
+                if (runStart >= 0) {
+                    emit(handler, runStart, runEnd);
+                }
+                runStart = page;
+                runEnd = page + 1;
+            }
+        }
+        if (runStart >= 0) {
+            emit(handler, runStart, runEnd);
+        }
+    }
+
+    /**
+     * 清除所有脏页
+     *
+     * @return 清除前是否有脏页
+     */
+    public boolean clear() {
+        boolean dirty = false;
+        for (int i = 0; i < words.length(); i++) {
+            if (words.get(i) != 0 && words.getAndSet(i, 0) != 0) {
+                dirty = true;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * 回调区域
+     *
+     * @param handler   区域处理
+     * @param startPage 起始页
+     * @param endPage   结束页【不包含】
+     */
+    private void emit(RangeHandler handler, long startPage, long endPage) {
+        long position = startPage << PAGE_SHIFT;
+        long end = Math.min(capacity, endPage << PAGE_SHIFT);
+        handler.handle(position, end - position);
+    }
+
+    /**
+     * 区域处理
+     */
+    public interface RangeHandler {
+
+        /**
+         * 处理区域
+         *
+         * @param position 起始位置
+         * @param length   长度
+         */
+        void handle(long position, long length);
+
+    }
+
+}
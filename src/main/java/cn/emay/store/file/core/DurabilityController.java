@@ -0,0 +1,168 @@
+package cn.emay.store.file.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 持久化控制器：按持久化策略执行刷盘<br/>
+ * 写入方在存储锁内调用{@link #append(int)}取得写入序号(累计写入的记录数)，释放存储锁后调用{@link #commit(long)}；<br/>
+ * 刷盘动作同一时刻只有一个线程执行，执行期间到达的写入等待下一次刷盘(组提交)；
+ *
+ * @author Frank
+ */
+public class DurabilityController {
+
+    /**
+     * 策略
+     */
+    private final DurabilityPolicy policy;
+    /**
+     * 刷盘动作
+     */
+    private final Runnable syncAction;
+    /**
+     * 已写入序号【累计写入的记录数】
+     */
+    private final AtomicLong appended = new AtomicLong();
+    /**
+     * 刷盘锁
+     */
+    private final Object syncLock = new Object();
+    /**
+     * 已落盘序号【在刷盘锁内修改，提交时不加锁读取】
+     */
+    private volatile long synced;
+    /**
+     * 是否正在刷盘
+     */
+    private boolean syncing;
+    /**
+     * 定时刷盘线程
+     */
+    private ScheduledExecutorService executorService;
+
+    /**
+     * @param policy     策略
+     * @param syncAction 刷盘动作
+     */
+    public DurabilityController(DurabilityPolicy policy, Runnable syncAction) {
+        this.policy = policy == null ? DurabilityPolicy.none() : policy;
+        this.syncAction = syncAction;
+        if (this.policy.getMode() == DurabilityPolicy.Mode.EVERY_MILLIS) {
+            long millis = this.policy.getValue();
+            executorService = Executors.newScheduledThreadPool(1);
+            executorService.scheduleWithFixedDelay(this::syncAppended, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 记录一条数据的写入【在存储锁内、数据写入完成后调用】
+     *
+     * @return 写入序号
+     */
+    public long append() {
+        return append(1);
+    }
+
+    /**
+     * 记录一次写入【在存储锁内、数据写入完成后调用，批量写入按记录数累计】
+     *
+     * @param records 写入的记录数
+     * @return 写入序号
+     */
+    public long append(int records) {
+        return appended.addAndGet(records);
+    }
+
+    /**
+     * 按策略提交写入【在存储锁外调用】
+     *
+     * @param ticket 写入序号，小于等于0表示没有写入
+     */
+    public void commit(long ticket) {
+        if (ticket <= 0) {
+            return;
+        }
+        switch (policy.getMode()) {
+            case EVERY_RECORDS:
+                // 累计记录数越过N的整数倍且该位置尚未落盘时刷盘，批量写入一次越过多个整数倍也只刷盘一次
+                if (ticket / policy.getValue() * policy.getValue() > synced) {
+                    awaitSynced(ticket);
+                }
+                break;
+            case GROUP_COMMIT:
+                awaitSynced(ticket);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 将目前所有写入刷盘
+     */
+    public void syncAppended() {
+        awaitSynced(appended.get());
+    }
+
+    /**
+     * 等待写入序号落盘，没有线程刷盘时由当前线程刷盘
+     *
+     * @param ticket 写入序号
+     */
+    private void awaitSynced(long ticket) {
+        while (true) {
+            long target;
+            synchronized (syncLock) {
+                while (syncing && synced < ticket) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalArgumentException(e);
+                    }
+                }
+                if (synced >= ticket) {
+                    return;
+                }
+                syncing = true;
+                target = appended.get();
+            }
+            boolean success = false;
+            try {
+                syncAction.run();
+                success = true;
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (success && target > synced) {
+                        synced = target;
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭：停止定时刷盘，并刷盘尚未落盘的写入
+     */
+    public void close() {
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        if (policy.getMode() != DurabilityPolicy.Mode.NONE) {
+            syncAppended();
+        }
+    }
+
+    /**
+     * 策略
+     */
+    public DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+}
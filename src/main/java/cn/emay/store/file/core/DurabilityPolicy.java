@@ -0,0 +1,128 @@
+package cn.emay.store.file.core;
+
+/**
+ * 持久化策略<br/>
+ * NONE：写入后不主动刷盘，仅依赖定时同步；<br/>
+ * EVERY_RECORDS：每写入N条数据刷盘一次，由写入第N条的线程执行；<br/>
+ * EVERY_MILLIS：每隔T毫秒刷盘一次(有新数据时)，由后台线程执行；<br/>
+ * GROUP_COMMIT：写入线程等待数据落盘后返回，并发写入线程共享同一次刷盘；<br/>
+ *
+ * @author Frank
+ */
+public class DurabilityPolicy {
+
+    /**
+     * 持久化模式
+     */
+    public enum Mode {
+        /**
+         * 不主动刷盘
+         */
+        NONE,
+        /**
+         * 每N条数据刷盘
+         */
+        EVERY_RECORDS,
+        /**
+         * 每T毫秒刷盘
+         */
+        EVERY_MILLIS,
+        /**
+         * 组提交
+         */
+        GROUP_COMMIT
+    }
+
+    /**
+     * 不主动刷盘
+     */
+    private static final DurabilityPolicy NONE = new DurabilityPolicy(Mode.NONE, 0);
+
+    /**
+     * 组提交
+     */
+    private static final DurabilityPolicy GROUP_COMMIT = new DurabilityPolicy(Mode.GROUP_COMMIT, 0);
+
+    /**
+     * 模式
+     */
+    private final Mode mode;
+
+    /**
+     * 参数：EVERY_RECORDS为条数，EVERY_MILLIS为毫秒数
+     */
+    private final long value;
+
+    /**
+     * @param mode  模式
+     * @param value 参数
+     */
+    private DurabilityPolicy(Mode mode, long value) {
+        this.mode = mode;
+        this.value = value;
+    }
+
+    /**
+     * 不主动刷盘
+     *
+     * @return 策略
+     */
+    public static DurabilityPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * 每N条数据刷盘一次
+     *
+     * @param records 条数
+     * @return 策略
+     */
+    public static DurabilityPolicy everyRecords(int records) {
+        if (records <= 0) {
+            throw new IllegalArgumentException("records must bigger than 0");
+        }
+        return new DurabilityPolicy(Mode.EVERY_RECORDS, records);
+    }
+
+    /**
+     * 每T毫秒刷盘一次
+     *
+     * @param millis 毫秒数
+     * @return 策略
+     */
+    public static DurabilityPolicy everyMillis(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("millis must bigger than 0");
+        }
+        return new DurabilityPolicy(Mode.EVERY_MILLIS, millis);
+    }
+
+    /**
+     * 组提交：写入线程等待落盘，并发写入共享同一次刷盘
+     *
+     * @return 策略
+     */
+    public static DurabilityPolicy groupCommit() {
+        return GROUP_COMMIT;
+    }
+
+    /**
+     * 模式
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * 参数：EVERY_RECORDS为条数，EVERY_MILLIS为毫秒数
+     */
+    public long getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.NONE || mode == Mode.GROUP_COMMIT ? mode.name() : mode.name() + "(" + value + ")";
+    }
+
+}
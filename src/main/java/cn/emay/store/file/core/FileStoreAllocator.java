@@ -0,0 +1,294 @@
+package cn.emay.store.file.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 数据文件预分配器<br/>
+ * 在后台线程提前完成下一个数据文件的创建、扩展、映射(可选预触页)；<br/>
+ * 切换数据文件时直接取走准备好的文件，不在写入线程、存储锁内做文件分配；<br/>
+ * 同一时刻只保留一个预分配文件，取走的不是预分配文件时同步创建；<br/>
+ * 回收池中有可用文件时，新文件由回收文件清零后改名得到，不再新建、扩展文件；<br/>
+ * 回收池有上限，超出上限的回收文件直接删除，避免写入低谷时占用过多磁盘；
+ *
+ * @author Frank
+ */
+public class FileStoreAllocator {
+
+    /**
+     * 默认回收池上限
+     */
+    public static final int DEFAULT_MAX_RECYCLED = 2;
+
+    /**
+     * 是否在切换后自动预分配下一个文件
+     */
+    private final boolean enabled;
+    /**
+     * 是否预触页
+     */
+    private final boolean preTouch;
+    /**
+     * 存储后端类型
+     */
+    private final StorageType type;
+    /**
+     * 映射预算
+     */
+    private final MappingBudget budget;
+    /**
+     * 回收池上限
+     */
+    private final int maxRecycled;
+    /**
+     * 分配线程
+     */
+    private ExecutorService executorService;
+    /**
+     * 预分配的文件
+     */
+    private File preparedFile;
+    /**
+     * 预分配结果
+     */
+    private Future<FileStoreItem> prepared;
+    /**
+     * 回收池
+     */
+    private final Deque<File> recycled = new ArrayDeque<>();
+    /**
+     * 是否关闭
+     */
+    private boolean isClosed;
+
+    /**
+     * @param enabled  是否在切换后自动预分配下一个文件
+     * @param preTouch 是否预触页
+     */
+    public FileStoreAllocator(boolean enabled, boolean preTouch) {
+        this(enabled, preTouch, StorageType.MMAP, null);
+    }
+
+    /**
+     * @param enabled  是否在切换后自动预分配下一个文件
+     * @param preTouch 是否预触页
+     * @param type     存储后端类型
+     * @param budget   映射预算，为null时不受预算管理
+     */
+    public FileStoreAllocator(boolean enabled, boolean preTouch, StorageType type, MappingBudget budget) {
+        this(enabled, preTouch, type, budget, DEFAULT_MAX_RECYCLED);
+    }
+
+    /**
+     * @param enabled     是否在切换后自动预分配下一个文件
+     * @param preTouch    是否预触页
+     * @param type        存储后端类型
+     * @param budget      映射预算，为null时不受预算管理
+     * @param maxRecycled 回收池上限，超出上限的回收文件直接删除
+     */
+    public FileStoreAllocator(boolean enabled, boolean preTouch, StorageType type, MappingBudget budget, int maxRecycled) {
+        if (maxRecycled < 0) {
+            throw new IllegalArgumentException("maxRecycled must not be less than 0");
+        }
+        this.enabled = enabled;
+        this.preTouch = preTouch;
+        this.type = type;
+        this.budget = budget;
+        this.maxRecycled = maxRecycled;
+    }
+
+    /**
+     * 是否在切换后自动预分配下一个文件
+     *
+     * @return 是否预分配
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 回收池中是否有可用文件
+     *
+     * @return 是否有可用文件
+     */
+    public synchronized boolean hasRecycled() {
+        return !recycled.isEmpty();
+    }
+
+    /**
+     * 回收文件：放入回收池，供后续新文件复用；回收池已满时删除文件【文件不能再被读写】
+     *
+     * @param file 文件
+     * @return 是否放入回收池或已删除，关闭后返回false
+     */
+    public boolean recycle(File file) {
+        synchronized (this) {
+            if (isClosed) {
+                return false;
+            }
+            if (recycled.size() < maxRecycled) {
+                recycled.offer(file);
+                return true;
+            }
+        }
+        return file.delete();
+    }
+
+    /**
+     * 在后台准备文件【已存在的文件直接打开，不改变内容；不存在时优先使用回收文件】<br/>
+     * 已有其他预分配文件时忽略
+     *
+     * @param file     文件
+     * @param fileSize 文件大小
+     */
+    public synchronized void prepare(File file, long fileSize) {
+        if (isClosed || prepared != null) {
+            return;
+        }
+        if (executorService == null) {
+            executorService = Executors.newSingleThreadExecutor();
+        }
+        File source = file.exists() ? null : recycled.poll();
+        preparedFile = file;
+        prepared = executorService.submit(() -> {
+            FileStoreItem item = source == null ? new FileStoreItem(file, fileSize, type, budget) : reuse(source, file, fileSize);
+            if (preTouch) {
+                item.preTouch();
+            }
+            return item;
+        });
+    }
+
+    /**
+     * 复用回收文件：先清零再改名，中途中断时回收文件保持原名，不会留下带旧数据的新文件
+     *
+     * @param source   回收文件
+     * @param file     目标文件
+     * @param fileSize 文件大小
+     * @return 文件
+     * @throws IOException IO异常
+     */
+    private FileStoreItem reuse(File source, File file, long fileSize) throws IOException {
+        if (!source.exists()) {
+            return new FileStoreItem(file, fileSize, type, budget);
+        }
+        FileStoreItem old = new FileStoreItem(source, fileSize, type);
+        try {
+            old.zero();
+        } finally {
+            old.close();
+        }
+        Files.move(source.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new FileStoreItem(file, fileSize, type, budget);
+    }
+
+    /**
+     * 取得文件：是预分配的文件时等待其准备完成，否则同步创建
+     *
+     * @param file     文件
+     * @param fileSize 文件大小
+     * @return 文件
+     * @throws IOException IO异常
+     */
+    public FileStoreItem take(File file, long fileSize) throws IOException {
+        Future<FileStoreItem> future = null;
+        synchronized (this) {
+            if (prepared != null && preparedFile.equals(file)) {
+                future = prepared;
+                prepared = null;
+                preparedFile = null;
+            }
+        }
+        if (future != null) {
+            try {
+                FileStoreItem item = future.get();
+                if (item.getFileSize() >= fileSize) {
+                    return item;
+                }
+                item.close();
+            } catch (ExecutionException e) {
+                // 后台分配失败，同步重试
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(e);
+            }
+        }
+        File source;
+        synchronized (this) {
+            source = file.exists() ? null : recycled.poll();
+        }
+        return source == null ? new FileStoreItem(file, fileSize, type, budget) : reuse(source, file, fileSize);
+    }
+
+    /**
+     * 关闭：停止分配线程，关闭未取走的文件(文件保留，下次打开时继续使用)；<br/>
+     * 回收池中的文件保留原名，下次打开时重新回收
+     */
+    public void close() {
+        FileStoreItem item = release();
+        if (item != null) {
+            item.close();
+        }
+    }
+
+    /**
+     * 删除：停止分配线程，删除未取走的文件与回收池中的文件【关闭后也可以调用】
+     */
+    public void delete() {
+        close();
+        List<File> files = new ArrayList<>();
+        synchronized (this) {
+            if (preparedFile != null) {
+                files.add(preparedFile);
+                preparedFile = null;
+            }
+            files.addAll(recycled);
+            recycled.clear();
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * 停止分配线程并取出未取走的文件
+     *
+     * @return 未取走的文件，没有返回null
+     */
+    private FileStoreItem release() {
+        Future<FileStoreItem> future;
+        synchronized (this) {
+            if (isClosed) {
+                return null;
+            }
+            isClosed = true;
+            future = prepared;
+            prepared = null;
+            if (executorService != null) {
+                executorService.shutdown();
+            }
+        }
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package cn.emay.store.file.core;
+
+/**
+ * 文件存储的公共配置
+ *
+ * @author Frank
+ */
+public class FileStoreConfig {
+
+    /**
+     * 刷盘时间间隔，秒，小于等于0则不主动落盘
+     */
+    private int cleanUpPeriodSecond;
+    /**
+     * 单数据文件大小，可以超过2G
+     */
+    private long oneDataFileSize;
+    /**
+     * 持久化策略
+     */
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.none();
+    /**
+     * 是否在后台预分配下一个数据文件
+     */
+    private boolean preAllocate;
+    /**
+     * 预分配时是否预触页
+     */
+    private boolean preTouch;
+    /**
+     * 存储后端类型
+     */
+    private StorageType storageType = StorageType.MMAP;
+    /**
+     * 数据文件的映射预算，可以多个存储共享，为null时不限制
+     */
+    private MappingBudget mappingBudget;
+
+    /**
+     * @param cleanUpPeriodSecond 刷盘时间间隔，秒，小于等于0则不主动落盘
+     * @param oneDataFileSize     单数据文件大小
+     */
+    protected FileStoreConfig(int cleanUpPeriodSecond, long oneDataFileSize) {
+        this.cleanUpPeriodSecond = cleanUpPeriodSecond;
+        this.oneDataFileSize = oneDataFileSize;
+    }
+
+    public int getCleanUpPeriodSecond() {
+        return cleanUpPeriodSecond;
+    }
+
+    public void setCleanUpPeriodSecond(int cleanUpPeriodSecond) {
+        this.cleanUpPeriodSecond = cleanUpPeriodSecond;
+    }
+
+    public long getOneDataFileSize() {
+        return oneDataFileSize;
+    }
+
+    public void setOneDataFileSize(long oneDataFileSize) {
+        this.oneDataFileSize = oneDataFileSize;
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        this.durabilityPolicy = durabilityPolicy == null ? DurabilityPolicy.none() : durabilityPolicy;
+    }
+
+    public boolean isPreAllocate() {
+        return preAllocate;
+    }
+
+    public void setPreAllocate(boolean preAllocate) {
+        this.preAllocate = preAllocate;
+    }
+
+    public boolean isPreTouch() {
+        return preTouch;
+    }
+
+    public void setPreTouch(boolean preTouch) {
+        this.preTouch = preTouch;
+    }
+
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    public void setStorageType(StorageType storageType) {
+        this.storageType = storageType == null ? StorageType.MMAP : storageType;
+    }
+
+    public MappingBudget getMappingBudget() {
+        return mappingBudget;
+    }
+
+    public void setMappingBudget(MappingBudget mappingBudget) {
+        this.mappingBudget = mappingBudget;
+    }
+
+}
@@ -2,50 +2,66 @@ package cn.emay.store.file.core;
 
 import cn.emay.store.file.exception.FileStoreClosedException;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
-import sun.misc.Cleaner;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * 存储文件
+ * 存储文件<br/>
+ * 实际读写由存储后端完成(内存映射【默认】、FileChannel、堆内/堆外内存)，见{@link StorageType}；<br/>
+ * 读写采用绝对位置访问，不再移动共享的position；<br/>
+ * 读、写操作持有共享读锁，互不阻塞；关闭、重新映射持有排他写锁，保证不会访问已释放的存储；<br/>
+ * 写入按页记录脏区域，刷盘时由后端决定只刷新脏区域还是整体刷盘；<br/>
+ * 游标为64位，单文件可以超过2G；<br/>
+ * 内存映射文件可以交给共享的映射预算管理，冷文件被解除映射，下次访问时重新映射；
  *
  * @author Frank
  */
-public class FileStoreItem {
+public class FileStoreItem implements MappingBudget.Mapping {
 
     /**
      * 文件
      */
     private final File file;
     /**
-     * NIO文件
+     * 存储后端类型
      */
-    private RandomAccessFile raFile;
+    private final StorageType type;
     /**
-     * NIO通道
+     * 存储后端
      */
-    private FileChannel fc;
-    /**
-     * 文件内存映射
-     */
-    private MappedByteBuffer mappedByteBuffer;
+    private StorageBackend backend;
     /**
      * 每个文件大小
      */
-    private int fileSize;
+    private long fileSize;
     /**
      * 是否关闭
      */
-    private boolean isClosed;
+    private volatile boolean isClosed;
 
     /**
-     * 是否需要刷盘
+     * 脏页记录
      */
-    private boolean isNeedSync = false;
+    private DirtyPageTracker dirtyPages;
+
+    /**
+     * 映射预算，不受预算管理时为null
+     */
+    private final MappingBudget budget;
+
+    /**
+     * 最近访问时间
+     */
+    private volatile long lastAccess;
+
+    /**
+     * 映射锁：读写数据持有读锁，关闭、重新映射持有写锁
+     */
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
 
     /**
      * 构造函数
@@ -54,67 +70,159 @@ public class FileStoreItem {
      * @param fileSize 文件大小
      * @throws IOException io异常
      */
-    public FileStoreItem(File file, int fileSize) throws IOException {
-        this(file, fileSize, FileChannel.MapMode.READ_WRITE);
+    public FileStoreItem(File file, long fileSize) throws IOException {
+        this(file, fileSize, StorageType.MMAP);
     }
 
     /**
-     * 构造函数
+     * 构造函数【内存映射】
      *
      * @param file     文件
      * @param fileSize 文件大小
+     * @param mode     映射模式
      * @throws IOException io异常
      */
-    public FileStoreItem(File file, int fileSize, FileChannel.MapMode mode) throws IOException {
+    public FileStoreItem(File file, long fileSize, FileChannel.MapMode mode) throws IOException {
         this.file = file;
+        this.type = StorageType.MMAP;
+        this.fileSize = prepareFile(file, fileSize);
+        this.backend = new MappedStorageBackend(file, this.fileSize, mode);
+        this.dirtyPages = new DirtyPageTracker(this.fileSize);
+        this.budget = null;
+        isClosed = false;
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param file     文件【内存后端不创建文件】
+     * @param fileSize 文件大小
+     * @param type     存储后端类型
+     * @throws IOException io异常
+     */
+    public FileStoreItem(File file, long fileSize, StorageType type) throws IOException {
+        this(file, fileSize, type, null);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param file     文件【内存后端不创建文件】
+     * @param fileSize 文件大小
+     * @param type     存储后端类型
+     * @param budget   映射预算，只对内存映射生效，为null时不受预算管理
+     * @throws IOException io异常
+     */
+    public FileStoreItem(File file, long fileSize, StorageType type, MappingBudget budget) throws IOException {
+        this.file = file;
+        this.type = type;
+        if (type.isPersistent()) {
+            this.fileSize = prepareFile(file, fileSize);
+        } else {
+            this.fileSize = fileSize;
+        }
+        this.backend = open(type, file, this.fileSize);
+        this.dirtyPages = new DirtyPageTracker(this.fileSize);
+        this.budget = type == StorageType.MMAP ? budget : null;
+        isClosed = false;
+        if (this.budget != null) {
+            lastAccess = System.nanoTime();
+            this.budget.mapped(this, this.fileSize);
+        }
+    }
+
+    /**
+     * 创建文件
+     *
+     * @param file     文件
+     * @param fileSize 文件大小
+     * @return 实际文件大小【已有文件比指定大小大时，取文件大小】
+     * @throws IOException io异常
+     */
+    private static long prepareFile(File file, long fileSize) throws IOException {
         if (!file.exists()) {
             if (!file.getParentFile().exists()) {
                 file.getParentFile().mkdirs();
             }
             file.createNewFile();
         }
-        if (fileSize < file.length()) {
-            this.fileSize = (int) file.length();
-        } else {
-            this.fileSize = fileSize;
-        }
-        raFile = new RandomAccessFile(file, "rwd");
-        fc = raFile.getChannel();
-        mappedByteBuffer = fc.map(mode, 0, this.fileSize);
-        isClosed = false;
+        return Math.max(fileSize, file.length());
     }
 
     /**
-     * 检测关闭
+     * 打开存储后端
+     *
+     * @param type     存储后端类型
+     * @param file     文件
+     * @param fileSize 文件大小
+     * @return 存储后端
+     * @throws IOException io异常
      */
-    private void assertFileClosed() {
-        if (isClosed) {
-            throw new FileStoreClosedException();
+    private static StorageBackend open(StorageType type, File file, long fileSize) throws IOException {
+        switch (type) {
+            case FILE_CHANNEL:
+                return new ChannelStorageBackend(file, fileSize);
+            case HEAP:
+                return new MemoryStorageBackend(fileSize, false);
+            case DIRECT:
+                return new MemoryStorageBackend(fileSize, true);
+            case MMAP:
+            default:
+                return new MappedStorageBackend(file, fileSize, FileChannel.MapMode.READ_WRITE);
         }
     }
 
     /**
-     * 关闭MappingBuffer
+     * 获取存储后端【调用方需持有读锁】<br/>
+     * 受映射预算管理时记录访问时间，已被解除映射时重新映射
+     *
+     * @return 存储后端
      */
-    private synchronized void closeBuffer() {
-        if (mappedByteBuffer == null) {
+    private StorageBackend backend() {
+        if (budget != null) {
+            lastAccess = System.nanoTime();
+            MappedStorageBackend mapped = (MappedStorageBackend) backend;
+            if (!mapped.isMapped()) {
+                try {
+                    if (mapped.map()) {
+                        budget.mapped(this, fileSize);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        }
+        return backend;
+    }
+
+    @Override
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    @Override
+    public void tryUnmap() {
+        if (!mappingLock.writeLock().tryLock()) {
             return;
         }
-        Cleaner cleaner = ((sun.nio.ch.DirectBuffer) mappedByteBuffer).cleaner();
-        if (cleaner != null) {
-            cleaner.clean();
+        try {
+            MappedStorageBackend mapped = (MappedStorageBackend) backend;
+            if (!isClosed && mapped.isMapped()) {
+                mapped.unmap();
+                budget.unmapped(fileSize);
+            }
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 检测关闭
+     */
+    private void assertFileClosed() {
+        if (isClosed) {
+            throw new FileStoreClosedException();
         }
-//        AccessController.doPrivileged((PrivilegedAction<Object>) () -> {
-//            try {
-//                Method getCleanerMethod = mappedByteBuffer.getClass().getMethod("cleaner", new Class[0]);
-//                getCleanerMethod.setAccessible(true);
-//                Cleaner cleaner = (Cleaner) getCleanerMethod.invoke(mappedByteBuffer, new Object[0]);
-//                cleaner.clean();
-//            } catch (Exception e) {
-//                throw new IllegalArgumentException(e);
-//            }
-//            return null;
-//        });
     }
 
     /**
@@ -124,82 +232,228 @@ public class FileStoreItem {
      * @param fileSize 文件大小
      * @throws IOException io异常
      */
-    public synchronized void refulshFileSize(int fileSize) throws IOException {
-        if (isClosed) {
-            return;
+    public void refulshFileSize(long fileSize) throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            sync(true);
+            if (budget != null && ((MappedStorageBackend) backend).isMapped()) {
+                budget.unmapped(this.fileSize);
+            }
+            backend.resize(fileSize);
+            this.fileSize = fileSize;
+            this.dirtyPages = new DirtyPageTracker(fileSize);
+            if (budget != null) {
+                budget.mapped(this, fileSize);
+            }
+        } finally {
+            mappingLock.writeLock().unlock();
         }
-        sync(true);
-        closeBuffer();
-        this.fileSize = fileSize;
-        mappedByteBuffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, this.fileSize);
     }
 
     /**
      * 关闭文件
      */
-    public synchronized void close() {
+    public void close() {
+        mappingLock.writeLock().lock();
+        try {
+            closeInLock();
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 关闭文件【调用方需持有写锁】
+     */
+    private void closeInLock() {
         if (isClosed) {
             return;
         }
-        closeBuffer();
-        if (fc != null) {
-            try {
-                fc.close();
-            } catch (IOException e) {
-                throw new IllegalArgumentException(e);
+        isClosed = true;
+        if (budget != null) {
+            budget.remove(this);
+            if (((MappedStorageBackend) backend).isMapped()) {
+                budget.unmapped(fileSize);
             }
-            fc = null;
         }
-        if (raFile != null) {
-            try {
-                raFile.close();
-            } catch (IOException e) {
-                throw new IllegalArgumentException(e);
+        backend.close();
+    }
+
+    /**
+     * 删除文件
+     */
+    public void delete() {
+        mappingLock.writeLock().lock();
+        try {
+            closeInLock();
+            if (type.isPersistent()) {
+                file.delete();
             }
-            raFile = null;
+        } finally {
+            mappingLock.writeLock().unlock();
         }
-        isClosed = true;
     }
 
     /**
-     * 删除文件
+     * 同步文件【调用方需持有读锁或写锁】<br/>
+     * 先清除标记再刷盘，刷盘期间的写入会重新标记，留给下一次同步
+     *
+     * @param force 是否强制
+     */
+    private void sync(boolean force) {
+        if (isClosed) {
+            return;
+        }
+        backend.sync(dirtyPages, force);
+    }
+
+    /**
+     * 同步文件【非强制】
      */
-    public synchronized void delete() {
-        if (!isClosed) {
-            close();
+    public void sync() {
+        mappingLock.readLock().lock();
+        try {
+            sync(false);
+        } finally {
+            mappingLock.readLock().unlock();
         }
-        file.delete();
     }
 
     /**
-     * 更新是否需要同步
+     * 预触页：逐页写回原值，提前触发缺页与磁盘块分配，避免写入时出现缺页抖动<br/>
+     * 不记录脏页，适合在文件投入使用前调用
+     */
+    public void preTouch() {
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            backend().preTouch();
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 预读：提前把指定范围的数据读入页缓存，避免读取时出现缺页等待<br/>
+     * 范围超出文件大小时截断，文件已关闭时忽略【预读线程与关闭文件并发】
      *
-     * @param isNeedSync 是否需要同步
+     * @param position 游标
+     * @param length   数据长度
      */
-    private synchronized void updateNeedSync(boolean isNeedSync) {
-        this.isNeedSync = isNeedSync;
+    public void prefetch(long position, long length) {
+        mappingLock.readLock().lock();
+        try {
+            if (isClosed || position < 0 || position >= fileSize) {
+                return;
+            }
+            backend().prefetch(position, Math.min(length, fileSize - position));
+        } finally {
+            mappingLock.readLock().unlock();
+        }
     }
 
     /**
-     * 同步文件
+     * 清零整个文件并强制刷盘【用于回收文件，调用方需保证没有其他读写】
+     */
+    public void zero() {
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            zero(0, fileSize);
+            sync(true);
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 清零指定区域【用于截断损坏的数据】
      *
-     * @param force 是否强制
+     * @param position 游标
+     * @param length   长度
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    private synchronized void sync(boolean force) {
-        if (isClosed) {
-            return;
+    public void zero(long position, long length) throws FileStoreOutSizeException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (force || isNeedSync) {
-            mappedByteBuffer.force();
-            updateNeedSync(false);
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            if (position + length > fileSize) {
+                throw new FileStoreOutSizeException();
+            }
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(DirtyPageTracker.PAGE_SIZE * 16, Math.max(length, 1)));
+            for (long offset = position; offset < position + length; offset += zeros.capacity()) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), position + length - offset));
+                backend().write(offset, zeros);
+            }
+            dirtyPages.mark(position, length);
+        } finally {
+            mappingLock.readLock().unlock();
         }
     }
 
     /**
-     * 同步文件【非强制】
+     * 指定区域是否全部为0【用于恢复扫描判断数据结束后是否残留内容】<br/>
+     * 先检查最后一块，再从头顺序检查，遇到非0内容立即返回；全部为0时仍需读完整个区域
+     *
+     * @param position 游标
+     * @param length   长度
+     * @return 是否全部为0
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    public synchronized void sync() {
-        sync(false);
+    public boolean isZero(long position, long length) throws FileStoreOutSizeException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be less than 0");
+        }
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            if (position + length > fileSize) {
+                throw new FileStoreOutSizeException();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(DirtyPageTracker.PAGE_SIZE * 16, Math.max(length, 1)));
+            long end = position + length;
+            long tail = Math.max(position, end - buffer.capacity());
+            if (!isZero(tail, end - tail, buffer)) {
+                return false;
+            }
+            for (long offset = position; offset < tail; offset += buffer.capacity()) {
+                if (!isZero(offset, Math.min(buffer.capacity(), tail - offset), buffer)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 指定的一块是否全部为0
+     *
+     * @param offset 游标
+     * @param length 长度【不超过缓冲区大小】
+     * @param buffer 缓冲区
+     * @return 是否全部为0
+     */
+    private boolean isZero(long offset, long length, ByteBuffer buffer) {
+        int n = (int) length;
+        buffer.clear();
+        backend().read(offset, n, buffer);
+        for (int i = 0; i < n; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -209,20 +463,50 @@ public class FileStoreItem {
      * @param bytes    数据
      * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    public synchronized void write(int position, byte[] bytes) throws FileStoreOutSizeException {
-        assertFileClosed();
+    public void write(long position, byte[] bytes) throws FileStoreOutSizeException {
         if (bytes == null || bytes.length == 0) {
             return;
         }
+        write(position, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 聚合写入数据：按顺序连续写入多个缓冲区的剩余数据，不改变缓冲区的position
+     *
+     * @param position 游标
+     * @param srcs     数据
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    public void write(long position, ByteBuffer... srcs) throws FileStoreOutSizeException {
+        if (srcs == null || srcs.length == 0) {
+            return;
+        }
         if (position < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (bytes.length + position > fileSize) {
-            throw new FileStoreOutSizeException();
+        long length = 0;
+        for (ByteBuffer src : srcs) {
+            length += src.remaining();
+        }
+        if (length == 0) {
+            return;
+        }
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            if (length + position > fileSize) {
+                throw new FileStoreOutSizeException();
+            }
+            long offset = position;
+            for (ByteBuffer src : srcs) {
+                int n = src.remaining();
+                backend().write(offset, src.duplicate());
+                offset += n;
+            }
+            dirtyPages.mark(position, length);
+        } finally {
+            mappingLock.readLock().unlock();
         }
-        mappedByteBuffer.position(position);
-        mappedByteBuffer.put(bytes);
-        updateNeedSync(true);
     }
 
     /**
@@ -233,18 +517,96 @@ public class FileStoreItem {
      * @return 数据
      * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    public synchronized byte[] read(int position, int length) throws FileStoreOutSizeException {
-        assertFileClosed();
+    public byte[] read(long position, int length) throws FileStoreOutSizeException {
+        byte[] bytes = new byte[length];
+        readInto(position, length, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * 读取一个int【大端，与ByteIntConverter一致】
+     *
+     * @param position 游标
+     * @return int
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    public int readInt(long position) throws FileStoreOutSizeException {
         if (position < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (position + length > fileSize) {
-            throw new FileStoreOutSizeException();
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            if (position + 4 > fileSize) {
+                throw new FileStoreOutSizeException();
+            }
+            return backend().readInt(position);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 读取数据到目标缓冲区，目标缓冲区的position前进length
+     *
+     * @param position 游标
+     * @param length   数据长度
+     * @param dst      目标缓冲区
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    public void readInto(long position, int length, ByteBuffer dst) throws FileStoreOutSizeException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be less than 0");
+        }
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("dst remaining must not be less than length");
+        }
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            if (position + length > fileSize) {
+                throw new FileStoreOutSizeException();
+            }
+            backend().read(position, length, dst);
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 获取数据的只读视图<br/>
+     * 内存映射、内存后端直接引用存储，不拷贝数据，文件关闭或删除后不可再使用；<br/>
+     * FileChannel后端、受映射预算管理的文件、跨映射窗口的数据返回只读拷贝
+     *
+     * @param position 游标
+     * @param length   数据长度
+     * @return 只读视图
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    public ByteBuffer slice(long position, int length) throws FileStoreOutSizeException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be less than 0");
+        }
+        mappingLock.readLock().lock();
+        try {
+            assertFileClosed();
+            if (position + length > fileSize) {
+                throw new FileStoreOutSizeException();
+            }
+            if (length == 0) {
+                return ByteBuffer.allocate(0).asReadOnlyBuffer();
+            }
+            if (budget != null) {
+                // 映射随时可能被解除，不能返回直接引用映射的视图
+                ByteBuffer copy = ByteBuffer.allocate(length);
+                backend().read(position, length, copy);
+                copy.flip();
+                return copy.asReadOnlyBuffer();
+            }
+            return backend().slice(position, length);
+        } finally {
+            mappingLock.readLock().unlock();
         }
-        mappedByteBuffer.position(position);
-        byte[] bytes = new byte[length];
-        mappedByteBuffer.get(bytes);
-        return bytes;
     }
 
     /**
@@ -268,10 +630,17 @@ public class FileStoreItem {
         return isClosed;
     }
 
+    /**
+     * 存储后端类型
+     */
+    public StorageType getStorageType() {
+        return type;
+    }
+
     /**
      * 文件大小
      */
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
@@ -0,0 +1,231 @@
+package cn.emay.store.file.core;
+
+import sun.misc.Cleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 内存映射文件存储【默认】<br/>
+ * 文件按1G分窗口映射；刷盘时只刷新脏区域(JDK13+ 支持区域刷盘，JDK8 回退为整体刷盘)；<br/>
+ * 可以解除映射以释放映射内存(见{@link MappingBudget})，解除映射期间的刷盘通过FileChannel完成；
+ *
+ * @author Frank
+ */
+public class MappedStorageBackend extends WindowedStorageBackend {
+
+    /**
+     * MappedByteBuffer.force(int, int)【JDK13+】，不支持时为null
+     */
+    private static final MethodHandle FORCE_RANGE = findForceRange();
+
+    /**
+     * NIO文件
+     */
+    private RandomAccessFile raFile;
+    /**
+     * NIO通道
+     */
+    private FileChannel fc;
+    /**
+     * 映射模式
+     */
+    private final FileChannel.MapMode mode;
+    /**
+     * 文件大小
+     */
+    private long fileSize;
+
+    /**
+     * @param file     文件
+     * @param fileSize 文件大小
+     * @param mode     映射模式
+     * @throws IOException io异常
+     */
+    public MappedStorageBackend(File file, long fileSize, FileChannel.MapMode mode) throws IOException {
+        this.mode = mode;
+        this.fileSize = fileSize;
+        raFile = new RandomAccessFile(file, "rwd");
+        fc = raFile.getChannel();
+        try {
+            windows = allocateWindows(fileSize);
+        } catch (UncheckedIOException e) {
+            close();
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 查找区域刷盘方法
+     *
+     * @return 区域刷盘方法，不支持返回null
+     */
+    private static MethodHandle findForceRange() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force", MethodType.methodType(MappedByteBuffer.class, int.class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected ByteBuffer allocateWindow(long begin, int length) {
+        try {
+            return fc.map(mode, begin, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 是否已映射
+     *
+     * @return 是否已映射
+     */
+    public boolean isMapped() {
+        return windows != null;
+    }
+
+    /**
+     * 重新映射【可与读写并发调用，已映射时忽略】
+     *
+     * @return 本次是否新建了映射
+     * @throws IOException io异常
+     */
+    public synchronized boolean map() throws IOException {
+        if (windows != null) {
+            return false;
+        }
+        try {
+            windows = allocateWindows(fileSize);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return true;
+    }
+
+    /**
+     * 解除映射【调用方需保证没有并发读写】，脏页仍在页缓存中，由后续刷盘写入磁盘
+     */
+    public synchronized void unmap() {
+        closeBuffer();
+    }
+
+    @Override
+    public void sync(DirtyPageTracker dirtyPages, boolean force) {
+        if (windows == null) {
+            if (dirtyPages.clear() || force) {
+                try {
+                    fc.force(false);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        } else if (force) {
+            dirtyPages.clear();
+            forceAll();
+        } else if (FORCE_RANGE == null) {
+            if (dirtyPages.clear()) {
+                forceAll();
+            }
+        } else {
+            ByteBuffer[] mapped = windows;
+            dirtyPages.drain((position, length) -> forceRange(mapped, position, length));
+        }
+    }
+
+    /**
+     * 整体刷盘
+     */
+    private void forceAll() {
+        ByteBuffer[] mapped = windows;
+        for (ByteBuffer buffer : mapped) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * 区域刷盘，跨窗口的区域按窗口拆分
+     *
+     * @param mapped   文件映射窗口
+     * @param position 起始位置
+     * @param length   长度
+     */
+    private static void forceRange(ByteBuffer[] mapped, long position, long length) {
+        long offset = position;
+        long end = position + length;
+        while (offset < end) {
+            int index = (int) (offset >>> WINDOW_SHIFT);
+            int windowOffset = (int) (offset & (WINDOW_SIZE - 1));
+            int n = (int) Math.min(end - offset, mapped[index].capacity() - windowOffset);
+            try {
+                FORCE_RANGE.invoke((MappedByteBuffer) mapped[index], windowOffset, n);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException(e);
+            }
+            offset += n;
+        }
+    }
+
+    @Override
+    public synchronized void resize(long size) throws IOException {
+        if (windows != null) {
+            forceAll();
+            closeBuffer();
+        }
+        this.fileSize = size;
+        try {
+            windows = allocateWindows(size);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 关闭MappingBuffer
+     */
+    private void closeBuffer() {
+        if (windows == null) {
+            return;
+        }
+        for (ByteBuffer mappedByteBuffer : windows) {
+            Cleaner cleaner = ((sun.nio.ch.DirectBuffer) mappedByteBuffer).cleaner();
+            if (cleaner != null) {
+                cleaner.clean();
+            }
+        }
+        windows = null;
+    }
+
+    @Override
+    public void close() {
+        closeBuffer();
+        if (fc != null) {
+            try {
+                fc.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            fc = null;
+        }
+        if (raFile != null) {
+            try {
+                raFile.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            raFile = null;
+        }
+    }
+
+}
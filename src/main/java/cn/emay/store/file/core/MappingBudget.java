@@ -0,0 +1,137 @@
+package cn.emay.store.file.core;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存映射预算：多个FileQueue、FileMap共享，限制数据文件映射的总字节数<br/>
+ * 超出预算时按最近访问时间解除最久未访问的文件映射(近似LRU)，被解除映射的文件在下次访问时重新映射；<br/>
+ * 正在被读写的文件不会被解除映射，因此映射总量可能短暂超出预算；<br/>
+ * 受预算管理的文件，slice 返回只读拷贝，不再返回直接引用映射的视图；
+ *
+ * @author Frank
+ */
+public class MappingBudget {
+
+    /**
+     * 映射字节数上限
+     */
+    private final long maxMappedBytes;
+    /**
+     * 当前映射字节数
+     */
+    private final AtomicLong mappedBytes = new AtomicLong();
+    /**
+     * 受管理的文件
+     */
+    private final Set<Mapping> mappings = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param maxMappedBytes 映射字节数上限
+     */
+    public MappingBudget(long maxMappedBytes) {
+        if (maxMappedBytes <= 0) {
+            throw new IllegalArgumentException("maxMappedBytes must be bigger than 0");
+        }
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    /**
+     * 映射字节数上限
+     *
+     * @return 映射字节数上限
+     */
+    public long getMaxMappedBytes() {
+        return maxMappedBytes;
+    }
+
+    /**
+     * 当前映射字节数
+     *
+     * @return 当前映射字节数
+     */
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /**
+     * 登记一次映射，超出预算时解除其他文件的映射
+     *
+     * @param mapping 文件
+     * @param bytes   映射字节数
+     */
+    void mapped(Mapping mapping, long bytes) {
+        mappings.add(mapping);
+        if (mappedBytes.addAndGet(bytes) > maxMappedBytes) {
+            evict(mapping);
+        }
+    }
+
+    /**
+     * 登记一次解除映射
+     *
+     * @param bytes 解除映射的字节数
+     */
+    void unmapped(long bytes) {
+        mappedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * 移除文件【文件关闭时调用】
+     *
+     * @param mapping 文件
+     */
+    void remove(Mapping mapping) {
+        mappings.remove(mapping);
+    }
+
+    /**
+     * 按最近访问时间从旧到新解除映射，直到回到预算内
+     *
+     * @param exclude 不解除映射的文件【当前正在映射的文件】
+     */
+    private synchronized void evict(Mapping exclude) {
+        if (mappedBytes.get() <= maxMappedBytes) {
+            return;
+        }
+        // 先取访问时间快照再排序，避免排序期间访问时间变化
+        List<Map.Entry<Mapping, Long>> candidates = new ArrayList<>();
+        for (Mapping mapping : mappings) {
+            if (mapping != exclude) {
+                candidates.add(new AbstractMap.SimpleEntry<>(mapping, mapping.getLastAccess()));
+            }
+        }
+        candidates.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<Mapping, Long> candidate : candidates) {
+            if (mappedBytes.get() <= maxMappedBytes) {
+                return;
+            }
+            candidate.getKey().tryUnmap();
+        }
+    }
+
+    /**
+     * 受预算管理的文件
+     */
+    interface Mapping {
+
+        /**
+         * 最近访问时间
+         *
+         * @return 最近访问时间
+         */
+        long getLastAccess();
+
+        /**
+         * 尝试解除映射，文件正在读写时放弃
+         */
+        void tryUnmap();
+
+    }
+
+}
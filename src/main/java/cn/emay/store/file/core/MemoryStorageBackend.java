@@ -0,0 +1,93 @@
+package cn.emay.store.file.core;
+
+import sun.misc.Cleaner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 内存存储：堆内或堆外缓冲区，不落盘，关闭后数据丢失<br/>
+ * 用于测试、压测，或不需要持久化的场景；
+ *
+ * @author Frank
+ */
+public class MemoryStorageBackend extends WindowedStorageBackend {
+
+    /**
+     * 是否堆外内存
+     */
+    private final boolean direct;
+
+    /**
+     * @param size   存储大小
+     * @param direct 是否堆外内存
+     */
+    public MemoryStorageBackend(long size, boolean direct) {
+        this.direct = direct;
+        this.windows = allocateWindows(size);
+    }
+
+    @Override
+    protected ByteBuffer allocateWindow(long begin, int length) {
+        return direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    }
+
+    @Override
+    public void sync(DirtyPageTracker dirtyPages, boolean force) {
+        dirtyPages.clear();
+    }
+
+    @Override
+    public void preTouch() {
+        // 分配时已清零，无需预触页
+    }
+
+    @Override
+    public void prefetch(long position, long length) {
+        // 数据在内存中，无需预读
+    }
+
+    @Override
+    public void resize(long size) {
+        ByteBuffer[] old = windows;
+        windows = allocateWindows(size);
+        long oldSize = 0;
+        for (ByteBuffer buffer : old) {
+            oldSize += buffer.capacity();
+        }
+        long copySize = Math.min(oldSize, size);
+        for (long offset = 0; offset < copySize; offset += WINDOW_SIZE) {
+            ByteBuffer src = old[(int) (offset >>> WINDOW_SHIFT)].duplicate();
+            src.clear();
+            src.limit((int) Math.min(src.capacity(), copySize - offset));
+            write(offset, src);
+        }
+        release(old);
+    }
+
+    @Override
+    public void close() {
+        if (windows == null) {
+            return;
+        }
+        release(windows);
+        windows = null;
+    }
+
+    /**
+     * 释放堆外内存
+     *
+     * @param buffers 缓冲区
+     */
+    private void release(ByteBuffer[] buffers) {
+        if (!direct) {
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            Cleaner cleaner = ((sun.nio.ch.DirectBuffer) buffer).cleaner();
+            if (cleaner != null) {
+                cleaner.clean();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package cn.emay.store.file.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 存储后端：FileStoreItem 下层的实际读写实现<br/>
+ * 越界检查、关闭状态、读写锁、脏页记录由 FileStoreItem 负责，后端只做按绝对位置的读写；<br/>
+ * 读写方法可被多个线程并发调用，resize、close 由 FileStoreItem 保证独占调用；
+ *
+ * @author Frank
+ */
+public interface StorageBackend {
+
+    /**
+     * 写入缓冲区的剩余数据，缓冲区的position前进
+     *
+     * @param position 游标
+     * @param src      数据
+     */
+    void write(long position, ByteBuffer src);
+
+    /**
+     * 读取数据到目标缓冲区，目标缓冲区的position前进length
+     *
+     * @param position 游标
+     * @param length   数据长度
+     * @param dst      目标缓冲区
+     */
+    void read(long position, int length, ByteBuffer dst);
+
+    /**
+     * 读取一个int【大端】
+     *
+     * @param position 游标
+     * @return int
+     */
+    int readInt(long position);
+
+    /**
+     * 获取数据的只读视图，不能直接引用存储时返回只读拷贝
+     *
+     * @param position 游标
+     * @param length   数据长度
+     * @return 只读视图
+     */
+    ByteBuffer slice(long position, int length);
+
+    /**
+     * 刷盘
+     *
+     * @param dirtyPages 脏页记录
+     * @param force      是否强制整体刷盘
+     */
+    void sync(DirtyPageTracker dirtyPages, boolean force);
+
+    /**
+     * 预触页，提前完成缺页与空间分配
+     */
+    void preTouch();
+
+    /**
+     * 预读，提前把指定范围的数据读入页缓存【不修改数据】
+     *
+     * @param position 游标
+     * @param length   数据长度
+     */
+    void prefetch(long position, long length);
+
+    /**
+     * 修改存储大小
+     *
+     * @param size 存储大小
+     * @throws IOException io异常
+     */
+    void resize(long size) throws IOException;
+
+    /**
+     * 关闭，释放资源
+     */
+    void close();
+
+}
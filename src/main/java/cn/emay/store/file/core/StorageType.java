@@ -0,0 +1,39 @@
+package cn.emay.store.file.core;
+
+/**
+ * 存储后端类型
+ *
+ * @author Frank
+ */
+public enum StorageType {
+
+    /**
+     * 内存映射文件【默认】
+     */
+    MMAP,
+
+    /**
+     * FileChannel 按位置读写，不占用映射内存，适合常驻内存受限的环境
+     */
+    FILE_CHANNEL,
+
+    /**
+     * 堆内存，不落盘，关闭后数据丢失
+     */
+    HEAP,
+
+    /**
+     * 堆外内存，不落盘，关闭后数据丢失
+     */
+    DIRECT;
+
+    /**
+     * 是否基于磁盘文件
+     *
+     * @return 是否基于磁盘文件
+     */
+    public boolean isPersistent() {
+        return this == MMAP || this == FILE_CHANNEL;
+    }
+
+}
@@ -0,0 +1,149 @@
+package cn.emay.store.file.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按1G窗口组织的缓冲区存储：内存映射与内存后端共用<br/>
+ * 读写基于窗口的副本视图按绝对位置访问，跨窗口的读写自动拆分；
+ *
+ * @author Frank
+ */
+abstract class WindowedStorageBackend implements StorageBackend {
+
+    /**
+     * 窗口大小位移【1G】
+     */
+    static final int WINDOW_SHIFT = 30;
+
+    /**
+     * 窗口大小
+     */
+    static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+
+    /**
+     * 窗口【内存映射后端解除映射后为null，下次访问前重新映射】
+     */
+    protected volatile ByteBuffer[] windows;
+
+    /**
+     * 预读结果【只用于避免逐页读取被优化掉】
+     */
+    private volatile int prefetched;
+
+    /**
+     * 按窗口分配缓冲区
+     *
+     * @param size 存储大小
+     * @return 窗口
+     */
+    protected ByteBuffer[] allocateWindows(long size) {
+        int count = (int) ((size + WINDOW_SIZE - 1) >>> WINDOW_SHIFT);
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long begin = (long) i << WINDOW_SHIFT;
+            buffers[i] = allocateWindow(begin, (int) Math.min(WINDOW_SIZE, size - begin));
+        }
+        return buffers;
+    }
+
+    /**
+     * 分配一个窗口
+     *
+     * @param begin  窗口起始位置
+     * @param length 窗口长度
+     * @return 窗口
+     */
+    protected abstract ByteBuffer allocateWindow(long begin, int length);
+
+    /**
+     * 获取定位到指定位置的窗口视图
+     *
+     * @param position 游标
+     * @return 窗口视图，position为窗口内偏移
+     */
+    protected ByteBuffer window(long position) {
+        ByteBuffer buffer = windows[(int) (position >>> WINDOW_SHIFT)].duplicate();
+        buffer.position((int) (position & (WINDOW_SIZE - 1)));
+        return buffer;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer data) {
+        long offset = position;
+        while (data.hasRemaining()) {
+            ByteBuffer buffer = window(offset);
+            int n = Math.min(buffer.remaining(), data.remaining());
+            if (n == data.remaining()) {
+                buffer.put(data);
+            } else {
+                ByteBuffer part = data.duplicate();
+                part.limit(part.position() + n);
+                buffer.put(part);
+                data.position(data.position() + n);
+            }
+            offset += n;
+        }
+    }
+
+    @Override
+    public void read(long position, int length, ByteBuffer dst) {
+        long offset = position;
+        int remaining = length;
+        while (remaining > 0) {
+            ByteBuffer buffer = window(offset);
+            int n = Math.min(buffer.remaining(), remaining);
+            buffer.limit(buffer.position() + n);
+            dst.put(buffer);
+            offset += n;
+            remaining -= n;
+        }
+    }
+
+    @Override
+    public int readInt(long position) {
+        int windowOffset = (int) (position & (WINDOW_SIZE - 1));
+        ByteBuffer buffer = windows[(int) (position >>> WINDOW_SHIFT)];
+        if (windowOffset + 4 <= buffer.capacity()) {
+            return buffer.getInt(windowOffset);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        read(position, 4, bytes);
+        return bytes.getInt(0);
+    }
+
+    /**
+     * 逐页读取一个字节，触发缺页把数据读入页缓存
+     */
+    @Override
+    public void prefetch(long position, long length) {
+        int sum = 0;
+        long end = position + length;
+        for (long offset = position & -DirtyPageTracker.PAGE_SIZE; offset < end; offset += DirtyPageTracker.PAGE_SIZE) {
+            sum += windows[(int) (offset >>> WINDOW_SHIFT)].get((int) (offset & (WINDOW_SIZE - 1)));
+        }
+        this.prefetched = sum;
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer buffer = window(position);
+        if (buffer.remaining() < length) {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            read(position, length, copy);
+            copy.flip();
+            return copy.asReadOnlyBuffer();
+        }
+        buffer.limit(buffer.position() + length);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void preTouch() {
+        for (ByteBuffer buffer : windows) {
+            for (int i = 0; i < buffer.limit(); i += DirtyPageTracker.PAGE_SIZE) {
+                buffer.put(i, buffer.get(i));
+            }
+        }
+    }
+
+}
@@ -1,11 +1,16 @@
 package cn.emay.store.file.map;
 
+import cn.emay.store.file.core.DurabilityController;
+import cn.emay.store.file.core.FileStoreAllocator;
+import cn.emay.store.file.core.MappingBudget;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreClosedException;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,6 +20,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 /**
  * 基于文件存储的Map<br/>
@@ -52,15 +58,35 @@ public class FileMap implements Closeable {
     /**
      * 文件大小
      */
-    private int oneDataFileSize = DEFAULT_FILE_SIZE;
+    private long oneDataFileSize = DEFAULT_FILE_SIZE;
+    /**
+     * 数据文件、hash文件是否使用8字节游标
+     */
+    private boolean widePointer;
     /**
      * 路径
      */
     private final String mapDirPath;
+    /**
+     * 存储后端类型
+     */
+    private final StorageType storageType;
+    /**
+     * 数据文件的映射预算
+     */
+    private final MappingBudget mappingBudget;
     /**
      * 清理线程
      */
     private ScheduledExecutorService executorService;
+    /**
+     * 持久化控制
+     */
+    private final DurabilityController durability;
+    /**
+     * 数据文件预分配
+     */
+    private final FileStoreAllocator allocator;
 
 
     /**
@@ -76,7 +102,7 @@ public class FileMap implements Closeable {
      * @param mapDirPath Map文件夹地址
      */
     public FileMap(String mapDirPath) {
-        this(mapDirPath, 60, DEFAULT_FILE_SIZE, DEFAULT_HASH_SIZE);
+        this(mapDirPath, new FileMapConfig());
     }
 
     /**
@@ -86,21 +112,43 @@ public class FileMap implements Closeable {
      * @param hashLength          key分片数量，重启后如果跟之前的分片数量不一致，采用之前的分片数量
      */
     public FileMap(String mapDirPath, int cleanUpPeriodSecond, int oneDataFileSize, int hashLength) {
+        this(mapDirPath, toConfig(cleanUpPeriodSecond, oneDataFileSize, hashLength));
+    }
+
+    /**
+     * @param mapDirPath Map文件夹地址
+     * @param config     配置
+     */
+    public FileMap(String mapDirPath, FileMapConfig config) {
         this.mapDirPath = mapDirPath;
-        if (oneDataFileSize > DEFAULT_FILE_SIZE) {
-            this.oneDataFileSize = oneDataFileSize;
+        if (config.getOneDataFileSize() > DEFAULT_FILE_SIZE) {
+            this.oneDataFileSize = config.getOneDataFileSize();
         }
+        int cleanUpPeriodSecond = config.getCleanUpPeriodSecond();
+        this.storageType = config.getStorageType();
+        this.mappingBudget = config.getMappingBudget();
+        this.allocator = new FileStoreAllocator(config.isPreAllocate(), config.isPreTouch(), storageType, mappingBudget);
         try {
             File folder = loadDir(mapDirPath);
-            info = new FileMapInfo(mapDirPath);
-            hash = new FileMapHash(mapDirPath, hashLength);
+            info = new FileMapInfo(mapDirPath, storageType);
+            widePointer = info.isWidePointer();
+            if (!widePointer) {
+                // 旧格式使用4字节游标，单数据文件不能超过2G
+                this.oneDataFileSize = Math.min(this.oneDataFileSize, Integer.MAX_VALUE);
+            }
+            hash = new FileMapHash(mapDirPath, config.getHashLength(), widePointer, storageType);
             loadDataFiles(folder);
+            recover();
             Map<Integer, Integer> map = hash.loadFileCounts(datas);
             info.setFileCounts(map);
             this.isClose = false;
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
+        if (allocator.isEnabled()) {
+            allocator.prepare(FileMapData.dataFile(mapDirPath, info.getNowFileIndex() + 1), oneDataFileSize);
+        }
+        this.durability = new DurabilityController(config.getDurabilityPolicy(), this::flush);
 
         if (cleanUpPeriodSecond > 0) {
             executorService = Executors.newScheduledThreadPool(1);
@@ -110,6 +158,17 @@ public class FileMap implements Closeable {
 
     }
 
+    /**
+     * 旧构造参数转换为配置
+     */
+    private static FileMapConfig toConfig(int cleanUpPeriodSecond, int oneDataFileSize, int hashLength) {
+        FileMapConfig config = new FileMapConfig();
+        config.setCleanUpPeriodSecond(cleanUpPeriodSecond);
+        config.setOneDataFileSize(oneDataFileSize);
+        config.setHashLength(hashLength);
+        return config;
+    }
+
     /**
      * 加载文件夹
      *
@@ -128,6 +187,18 @@ public class FileMap implements Closeable {
         return folder;
     }
 
+    /**
+     * 恢复扫描：校验当前写入的数据文件，截断崩溃时未写完的记录并修正写入游标<br/>
+     * 之前的数据文件在切换时已经写满，不需要扫描；
+     */
+    private void recover() {
+        FileMapData data = datas.get(info.getNowFileIndex());
+        if (data != null) {
+            info.recover(data.recover(info.getNowByteIndex(), !info.isCleanShutdown()));
+        }
+        info.markOpened();
+    }
+
     /**
      * 加载数据文件
      *
@@ -155,7 +226,12 @@ public class FileMap implements Closeable {
             } catch (Exception e) {
                 continue;
             }
-            FileMapData data = new FileMapData(mapDirPath, oneDataFileSize, index);
+            if (index == info.getNowFileIndex() + 1) {
+                // 预分配尚未使用的文件，交给预分配器
+                allocator.prepare(file, oneDataFileSize);
+                continue;
+            }
+            FileMapData data = new FileMapData(mapDirPath, oneDataFileSize, index, widePointer, storageType, mappingBudget);
             datas.put(index, data);
         }
     }
@@ -189,14 +265,21 @@ public class FileMap implements Closeable {
                 info.removeFileCount(in);
             }
         }
+        flush();
+    }
+
+    /**
+     * 刷盘：数据文件、hash文件与计数文件
+     */
+    private void flush() {
         if (isClose) {
             return;
         }
-        hash.sync();
-        info.sync();
         for (FileMapData fmd : datas.values()) {
             fmd.sync();
         }
+        hash.sync();
+        info.sync();
     }
 
     /**
@@ -211,11 +294,16 @@ public class FileMap implements Closeable {
         if (executorService != null) {
             executorService.shutdown();
         }
-        hash.close();
-        info.close();
+        durability.close();
+        allocator.close();
+        // 数据文件、hash文件刷盘后计数文件才写入正常关闭标记
         for (FileMapData fmd : datas.values()) {
+            fmd.sync();
             fmd.close();
         }
+        hash.sync();
+        hash.close();
+        info.close();
         isClose = true;
     }
 
@@ -229,6 +317,7 @@ public class FileMap implements Closeable {
         for (FileMapData fmd : datas.values()) {
             fmd.delete();
         }
+        allocator.delete();
         hash = null;
         info = null;
         datas.clear();
@@ -238,7 +327,7 @@ public class FileMap implements Closeable {
     /**
      * 元素个数
      */
-    public int size() {
+    public long size() {
         return info.getCount();
     }
 
@@ -252,15 +341,19 @@ public class FileMap implements Closeable {
     }
 
     /**
-     * 新建数据文件
+     * 新建数据文件【开启预分配时直接取用后台准备好的文件】
      *
      * @return 数据文件
      * @throws IOException IO异常
      */
     private synchronized FileMapData createFileMapData() throws IOException {
         info.addFile();
-        FileMapData fmd = new FileMapData(mapDirPath, oneDataFileSize, info.getNowFileIndex());
-        datas.put(info.getNowFileIndex(), fmd);
+        int index = info.getNowFileIndex();
+        FileMapData fmd = new FileMapData(allocator.take(FileMapData.dataFile(mapDirPath, index), oneDataFileSize), widePointer);
+        datas.put(index, fmd);
+        if (allocator.isEnabled()) {
+            allocator.prepare(FileMapData.dataFile(mapDirPath, index + 1), oneDataFileSize);
+        }
         return fmd;
     }
 
@@ -299,7 +392,36 @@ public class FileMap implements Closeable {
      * @return 值
      */
     private byte[] getBytes(byte[] key) {
-        return readValue(key, true);
+        return readValue(key, (fmd, data) -> fmd.readValue(data.getValuePosition(), data.getValueLength()));
+    }
+
+    /**
+     * 获取值到目标缓冲区【直接从文件拷贝到缓冲区，不产生中间数组】
+     *
+     * @param key 键
+     * @param dst 目标缓冲区，剩余空间不足时抛出IllegalArgumentException
+     * @return 值长度，不存在返回-1
+     */
+    public int getInto(String key, ByteBuffer dst) {
+        if (key == null) {
+            return -1;
+        }
+        return getInto(key.getBytes(StandardCharsets.UTF_8), dst);
+    }
+
+    /**
+     * 获取值到目标缓冲区【直接从文件拷贝到缓冲区，不产生中间数组】
+     *
+     * @param key 键
+     * @param dst 目标缓冲区，剩余空间不足时抛出IllegalArgumentException
+     * @return 值长度，不存在返回-1
+     */
+    public int getInto(byte[] key, ByteBuffer dst) {
+        if (dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        Integer length = readValue(key, (fmd, data) -> fmd.readValueInto(data.getValuePosition(), data.getValueLength(), dst));
+        return length == null ? -1 : length;
     }
 
     /**
@@ -323,37 +445,38 @@ public class FileMap implements Closeable {
      * @return 是否存在
      */
     public boolean exists(byte[] key) {
-        return readValue(key, false) != null;
+        return readValue(key, (fmd, data) -> Boolean.TRUE) != null;
     }
 
     /**
-     * 获取值
+     * 查找键所在节点并读取
      *
-     * @param key 键
-     * @return 值
+     * @param key    键
+     * @param reader 节点读取逻辑
+     * @return 读取结果，不存在返回null
      */
-    private byte[] readValue(byte[] key, boolean readValue) {
+    private <T> T readValue(byte[] key, BiFunction<FileMapData, MapKeyData, T> reader) {
         assertFileClosed();
         if (key == null) {
             return null;
         }
-        int[] ints = hash.readKeyCoordinate(key);
-        if (ints[0] == 0) {
+        long[] coordinate = hash.readKeyCoordinate(key);
+        if (coordinate[0] == 0) {
             return null;
         }
-        FileMapData fmd = datas.get(ints[1]);
+        FileMapData fmd = datas.get((int) coordinate[1]);
         if (fmd == null) {
             return null;
         }
-        byte[] value = null;
-        int nowByteIndex = ints[2];
+        T value = null;
+        long nowByteIndex = coordinate[2];
         while (true) {
             MapKeyData data = fmd.readKey(nowByteIndex);
             if (data == null) {
                 return null;
             }
             if (Arrays.equals(key, data.getKey())) {
-                value = readValue ? fmd.readValue(data.getValuePosition(), data.getValueLength()) : new byte[0];
+                value = reader.apply(fmd, data);
                 break;
             }
             if (!data.isHasNext()) {
@@ -374,7 +497,7 @@ public class FileMap implements Closeable {
      * @param key   键
      * @param value 值
      */
-    public synchronized void put(String key, String value) {
+    public void put(String key, String value) {
         if (key == null) {
             throw new IllegalArgumentException("key is null");
         }
@@ -392,7 +515,7 @@ public class FileMap implements Closeable {
      * @param key   键
      * @param value 值
      */
-    public synchronized void putBytes(String key, byte[] value) {
+    public void putBytes(String key, byte[] value) {
         if (key == null) {
             throw new IllegalArgumentException("key is null");
         }
@@ -406,27 +529,53 @@ public class FileMap implements Closeable {
      * @param key   键
      * @param value 值
      */
-    public synchronized void putBytes(byte[] key, byte[] value) {
+    public void putBytes(byte[] key, byte[] value) {
         assertFileClosed();
         if (value == null || value.length == 0) {
             return;
         }
+        putBuffer(key, ByteBuffer.wrap(value));
+    }
+
+    /**
+     * 放入值【直接从缓冲区写入文件，不产生中间数组】<br/>
+     * 按持久化策略刷盘，组提交模式下等待数据落盘后返回
+     *
+     * @param key   键
+     * @param value 值(remaining部分)，不改变其position
+     */
+    public void putBuffer(byte[] key, ByteBuffer value) {
+        durability.commit(writeValue(key, value));
+    }
+
+    /**
+     * 写入值
+     *
+     * @param key   键
+     * @param value 值(remaining部分)，不改变其position
+     * @return 持久化写入序号，没有写入返回0
+     */
+    private synchronized long writeValue(byte[] key, ByteBuffer value) {
+        assertFileClosed();
+        if (value == null || !value.hasRemaining()) {
+            return 0;
+        }
         if (key == null || key.length == 0) {
             throw new IllegalArgumentException("key is null");
         }
-        int[] ints = hash.readKeyCoordinate(key);
+        long[] coordinate = hash.readKeyCoordinate(key);
         try {
-            int[] wins = writeMapData(key, value);
-            int byteindex = wins[0];
-            int length = wins[1];
-            if (ints[0] == 0) {
+            long[] wins = writeMapData(key, value);
+            long byteindex = wins[0];
+            int length = (int) wins[1];
+            if (coordinate[0] == 0) {
                 // 与hash关联
                 hash.writeKeyCoordinate(key, info.getNowFileIndex(), byteindex);
             } else {
-                int nowFileIn = ints[1];
-                int nowByteIn = ints[2];
+                int nowFileIn = (int) coordinate[1];
+                long nowByteIn = coordinate[2];
                 FileMapData parentfmd = null;
-                int parentByteIn = -1;
+                long parentByteIn = -1;
                 while (true) {
                     FileMapData fmd = datas.get(nowFileIn);
                     MapKeyData data = fmd.readKey(nowByteIn);
@@ -462,6 +611,7 @@ public class FileMap implements Closeable {
                 }
             }
             info.add(length);
+            return durability.append();
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
@@ -475,8 +625,8 @@ public class FileMap implements Closeable {
      * @return 坐标
      * @throws IOException IO异常
      */
-    private int[] writeMapData(byte[] key, byte[] value) throws IOException {
-        int nowByteIndex = info.getNowByteIndex();
+    private long[] writeMapData(byte[] key, ByteBuffer value) throws IOException {
+        long nowByteIndex = info.getNowByteIndex();
         FileMapData fmd = datas.get(info.getNowFileIndex());
         if (fmd == null) {
             createFileMapData();
@@ -484,7 +634,7 @@ public class FileMap implements Closeable {
         }
         try {
             int totallength = fmd.writeData(nowByteIndex, key, value);
-            return new int[]{nowByteIndex, totallength};
+            return new long[]{nowByteIndex, totallength};
         } catch (FileStoreOutSizeException e1) {
             createFileMapData();
             return writeMapData(key, value);
@@ -496,7 +646,7 @@ public class FileMap implements Closeable {
      *
      * @param key 键
      */
-    public synchronized void remove(String key) {
+    public void remove(String key) {
         if (key == null || key.length() == 0) {
             return;
         }
@@ -509,19 +659,29 @@ public class FileMap implements Closeable {
      *
      * @param key 键
      */
-    public synchronized void removeBytes(byte[] key) {
+    public void removeBytes(byte[] key) {
+        durability.commit(removeValue(key));
+    }
+
+    /**
+     * 删除值
+     *
+     * @param key 键
+     * @return 持久化写入序号，没有删除返回0
+     */
+    private synchronized long removeValue(byte[] key) {
         assertFileClosed();
         if (key == null || key.length == 0) {
-            return;
+            return 0;
         }
-        int[] ints = hash.readKeyCoordinate(key);
-        if (ints[0] == 0) {
-            return;
+        long[] coordinate = hash.readKeyCoordinate(key);
+        if (coordinate[0] == 0) {
+            return 0;
         }
-        int nowFileIn = ints[1];
-        int nowByteIn = ints[2];
+        int nowFileIn = (int) coordinate[1];
+        long nowByteIn = coordinate[2];
         FileMapData parentfmd = null;
-        int parentByteIn = -1;
+        long parentByteIn = -1;
         while (true) {
             FileMapData fmd = datas.get(nowFileIn);
             MapKeyData data = fmd.readKey(nowByteIn);
@@ -545,7 +705,7 @@ public class FileMap implements Closeable {
                     }
                 }
                 info.remove(nowFileIn);
-                break;
+                return durability.append();
             }
             if (!data.isHasNext()) {
                 break;
@@ -555,6 +715,7 @@ public class FileMap implements Closeable {
             nowFileIn = data.getNextFilePosition();
             nowByteIn = data.getNextBytePosition();
         }
+        return 0;
     }
 
 }
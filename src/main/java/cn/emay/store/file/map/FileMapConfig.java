@@ -0,0 +1,30 @@
+package cn.emay.store.file.map;
+
+import cn.emay.store.file.core.FileStoreConfig;
+
+/**
+ * 文件Map配置<br/>
+ * 默认：60秒刷盘时间间隔、10M一个数据文件、1024*1024个key分片、不主动刷盘
+ *
+ * @author Frank
+ */
+public class FileMapConfig extends FileStoreConfig {
+
+    /**
+     * key分片数量，重启后如果跟之前的分片数量不一致，采用之前的分片数量
+     */
+    private int hashLength = FileMap.DEFAULT_HASH_SIZE;
+
+    public FileMapConfig() {
+        super(60, FileMap.DEFAULT_FILE_SIZE);
+    }
+
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    public void setHashLength(int hashLength) {
+        this.hashLength = hashLength;
+    }
+
+}
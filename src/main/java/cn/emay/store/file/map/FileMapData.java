@@ -1,16 +1,23 @@
 package cn.emay.store.file.map;
 
 import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.MappingBudget;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
-import cn.emay.store.file.util.ByteIntConverter;
+import cn.emay.store.file.util.Crc32c;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * FileMap 数据文件【定长文件】<br/>
- * items :
- * length(4),hasNext(1),nextFileIndex(4),nextByteIndex(4),keylength(4),valuelength(4),key(keylength),value(valuelength)<br/>
+ * items v2【带校验，当前写入格式】:<br/>
+ * length|0x80000000(4),hasNext(1),nextFileIndex(4),nextByteIndex(8),keylength(4),valuelength(4),crc32c(4),key(keylength),value(valuelength)<br/>
+ * items v1【旧格式，只读】:<br/>
+ * length(4),hasNext(1),nextFileIndex(4),nextByteIndex(8),keylength(4),valuelength(4),key(keylength),value(valuelength)<br/>
+ * 长度最高位区分格式；校验值覆盖key与value，不覆盖会被修改的下一节点信息；<br/>
+ * 旧格式Map的nextByteIndex为4字节，单文件不能超过2G
  *
  * @author Frank
  */
@@ -27,14 +34,58 @@ public class FileMapData {
     private final FileStoreItem store;
 
     /**
+     * 字节游标宽度
+     */
+    private final int pointerWidth;
+
+    /**
+     * 带校验记录的长度标记
+     */
+    private final static int CHECKSUM_FLAG = 0x80000000;
+
+    /**
+     * 旧格式头信息长度【value、key以外的部分】
+     */
+    private final int headSize;
+
+    /**
+     * 带校验的头信息长度
+     */
+    private final int checksumHeadSize;
+
+    /**
+     * @param mapDirPath  Map的路径
+     * @param fileSize    文件大小
+     * @param index       data文件编号
+     * @param widePointer 是否8字节游标
+     * @param storageType 存储后端类型
+     * @param budget      映射预算，为null时不受预算管理
+     * @throws IOException IO异常
+     */
+    protected FileMapData(String mapDirPath, long fileSize, int index, boolean widePointer, StorageType storageType, MappingBudget budget) throws IOException {
+        this(new FileStoreItem(dataFile(mapDirPath, index), fileSize, storageType, budget), widePointer);
+    }
+
+    /**
+     * @param store       已准备好的存储文件
+     * @param widePointer 是否8字节游标
+     */
+    protected FileMapData(FileStoreItem store, boolean widePointer) {
+        this.store = store;
+        this.pointerWidth = widePointer ? 8 : 4;
+        this.headSize = 17 + pointerWidth;
+        this.checksumHeadSize = headSize + 4;
+    }
+
+    /**
+     * 数据文件
+     *
      * @param mapDirPath Map的路径
-     * @param fileSize   文件大小
      * @param index      data文件编号
-     * @throws IOException IO异常
+     * @return 数据文件
      */
-    protected FileMapData(String mapDirPath, int fileSize, int index) throws IOException {
-        File file = new File(mapDirPath + File.separator + index + END_FILE_NAME);
-        store = new FileStoreItem(file, fileSize);
+    protected static File dataFile(String mapDirPath, int index) {
+        return new File(mapDirPath + File.separator + index + END_FILE_NAME);
     }
 
     /**
@@ -43,39 +94,28 @@ public class FileMapData {
      * @param readPosition 数据起始点
      * @return 数据对象
      */
-    protected MapKeyData readKey(int readPosition) {
+    protected MapKeyData readKey(long readPosition) {
         if (readPosition < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (readPosition + 21 > store.getFileSize()) {
+        if (readPosition + headSize > store.getFileSize()) {
             return null;
         }
         try {
-            byte[] bytes = store.read(readPosition, 21);
-            int posit = 0;
-            byte[] readBytes = new byte[4];
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int length = ByteIntConverter.toInt(readBytes);
+            int readSize = readPosition + checksumHeadSize > store.getFileSize() ? headSize : checksumHeadSize;
+            ByteBuffer bytes = ByteBuffer.wrap(store.read(readPosition, readSize));
+            int length = bytes.getInt(0);
             if (length == 0) {
                 return null;
             }
-            posit += 4;
-            boolean hasNext = bytes[posit] != 0;
-            posit += 1;
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int nextFilePosition = ByteIntConverter.toInt(readBytes);
-            posit += 4;
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int nextBytePosition = ByteIntConverter.toInt(readBytes);
-            posit += 4;
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int keyLength = ByteIntConverter.toInt(readBytes);
-            posit += 4;
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int valueLength = ByteIntConverter.toInt(readBytes);
-            posit += 4;
-            byte[] keyBytes = store.read(readPosition + posit, keyLength);
-            int valuePosition = readPosition + posit + keyLength;
+            int recordHeadSize = (length & CHECKSUM_FLAG) != 0 ? checksumHeadSize : headSize;
+            boolean hasNext = bytes.get(4) != 0;
+            int nextFilePosition = bytes.getInt(5);
+            long nextBytePosition = readPointer(bytes, 9);
+            int keyLength = bytes.getInt(9 + pointerWidth);
+            int valueLength = bytes.getInt(13 + pointerWidth);
+            byte[] keyBytes = store.read(readPosition + recordHeadSize, keyLength);
+            long valuePosition = readPosition + recordHeadSize + keyLength;
             return new MapKeyData(keyBytes, valuePosition, valueLength, hasNext, nextFilePosition, nextBytePosition);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
@@ -89,7 +129,7 @@ public class FileMapData {
      * @param valueLength   值长度
      * @return 数据对象
      */
-    protected byte[] readValue(int valuePosition, int valueLength) {
+    protected byte[] readValue(long valuePosition, int valueLength) {
         if (valuePosition < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
@@ -103,38 +143,55 @@ public class FileMapData {
         }
     }
 
+    /**
+     * 读取Value到目标缓冲区
+     *
+     * @param valuePosition 值起始点
+     * @param valueLength   值长度
+     * @param dst           目标缓冲区，剩余空间不足时抛出IllegalArgumentException且不读取
+     * @return 值长度，越界返回-1
+     */
+    protected int readValueInto(long valuePosition, int valueLength, ByteBuffer dst) {
+        if (valuePosition < 0) {
+            throw new IllegalArgumentException("position must not be less than 0");
+        }
+        if (valuePosition + valueLength > store.getFileSize()) {
+            return -1;
+        }
+        if (dst.remaining() < valueLength) {
+            throw new IllegalArgumentException("dst remaining [" + dst.remaining() + "] is less than value length [" + valueLength + "]");
+        }
+        try {
+            store.readInto(valuePosition, valueLength, dst);
+            return valueLength;
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     /**
      * 读取下一个节点的坐标
      *
      * @param readPosition 数据起始点
      * @return 数据坐标
      */
-    protected int[] getNextIndex(int readPosition) {
+    protected long[] getNextIndex(long readPosition) {
         if (readPosition < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (readPosition + 21 > store.getFileSize()) {
-            return new int[]{0, 0, 0};
+        if (readPosition + headSize > store.getFileSize()) {
+            return new long[]{0, 0, 0};
         }
         try {
-            // 拿到总数据
-            byte[] lengthBytes = store.read(readPosition, 4);
-            int length = ByteIntConverter.toInt(lengthBytes);
-            if (length == 0) {
-                return new int[]{0, 0, 0};
-            }
-            byte[] bytes = store.read(readPosition + 4, length - 9);
-            if (bytes[0] == 0) {
-                return new int[]{0, 0, 0};
+            // 只读取长度与下一节点信息
+            ByteBuffer bytes = ByteBuffer.wrap(store.read(readPosition, 9 + pointerWidth));
+            int length = bytes.getInt(0);
+            if (length == 0 || bytes.get(4) == 0) {
+                return new long[]{0, 0, 0};
             }
-            int posit = 1;
-            byte[] readBytes = new byte[4];
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int nextFilePosition = ByteIntConverter.toInt(readBytes);
-            posit += 4;
-            System.arraycopy(bytes, posit, readBytes, 0, 4);
-            int nextBytePosition = ByteIntConverter.toInt(readBytes);
-            return new int[]{1, nextFilePosition, nextBytePosition};
+            int nextFilePosition = bytes.getInt(5);
+            long nextBytePosition = readPointer(bytes, 9);
+            return new long[]{1, nextFilePosition, nextBytePosition};
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
@@ -149,33 +206,41 @@ public class FileMapData {
      * @return 长度
      * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    protected synchronized int writeData(int writePosition, byte[] key, byte[] value) throws FileStoreOutSizeException {
-        if (key == null || key.length == 0 || value == null || value.length == 0) {
+    protected int writeData(long writePosition, byte[] key, byte[] value) throws FileStoreOutSizeException {
+        if (value == null || value.length == 0) {
+            throw new IllegalArgumentException("key or value must not be null ");
+        }
+        return writeData(writePosition, key, ByteBuffer.wrap(value));
+    }
+
+    /**
+     * 写入数据【头信息、键、值聚合写入，不拼接临时数组】
+     *
+     * @param writePosition 起始位置
+     * @param key           键
+     * @param value         值(remaining部分)，不改变其position
+     * @return 长度
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    protected synchronized int writeData(long writePosition, byte[] key, ByteBuffer value) throws FileStoreOutSizeException {
+        if (key == null || key.length == 0 || value == null || !value.hasRemaining()) {
             throw new IllegalArgumentException("key or value must not be null ");
         }
         if (writePosition < 0) {
             throw new IllegalArgumentException("writePosition must lagger than 0");
         }
-        int totalLength = 21 + key.length + value.length;
+        int valueLength = value.remaining();
+        int totalLength = checksumHeadSize + key.length + valueLength;
         if (writePosition + totalLength > store.getFileSize()) {
             throw new FileStoreOutSizeException();
         }
-        byte[] lengthBytes = ByteIntConverter.toBytes(totalLength);
-        byte[] keyLengthBytes = ByteIntConverter.toBytes(key.length);
-        byte[] valueLengthBytes = ByteIntConverter.toBytes(value.length);
-        byte[] incom = new byte[totalLength];
-        int posit = 0;
-        System.arraycopy(lengthBytes, 0, incom, posit, 4);
-        posit += 4;
-        posit += 9;
-        System.arraycopy(keyLengthBytes, 0, incom, posit, 4);
-        posit += 4;
-        System.arraycopy(valueLengthBytes, 0, incom, posit, 4);
-        posit += 4;
-        System.arraycopy(key, 0, incom, posit, key.length);
-        posit += key.length;
-        System.arraycopy(value, 0, incom, posit, value.length);
-        store.write(writePosition, incom);
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        ByteBuffer head = ByteBuffer.allocate(checksumHeadSize);
+        head.putInt(0, totalLength | CHECKSUM_FLAG);
+        head.putInt(9 + pointerWidth, key.length);
+        head.putInt(13 + pointerWidth, valueLength);
+        head.putInt(headSize, Crc32c.checksum(keyBuffer, value));
+        store.write(writePosition, head, keyBuffer, value);
         return totalLength;
     }
 
@@ -186,23 +251,28 @@ public class FileMapData {
      * @param nextFilePosition 下一个节点文件编号
      * @param nextBytePosition 下一个节点游标
      */
-    protected synchronized void writeNextPosition(int position, int nextFilePosition, int nextBytePosition) {
+    protected synchronized void writeNextPosition(long position, int nextFilePosition, long nextBytePosition) {
         if (position < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (position + 21 > store.getFileSize()) {
+        if (position + headSize > store.getFileSize()) {
             throw new IllegalArgumentException("position must  be less than filesize");
         }
         if (nextFilePosition < 0 || nextBytePosition < 0) {
             throw new IllegalArgumentException("nextFilePosition and nextBytePosition must not be less than 0");
         }
         try {
-            byte[] tmp = new byte[9];
-            byte[] filebytes = ByteIntConverter.toBytes(nextFilePosition);
-            byte[] bytebytes = ByteIntConverter.toBytes(nextBytePosition);
-            tmp[0] = 1;
-            System.arraycopy(filebytes, 0, tmp, 1, 4);
-            System.arraycopy(bytebytes, 0, tmp, 5, 4);
+            ByteBuffer tmp = ByteBuffer.allocate(5 + pointerWidth);
+            tmp.put(0, (byte) 1);
+            tmp.putInt(1, nextFilePosition);
+            if (pointerWidth == 8) {
+                tmp.putLong(5, nextBytePosition);
+            } else {
+                if (nextBytePosition > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("nextBytePosition is too large for the old map format");
+                }
+                tmp.putInt(5, (int) nextBytePosition);
+            }
             store.write(position + 4, tmp);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
@@ -214,11 +284,11 @@ public class FileMapData {
      *
      * @param position 节点游标
      */
-    protected synchronized void removeNextPosition(int position) {
+    protected synchronized void removeNextPosition(long position) {
         if (position < 0) {
             throw new IllegalArgumentException("position must not be less than 0");
         }
-        if (position + 21 > store.getFileSize()) {
+        if (position + headSize > store.getFileSize()) {
             throw new IllegalArgumentException("position must  be less than filesize");
         }
         try {
@@ -228,6 +298,72 @@ public class FileMapData {
         }
     }
 
+    /**
+     * 恢复扫描：从文件头顺序校验记录，遇到第一条损坏的记录、或数据结束后仍有残留内容时截断(清零其后的内容)<br/>
+     * 带校验的记录按校验值判断；旧格式记录无法校验，只信任计数文件记录的写入游标之前的部分；<br/>
+     * 正常关闭时数据文件已刷盘，数据结束后不会残留内容，不再检查
+     *
+     * @param trustedEnd 旧格式记录可信的结束游标
+     * @param checkTail  是否检查数据结束后残留的内容
+     * @return 有效数据的结束游标
+     */
+    protected synchronized long recover(long trustedEnd, boolean checkTail) {
+        long position = 0;
+        long size = store.getFileSize();
+        boolean broken = false;
+        try {
+            while (position + headSize <= size) {
+                int length = store.readInt(position);
+                if (length == 0) {
+                    // 数据结束：之后应全部为0，残留的内容(如写了一半的记录)与损坏的记录一样清零
+                    broken = checkTail && !store.isZero(position, size - position);
+                    break;
+                }
+                boolean checksum = (length & CHECKSUM_FLAG) != 0;
+                int totalLength = length & ~CHECKSUM_FLAG;
+                int recordHeadSize = checksum ? checksumHeadSize : headSize;
+                if (totalLength < recordHeadSize || position + totalLength > size) {
+                    broken = true;
+                    break;
+                }
+                int keyLength = store.readInt(position + 9 + pointerWidth);
+                int valueLength = store.readInt(position + 13 + pointerWidth);
+                if (keyLength < 0 || valueLength < 0 || (long) recordHeadSize + keyLength + valueLength != totalLength) {
+                    broken = true;
+                    break;
+                }
+                if (!checksum) {
+                    if (position + totalLength > trustedEnd) {
+                        broken = true;
+                        break;
+                    }
+                } else if (store.readInt(position + headSize) != Crc32c.checksum(store.slice(position + recordHeadSize, keyLength + valueLength))) {
+                    broken = true;
+                    break;
+                }
+                position += totalLength;
+            }
+            if (broken) {
+                store.zero(position, size - position);
+                store.sync();
+            }
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return position;
+    }
+
+    /**
+     * 读取字节游标
+     *
+     * @param bytes    头信息
+     * @param position 游标位置
+     * @return 字节游标
+     */
+    private long readPointer(ByteBuffer bytes, int position) {
+        return pointerWidth == 8 ? bytes.getLong(position) : bytes.getInt(position);
+    }
+
     /**
      * 关闭Data文件
      */
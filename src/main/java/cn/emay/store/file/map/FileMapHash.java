@@ -1,11 +1,12 @@
 package cn.emay.store.file.map;
 
 import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
-import cn.emay.store.file.util.ByteIntConverter;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -13,7 +14,8 @@ import java.util.Map;
 /**
  * FileMap 的 索引文件【定长文件】<br/>
  * item 列表<br/>
- * hasData(1),firstdatafileindex(4),firstdatabyteindex(4)
+ * hasData(1),firstdatafileindex(4),firstdatabyteindex(8)<br/>
+ * 旧格式的firstdatabyteindex为4字节；坐标按64位计算，hash文件可以超过2G
  *
  * @author Frank
  */
@@ -29,6 +31,16 @@ public class FileMapHash {
      */
     private final int hashLength;
 
+    /**
+     * 字节游标宽度
+     */
+    private final int pointerWidth;
+
+    /**
+     * 单个item长度
+     */
+    private final int itemSize;
+
     /**
      * 文件名
      */
@@ -37,22 +49,23 @@ public class FileMapHash {
     /**
      * 如果存在旧的hash，不会重新更改hash长度
      *
-     * @param mapDirPath Map的路径
-     * @param hashLength key分片数量
+     * @param mapDirPath  Map的路径
+     * @param hashLength  key分片数量
+     * @param widePointer 是否8字节游标
+     * @param storageType 存储后端类型
      * @throws IOException IO异常
      */
-    protected FileMapHash(String mapDirPath, int hashLength) throws IOException {
+    protected FileMapHash(String mapDirPath, int hashLength, boolean widePointer, StorageType storageType) throws IOException {
+        this.pointerWidth = widePointer ? 8 : 4;
+        this.itemSize = 5 + pointerWidth;
         File file = new File(mapDirPath + File.separator + FILE_NAME);
-        int oldLength = (int) (file.length() / 9);
-        int fileSize;
+        int oldLength = (int) (file.length() / itemSize);
         if (oldLength != 0 && oldLength != hashLength) {
             this.hashLength = oldLength;
-            fileSize = oldLength * 9;
         } else {
             this.hashLength = hashLength;
-            fileSize = hashLength * 9;
         }
-        store = new FileStoreItem(file, fileSize);
+        store = new FileStoreItem(file, (long) this.hashLength * itemSize, storageType);
     }
 
     /**
@@ -61,25 +74,32 @@ public class FileMapHash {
      * @param key 键
      * @return [是否存在，文件序号，字节序号]
      */
-    protected int[] readKeyCoordinate(byte[] key) {
+    protected long[] readKeyCoordinate(byte[] key) {
         try {
-            int hashing = hashing(key);
-            byte[] bytes = store.read(hashing * 9, 9);
-            int flag = bytes[0];
-            if (flag == 0) {
-                return new int[]{flag, 0, 0};
-            }
-            byte[] tmp = new byte[4];
-            System.arraycopy(bytes, 1, tmp, 0, 4);
-            int filePosition = ByteIntConverter.toInt(tmp);
-            System.arraycopy(bytes, 5, tmp, 0, 4);
-            int bytePosition = ByteIntConverter.toInt(tmp);
-            return new int[]{flag, filePosition, bytePosition};
+            return readCoordinate(hashing(key));
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * 读取分片的链表首节点坐标
+     *
+     * @param hashing 分片
+     * @return [是否存在，文件序号，字节序号]
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    private long[] readCoordinate(int hashing) throws FileStoreOutSizeException {
+        ByteBuffer bytes = ByteBuffer.wrap(store.read((long) hashing * itemSize, itemSize));
+        int flag = bytes.get(0);
+        if (flag == 0) {
+            return new long[]{flag, 0, 0};
+        }
+        int filePosition = bytes.getInt(1);
+        long bytePosition = pointerWidth == 8 ? bytes.getLong(5) : bytes.getInt(5);
+        return new long[]{flag, filePosition, bytePosition};
+    }
+
     /**
      * 写入key的链表首节点坐标
      *
@@ -87,16 +107,21 @@ public class FileMapHash {
      * @param filePosition 文件序号
      * @param bytePosition 字节序号
      */
-    protected synchronized void writeKeyCoordinate(byte[] key, int filePosition, int bytePosition) {
+    protected synchronized void writeKeyCoordinate(byte[] key, int filePosition, long bytePosition) {
         int hashing = hashing(key);
-        byte[] filePositionbytes = ByteIntConverter.toBytes(filePosition);
-        byte[] bytePositionbytes = ByteIntConverter.toBytes(bytePosition);
-        byte[] bytes = new byte[9];
-        bytes[0] = 1;
-        System.arraycopy(filePositionbytes, 0, bytes, 1, 4);
-        System.arraycopy(bytePositionbytes, 0, bytes, 5, 4);
+        ByteBuffer bytes = ByteBuffer.allocate(itemSize);
+        bytes.put(0, (byte) 1);
+        bytes.putInt(1, filePosition);
+        if (pointerWidth == 8) {
+            bytes.putLong(5, bytePosition);
+        } else {
+            if (bytePosition > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("bytePosition is too large for the old map format");
+            }
+            bytes.putInt(5, (int) bytePosition);
+        }
         try {
-            store.write(hashing * 9, bytes);
+            store.write((long) hashing * itemSize, bytes);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
@@ -110,7 +135,7 @@ public class FileMapHash {
     protected synchronized void removeKeyCoordinate(byte[] key) {
         int hashing = hashing(key);
         try {
-            store.write(hashing * 9, new byte[1]);
+            store.write((long) hashing * itemSize, new byte[1]);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
@@ -124,20 +149,13 @@ public class FileMapHash {
      */
     protected Map<Integer, Integer> loadFileCounts(Map<Integer, FileMapData> datas) {
         Map<Integer, Integer> files = new HashMap<>(10);
-        byte[] tmp = new byte[4];
         try {
             for (int i = 0; i < hashLength; i++) {
-                byte[] bytes;
-                bytes = store.read(i * 9, 9);
-                int flag = bytes[0];
-                if (flag == 0) {
+                long[] coordinate = readCoordinate(i);
+                if (coordinate[0] == 0) {
                     continue;
                 }
-                System.arraycopy(bytes, 1, tmp, 0, 4);
-                int filePosition = ByteIntConverter.toInt(tmp);
-                System.arraycopy(bytes, 5, tmp, 0, 4);
-                int bytePosition = ByteIntConverter.toInt(tmp);
-                findNext(datas, files, filePosition, bytePosition);
+                findNext(datas, files, (int) coordinate[1], coordinate[2]);
             }
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
@@ -153,18 +171,18 @@ public class FileMapHash {
      * @param filePosition 文件游标
      * @param bytePosition 字节游标
      */
-    private void findNext(Map<Integer, FileMapData> datas, Map<Integer, Integer> ccf, int filePosition, int bytePosition) {
+    private void findNext(Map<Integer, FileMapData> datas, Map<Integer, Integer> ccf, int filePosition, long bytePosition) {
         FileMapData data = datas.get(filePosition);
         if (data != null) {
             if (!ccf.containsKey(filePosition)) {
                 ccf.put(filePosition, 0);
             }
             ccf.put(filePosition, ccf.get(filePosition) + 1);
-            int[] ints = data.getNextIndex(bytePosition);
-            if (ints[0] == 0) {
+            long[] next = data.getNextIndex(bytePosition);
+            if (next[0] == 0) {
                 return;
             }
-            findNext(datas, ccf, ints[1], ints[2]);
+            findNext(datas, ccf, (int) next[1], next[2]);
         }
     }
 
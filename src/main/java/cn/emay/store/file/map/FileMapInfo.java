@@ -1,11 +1,15 @@
 package cn.emay.store.file.map;
 
 import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
 import cn.emay.store.file.util.ByteIntConverter;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -13,12 +17,55 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * FileMap 的 计数文件【定长文件】<br/>
  * <br/>
+ * v2(64):<br/>
+ * magic(4),version(4),pointerWidth(4),nowFileIndex(4),nowByteIndex(8),count(8),flags(4),reserved<br/>
+ * flags：1 正常关闭【数据文件、hash文件已刷盘，打开后清除；旧文件为0，视为非正常关闭】<br/>
+ * v1(12)【旧格式，打开时自动迁移为v2，数据文件与hash文件保持4字节游标】:<br/>
  * nowFileIndex(4),nowByteIndex(4),count(4)<br/>
  *
  * @author Frank
  */
 public class FileMapInfo {
 
+    /**
+     * 文件标识【EMC】
+     */
+    private static final int MAGIC = 0x454D4300;
+
+    /**
+     * 当前版本
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * v1文件长度
+     */
+    private static final int V1_FILE_SIZE = 12;
+
+    /**
+     * 旧格式数据文件、hash文件中的字节游标宽度
+     */
+    private static final int NARROW_POINTER = 4;
+
+    /**
+     * 新格式数据文件、hash文件中的字节游标宽度
+     */
+    private static final int WIDE_POINTER = 8;
+
+    /**
+     * 各字段位置
+     */
+    private static final int POINTER_WIDTH_POSITION = 8;
+    private static final int FILE_INDEX_POSITION = 12;
+    private static final int BYTE_INDEX_POSITION = 16;
+    private static final int COUNT_POSITION = 24;
+    private static final int FLAGS_POSITION = 32;
+
+    /**
+     * 正常关闭标记
+     */
+    private static final int CLEAN_FLAG = 1;
+
     /**
      * 当前文件编号
      */
@@ -27,12 +74,22 @@ public class FileMapInfo {
     /**
      * 当前数据编号
      */
-    private int nowByteIndex;
+    private long nowByteIndex;
 
     /**
      * 总数据量
      */
-    private int count;
+    private long count;
+
+    /**
+     * 数据文件、hash文件中的字节游标宽度
+     */
+    private final int pointerWidth;
+
+    /**
+     * 上次是否正常关闭
+     */
+    private boolean cleanShutdown;
 
     /**
      * 文件数据量
@@ -52,48 +109,118 @@ public class FileMapInfo {
     /**
      * 默认文件长度
      */
-    private final static int fileSize = 12;
+    private final static int fileSize = 64;
 
     /**
-     * @param mapDirPath Map的路径
+     * @param mapDirPath  Map的路径
+     * @param storageType 存储后端类型
      * @throws IOException IO异常
      */
-    protected FileMapInfo(String mapDirPath) throws IOException {
+    protected FileMapInfo(String mapDirPath, StorageType storageType) throws IOException {
         File file = new File(mapDirPath + File.separator + FILE_NAME);
-        store = new FileStoreItem(file, fileSize);
+        if (storageType.isPersistent() && file.exists() && file.length() == V1_FILE_SIZE) {
+            migrateV1(file);
+        }
+        store = new FileStoreItem(file, fileSize, storageType);
         try {
-            int begin = 0;
-            byte[] bytes = store.read(0, 12);
-            byte[] tmp = new byte[4];
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.nowFileIndex = ByteIntConverter.toInt(tmp);
-            begin += 4;
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.nowByteIndex = ByteIntConverter.toInt(tmp);
-            begin += 4;
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.count = ByteIntConverter.toInt(tmp);
+            ByteBuffer bytes = ByteBuffer.wrap(store.read(0, fileSize));
+            int magic = bytes.getInt(0);
+            if (magic == 0) {
+                this.pointerWidth = WIDE_POINTER;
+                writeHead();
+                return;
+            }
+            if (magic != MAGIC || bytes.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("unknown map info file format : " + file.getAbsolutePath());
+            }
+            this.pointerWidth = bytes.getInt(POINTER_WIDTH_POSITION);
+            this.nowFileIndex = bytes.getInt(FILE_INDEX_POSITION);
+            this.nowByteIndex = bytes.getLong(BYTE_INDEX_POSITION);
+            this.count = bytes.getLong(COUNT_POSITION);
+            this.cleanShutdown = (bytes.getInt(FLAGS_POSITION) & CLEAN_FLAG) != 0;
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
     /**
-     * 增加数据文件
+     * v1格式迁移为v2格式：写入临时文件后替换，迁移中断不影响原文件
+     *
+     * @param file v1计数文件
+     * @throws IOException IO异常
      */
-    protected void addFile() {
-        this.nowFileIndex++;
-        this.nowByteIndex = 0;
-        byte[] nowFileIndexBytes = ByteIntConverter.toBytes(nowFileIndex);
-        byte[] nowByteIndexBytes = ByteIntConverter.toBytes(nowByteIndex);
-        byte[] incom = new byte[8];
-        System.arraycopy(nowFileIndexBytes, 0, incom, 0, 4);
-        System.arraycopy(nowByteIndexBytes, 0, incom, 4, 4);
+    private static void migrateV1(File file) throws IOException {
+        FileStoreItem v1 = new FileStoreItem(file, V1_FILE_SIZE);
+        byte[] bytes;
+        try {
+            bytes = v1.read(0, V1_FILE_SIZE);
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            v1.close();
+        }
+        byte[] tmp = new byte[4];
+        System.arraycopy(bytes, 0, tmp, 0, 4);
+        int nowFileIndex = ByteIntConverter.toInt(tmp);
+        System.arraycopy(bytes, 4, tmp, 0, 4);
+        int nowByteIndex = ByteIntConverter.toInt(tmp);
+        System.arraycopy(bytes, 8, tmp, 0, 4);
+        int count = ByteIntConverter.toInt(tmp);
+        ByteBuffer v2 = ByteBuffer.allocate(fileSize);
+        v2.putInt(0, MAGIC);
+        v2.putInt(4, VERSION);
+        v2.putInt(POINTER_WIDTH_POSITION, NARROW_POINTER);
+        v2.putInt(FILE_INDEX_POSITION, nowFileIndex);
+        v2.putLong(BYTE_INDEX_POSITION, nowByteIndex & 0xFFFFFFFFL);
+        v2.putLong(COUNT_POSITION, count);
+        File tmpFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        FileStoreItem store = new FileStoreItem(tmpFile, fileSize);
+        try {
+            store.write(0, v2);
+            store.sync();
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            store.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 写入文件头
+     */
+    private void writeHead() {
+        ByteBuffer bytes = ByteBuffer.allocate(12);
+        bytes.putInt(0, MAGIC);
+        bytes.putInt(4, VERSION);
+        bytes.putInt(POINTER_WIDTH_POSITION, pointerWidth);
+        write(0, bytes);
+    }
+
+    /**
+     * 写入
+     *
+     * @param position 位置
+     * @param bytes    数据
+     */
+    private void write(int position, ByteBuffer bytes) {
         try {
-            store.write(0, incom);
+            store.write(position, bytes);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
+    }
+
+    /**
+     * 增加数据文件
+     */
+    protected void addFile() {
+        this.nowFileIndex++;
+        this.nowByteIndex = 0;
+        ByteBuffer bytes = ByteBuffer.allocate(12);
+        bytes.putInt(0, nowFileIndex);
+        bytes.putLong(4, nowByteIndex);
+        write(FILE_INDEX_POSITION, bytes);
         fileCounts.put(this.nowFileIndex, 0);
     }
 
@@ -103,18 +230,11 @@ public class FileMapInfo {
     protected synchronized void add(int length) {
         count++;
         this.nowByteIndex += length;
-        byte[] nowFileIndexBytes = ByteIntConverter.toBytes(nowFileIndex);
-        byte[] nowByteIndexBytes = ByteIntConverter.toBytes(nowByteIndex);
-        byte[] countBytes = ByteIntConverter.toBytes(count);
-        byte[] incom = new byte[fileSize];
-        System.arraycopy(nowFileIndexBytes, 0, incom, 0, 4);
-        System.arraycopy(nowByteIndexBytes, 0, incom, 4, 4);
-        System.arraycopy(countBytes, 0, incom, 8, 4);
-        try {
-            store.write(0, incom);
-        } catch (FileStoreOutSizeException e) {
-            throw new IllegalArgumentException(e);
-        }
+        ByteBuffer bytes = ByteBuffer.allocate(20);
+        bytes.putInt(0, nowFileIndex);
+        bytes.putLong(4, nowByteIndex);
+        bytes.putLong(12, count);
+        write(FILE_INDEX_POSITION, bytes);
         if (!fileCounts.containsKey(this.nowFileIndex)) {
             fileCounts.put(this.nowFileIndex, 0);
         } else {
@@ -122,6 +242,21 @@ public class FileMapInfo {
         }
     }
 
+    /**
+     * 恢复扫描后修正当前数据文件的写入游标
+     *
+     * @param nowByteIndex 有效数据的结束游标
+     */
+    protected synchronized void recover(long nowByteIndex) {
+        if (this.nowByteIndex == nowByteIndex) {
+            return;
+        }
+        this.nowByteIndex = nowByteIndex;
+        ByteBuffer bytes = ByteBuffer.allocate(8);
+        bytes.putLong(0, nowByteIndex);
+        write(BYTE_INDEX_POSITION, bytes);
+    }
+
     /**
      * 数据量减一
      *
@@ -129,12 +264,9 @@ public class FileMapInfo {
      */
     protected synchronized void remove(int fileIndex) {
         count--;
-        byte[] countBytes = ByteIntConverter.toBytes(count);
-        try {
-            store.write(8, countBytes);
-        } catch (FileStoreOutSizeException e) {
-            throw new IllegalArgumentException(e);
-        }
+        ByteBuffer bytes = ByteBuffer.allocate(8);
+        bytes.putLong(0, count);
+        write(COUNT_POSITION, bytes);
         if (!fileCounts.containsKey(fileIndex)) {
             fileCounts.put(fileIndex, 0);
         } else {
@@ -147,7 +279,7 @@ public class FileMapInfo {
      *
      * @return map总大小
      */
-    protected int getCount() {
+    protected long getCount() {
         return count;
     }
 
@@ -174,7 +306,7 @@ public class FileMapInfo {
      */
     protected synchronized void setFileCounts(Map<Integer, Integer> fileCounts) {
         this.fileCounts = fileCounts;
-        int total = 0;
+        long total = 0;
         for (Entry<Integer, Integer> s : fileCounts.entrySet()) {
             total += s.getValue();
         }
@@ -195,14 +327,58 @@ public class FileMapInfo {
      *
      * @return 当前数据编号
      */
-    protected synchronized int getNowByteIndex() {
+    protected synchronized long getNowByteIndex() {
         return nowByteIndex;
     }
 
     /**
-     * 关闭
+     * 数据文件、hash文件是否使用8字节游标【旧格式为4字节，单数据文件不能超过2G】
+     *
+     * @return 是否8字节游标
+     */
+    protected boolean isWidePointer() {
+        return pointerWidth == WIDE_POINTER;
+    }
+
+    /**
+     * 上次是否正常关闭【正常关闭时数据文件已刷盘，恢复扫描不检查数据结束后残留的内容】
+     *
+     * @return 是否正常关闭
+     */
+    protected boolean isCleanShutdown() {
+        return cleanShutdown;
+    }
+
+    /**
+     * 写入标记
+     *
+     * @param flags 标记
+     */
+    private void writeFlags(int flags) {
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        bytes.putInt(0, flags);
+        write(FLAGS_POSITION, bytes);
+    }
+
+    /**
+     * 打开完成：清除正常关闭标记并刷盘，之后崩溃时恢复扫描仍检查数据结束后残留的内容
+     */
+    protected synchronized void markOpened() {
+        if (cleanShutdown) {
+            this.cleanShutdown = false;
+            writeFlags(0);
+            store.sync();
+        }
+    }
+
+    /**
+     * 关闭【数据文件、hash文件刷盘后调用，写入正常关闭标记并刷盘】
      */
     protected synchronized void close() {
+        if (!store.isClosed()) {
+            writeFlags(CLEAN_FLAG);
+            store.sync();
+        }
         store.close();
     }
 
@@ -15,7 +15,7 @@ public class MapKeyData {
     /**
      * 值起始坐标
      */
-    private int valuePosition;
+    private long valuePosition;
 
     /**
      * 值长度
@@ -35,7 +35,7 @@ public class MapKeyData {
     /**
      * 下一个节点游标
      */
-    private int nextBytePosition;
+    private long nextBytePosition;
 
     /**
      * @param key              键
@@ -45,7 +45,7 @@ public class MapKeyData {
      * @param nextFilePosition 下一个节点文件编号
      * @param nextBytePosition 下一个节点游标
      */
-    public MapKeyData(byte[] key, int valuePosition, int valueLength, boolean hasNext, int nextFilePosition, int nextBytePosition) {
+    public MapKeyData(byte[] key, long valuePosition, int valueLength, boolean hasNext, int nextFilePosition, long nextBytePosition) {
         this.key = key;
         this.valuePosition = valuePosition;
         this.valueLength = valueLength;
@@ -70,11 +70,11 @@ public class MapKeyData {
         this.nextFilePosition = nextFilePosition;
     }
 
-    public int getNextBytePosition() {
+    public long getNextBytePosition() {
         return nextBytePosition;
     }
 
-    public void setNextBytePosition(int nextBytePosition) {
+    public void setNextBytePosition(long nextBytePosition) {
         this.nextBytePosition = nextBytePosition;
     }
 
@@ -86,11 +86,11 @@ public class MapKeyData {
         this.hasNext = hasNext;
     }
 
-    public int getValuePosition() {
+    public long getValuePosition() {
         return valuePosition;
     }
 
-    public void setValuePosition(int valuePosition) {
+    public void setValuePosition(long valuePosition) {
         this.valuePosition = valuePosition;
     }
 
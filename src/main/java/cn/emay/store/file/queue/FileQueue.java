@@ -1,20 +1,36 @@
 package cn.emay.store.file.queue;
 
+import cn.emay.store.file.core.DurabilityController;
+import cn.emay.store.file.core.DurabilityPolicy;
+import cn.emay.store.file.core.FileStoreAllocator;
+import cn.emay.store.file.core.MappingBudget;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreClosedException;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 文件队列<br/>
+ * 生产者与消费者分别加锁(写锁、读锁)，写入游标与读取游标互不影响，以原子计数判断队列是否为空；<br/>
+ * 多生产者模式下生产者不加写锁：原子预留写入区域，并行拷贝数据，按预留顺序提交后计数，只有切换数据文件时加写锁；<br/>
  *
  * @author Frank
  */
@@ -24,10 +40,22 @@ public class FileQueue implements Closeable {
      * 默认数据文件长度【10m】
      */
     protected final static int DEFAULT_FILE_SIZE = 1024 * 1024 * 10;
+    /**
+     * 预读任务队列大小
+     */
+    private final static int PREFETCH_QUEUE_SIZE = 16;
+    /**
+     * 多生产者等待时的自旋次数，超过后休眠等待
+     */
+    private final static int MAX_SPINS = 64;
+    /**
+     * 多生产者等待时每次休眠的时间，纳秒
+     */
+    private final static long PARK_NANOS = 10000L;
     /**
      * 数据文件
      */
-    private final Map<Integer, FileQueueData> datas = new ConcurrentHashMap<>();
+    private final Map<Long, FileQueueData> datas = new ConcurrentHashMap<>();
     /**
      * 统计文件
      */
@@ -35,11 +63,39 @@ public class FileQueue implements Closeable {
     /**
      * 是否关闭
      */
-    private boolean isClose;
+    private volatile boolean isClose;
+    /**
+     * 写锁【生产者】
+     */
+    private final ReentrantLock putLock = new ReentrantLock();
+    /**
+     * 默认消费者【读取游标保存在计数文件中】
+     */
+    private final FileQueueConsumer consumer;
+    /**
+     * 消费组
+     */
+    private final Map<String, FileQueueConsumer> groups = new ConcurrentHashMap<>();
+    /**
+     * 是否多生产者模式
+     */
+    private final boolean multiProducer;
+    /**
+     * 确认消费模式的投递窗口大小
+     */
+    private final int maxInFlight;
+    /**
+     * 确认消费模式的确认超时时间，毫秒
+     */
+    private final long ackTimeoutMills;
+    /**
+     * 多生产者模式下当前写入的数据文件
+     */
+    private volatile FileQueueData appending;
     /**
      * 文件大小
      */
-    private int oneDataFileSize = DEFAULT_FILE_SIZE;
+    private long oneDataFileSize = DEFAULT_FILE_SIZE;
     /**
      * 路径
      */
@@ -48,14 +104,62 @@ public class FileQueue implements Closeable {
      * 已经消费的数据，保留时间
      */
     private final long usedDataExpiryMill;
+    /**
+     * 过期的已消费文件是否回收复用
+     */
+    private final boolean recycleUsedData;
+    /**
+     * 存储后端类型
+     */
+    private final StorageType storageType;
+    /**
+     * 数据文件的映射预算
+     */
+    private final MappingBudget mappingBudget;
     /**
      * 已经消费完的文件序号
      */
-    private final TreeMap<Integer, File> oldList = new TreeMap<>();
+    private final TreeMap<Long, File> oldList = new TreeMap<>();
+    /**
+     * 清理锁：按时间回放、按序号读取与移动游标查找数据文件时持有读锁，清理与关闭数据文件持有写锁
+     */
+    private final ReentrantReadWriteLock retireLock = new ReentrantReadWriteLock();
+    /**
+     * 已清理的最大文件编号【之后到写入文件之间的数据文件未被清理，延迟加载时按需打开】
+     */
+    private volatile long retiredFileIndex;
+    /**
+     * 是否延迟加载数据文件【只对持久化存储生效，存在没有索引的旧版本数据文件时不生效】
+     */
+    private boolean lazyLoad;
+    /**
+     * 延迟加载模式下，读取游标之后保持打开的数据文件数量
+     */
+    private final int readAheadFiles;
+    /**
+     * 预读数据量【字节，小于等于0不预读】
+     */
+    private final long prefetchBytes;
+    /**
+     * 预读线程【任务积压时丢弃最早的预读任务】
+     */
+    private ThreadPoolExecutor prefetcher;
+    /**
+     * 异步写入【为null时同步写入】
+     */
+    private final FileQueueWriteBehind writeBehind;
     /**
      * 清理线程
      */
     private ScheduledExecutorService executorService;
+    /**
+     * 持久化控制
+     */
+    private final DurabilityController durability;
+    /**
+     * 数据文件预分配
+     */
+    private final FileStoreAllocator allocator;
 
     /**
      * 构造方法：开启启动检查、10M一个数据文件、30秒刷盘时间间隔、已消费数据不保留
@@ -63,34 +167,89 @@ public class FileQueue implements Closeable {
      * @param queueDirPath 队列文件夹位置
      */
     public FileQueue(String queueDirPath) {
-        this(queueDirPath, 30, DEFAULT_FILE_SIZE, -1);
+        this(queueDirPath, new FileQueueConfig());
     }
 
     /**
      * @param queueDirPath         队列文件夹位置
      * @param cleanUpPeriodSecond  刷盘时间间隔，秒，小于等于0则不主动落盘
-     * @param oneDataFileSize      单数据文件大小【堆积数据越多，单数据请设置越大，不要超过1G】
+     * @param oneDataFileSize      单数据文件大小【堆积数据越多，单数据请设置越大】
      * @param usedDataExpirySecond 已经消费的数据，保留时间
      */
     public FileQueue(String queueDirPath, int cleanUpPeriodSecond, int oneDataFileSize, int usedDataExpirySecond) {
+        this(queueDirPath, toConfig(cleanUpPeriodSecond, oneDataFileSize, usedDataExpirySecond));
+    }
+
+    /**
+     * @param queueDirPath 队列文件夹位置
+     * @param config       配置
+     */
+    public FileQueue(String queueDirPath, FileQueueConfig config) {
         this.queueDirPath = queueDirPath;
-        if (oneDataFileSize > DEFAULT_FILE_SIZE) {
-            this.oneDataFileSize = oneDataFileSize;
+        if (config.getOneDataFileSize() > DEFAULT_FILE_SIZE) {
+            this.oneDataFileSize = config.getOneDataFileSize();
+        }
+        this.usedDataExpiryMill = config.getUsedDataExpirySecond() * 1000L;
+        this.recycleUsedData = config.isRecycleUsedData();
+        this.multiProducer = config.isMultiProducer();
+        if (config.getMaxInFlight() <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be bigger than 0");
         }
-        this.usedDataExpiryMill = usedDataExpirySecond * 1000L;
+        this.maxInFlight = config.getMaxInFlight();
+        this.ackTimeoutMills = config.getAckTimeoutSecond() * 1000L;
+        this.storageType = config.getStorageType();
+        this.mappingBudget = config.getMappingBudget();
+        this.lazyLoad = config.isLazyLoad() && storageType.isPersistent();
+        this.readAheadFiles = Math.max(0, config.getReadAheadFiles());
+        this.prefetchBytes = storageType.isPersistent() ? Math.max(0, config.getPrefetchBytes()) : 0;
+        int cleanUpPeriodSecond = config.getCleanUpPeriodSecond();
+        this.allocator = new FileStoreAllocator(config.isPreAllocate(), config.isPreTouch(), storageType, mappingBudget, config.getRecycleMaxFiles());
         try {
             File dir = loadDir(queueDirPath);
-            info = new FileQueueInfo(queueDirPath);
+            info = new FileQueueInfo(queueDirPath, storageType);
+            consumer = new FileQueueConsumer(this, info, maxInFlight, ackTimeoutMills);
+            loadGroups(dir);
             loadDataFiles(dir);
+            if (lazyLoad) {
+                recoverLazily();
+            } else {
+                recover();
+                loadSequences();
+            }
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
+        checkpoint();
+        info.markOpened();
+        prepareNextFile();
         this.isClose = false;
-        if (cleanUpPeriodSecond > 0) {
+        this.durability = new DurabilityController(config.getDurabilityPolicy(), this::syncFiles);
+        this.writeBehind = config.isWriteBehind() ? new FileQueueWriteBehind(this, config.getWriteBehindCapacity(), config.getWriteBehindFlushMills()) : null;
+        if (prefetchBytes > 0) {
+            prefetcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(PREFETCH_QUEUE_SIZE), new ThreadPoolExecutor.DiscardOldestPolicy());
+        }
+        int checkpointPeriodMills = config.getCheckpointPeriodMills();
+        if (cleanUpPeriodSecond > 0 || checkpointPeriodMills > 0) {
             executorService = Executors.newScheduledThreadPool(1);
+        }
+        if (cleanUpPeriodSecond > 0) {
             executorService.scheduleWithFixedDelay(this::sync, cleanUpPeriodSecond, cleanUpPeriodSecond, TimeUnit.SECONDS);
 //            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
         }
+        if (checkpointPeriodMills > 0) {
+            executorService.scheduleWithFixedDelay(this::periodicCheckpoint, checkpointPeriodMills, checkpointPeriodMills, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 旧构造参数转换为配置
+     */
+    private static FileQueueConfig toConfig(int cleanUpPeriodSecond, int oneDataFileSize, int usedDataExpirySecond) {
+        FileQueueConfig config = new FileQueueConfig();
+        config.setCleanUpPeriodSecond(cleanUpPeriodSecond);
+        config.setOneDataFileSize(oneDataFileSize);
+        config.setUsedDataExpirySecond(usedDataExpirySecond);
+        return config;
     }
 
     /**
@@ -111,6 +270,61 @@ public class FileQueue implements Closeable {
         return folder;
     }
 
+    /**
+     * 加载消费组
+     *
+     * @param dir 文件夹
+     * @throws IOException IO异常
+     */
+    private void loadGroups(File dir) throws IOException {
+        File[] fileList = dir.listFiles((dir1, name) -> name.endsWith(FileQueueGroupInfo.END_FILE_NAME));
+        if (fileList == null) {
+            return;
+        }
+        for (File file : fileList) {
+            FileQueueGroupInfo groupInfo = new FileQueueGroupInfo(file, storageType);
+            groups.put(groupInfo.getName(), new FileQueueConsumer(this, groupInfo, maxInFlight, ackTimeoutMills));
+        }
+    }
+
+    /**
+     * 所有消费者(默认消费者与消费组)中最小的读取文件编号【小于该编号的数据文件已被全部消费】<br/>
+     * 只使用消费组时，从未使用的默认消费者不参与计算
+     *
+     * @return 文件编号
+     */
+    private long minReadFileIndex() {
+        long min = retainsDefault() ? info.getNowReadFileIndex() : Long.MAX_VALUE;
+        for (FileQueueConsumer group : groups.values()) {
+            min = Math.min(min, group.getCursor().getNowReadFileIndex());
+        }
+        return min;
+    }
+
+    /**
+     * 默认消费者是否阻止清理数据文件【没有消费组、或默认消费者使用过时阻止】
+     *
+     * @return 是否阻止
+     */
+    private boolean retainsDefault() {
+        return groups.isEmpty() || info.isConsumed();
+    }
+
+    /**
+     * 默认消费者【使用时标记，之后参与数据文件的保留】
+     *
+     * @return 默认消费者
+     */
+    private FileQueueConsumer defaultConsumer() {
+        FileQueueInfo queueInfo = info;
+        if (queueInfo == null) {
+            // 已删除
+            throw new FileStoreClosedException();
+        }
+        queueInfo.markConsumed();
+        return consumer;
+    }
+
     /**
      * 加载数据文件
      *
@@ -124,225 +338,1666 @@ public class FileQueue implements Closeable {
         }
         Arrays.sort(fileList, (o1, o2) -> {
             try {
-                int index1 = Integer.parseInt(o1.getName().replace(FileQueueData.END_FILE_NAME, ""));
-                int index2 = Integer.parseInt(o2.getName().replace(FileQueueData.END_FILE_NAME, ""));
+                long index1 = Long.parseLong(o1.getName().replace(FileQueueData.END_FILE_NAME, ""));
+                long index2 = Long.parseLong(o2.getName().replace(FileQueueData.END_FILE_NAME, ""));
                 return index1 > index2 ? 1 : -1;
             } catch (Exception e) {
                 return 0;
             }
         });
+        // 检查点之后新建并写入了数据的文件【预分配与回收的文件在使用前为全0】
+        for (File file : fileList) {
+            long index;
+            try {
+                index = Long.parseLong(file.getName().replace(FileQueueData.END_FILE_NAME, ""));
+            } catch (Exception e) {
+                continue;
+            }
+            if (index > info.getNowWriteFileIndex() && hasData(file)) {
+                info.recoverWriteFile(index);
+            }
+        }
+        long minReadFileIndex = minReadFileIndex();
+        this.retiredFileIndex = minReadFileIndex - 1;
+        if (lazyLoad && FileQueueData.dataFile(queueDirPath, minReadFileIndex).exists() && !FileQueueIndex.isValid(FileQueueData.dataFile(queueDirPath, minReadFileIndex))) {
+            // 旧版本数据文件没有索引，需要从头接续序号，本次启动全部加载
+            this.lazyLoad = false;
+        }
         for (File file : fileList) {
-            int index;
+            long index;
             try {
-                index = Integer.parseInt(file.getName().replace(FileQueueData.END_FILE_NAME, ""));
+                index = Long.parseLong(file.getName().replace(FileQueueData.END_FILE_NAME, ""));
             } catch (Exception e) {
                 continue;
             }
-            if (index < info.getNowReadFileIndex()) {
+            if (index == info.getNowWriteFileIndex() + 1) {
+                // 预分配尚未使用的文件，交给预分配器
+                allocator.prepare(file, oneDataFileSize);
+            } else if (index < minReadFileIndex) {
                 oldList.put(index, file);
+            } else if (lazyLoad && index != info.getNowWriteFileIndex() && !isReading(index)) {
+                // 延迟加载：只记录文件编号，读到时再打开
+                continue;
             } else {
-                FileQueueData data = new FileQueueData(queueDirPath, oneDataFileSize, index);
+                FileQueueData data = new FileQueueData(queueDirPath, oneDataFileSize, index, storageType, mappingBudget);
                 datas.put(index, data);
             }
         }
     }
 
     /**
-     * 同步逻辑
+     * 是否有消费者正在读取该数据文件
+     *
+     * @param index 文件编号
+     * @return 是否正在读取
      */
-    public void sync() {
-        if (isClose) {
-            return;
-        }
-        Map<Integer, File> olds = new HashMap<>();
-        for (Integer index : datas.keySet()) {
-            if (index < info.getNowReadFileIndex()) {
-                olds.put(index, datas.get(index).getFile());
-            }
-        }
-        for (Integer index : olds.keySet()) {
-            FileQueueData data = datas.get(index);
-            if (data != null) {
-                datas.remove(index);
-                data.close();
-            }
-        }
-        oldList.putAll(olds);
-
-        List<Integer> deleteList = new ArrayList<>();
-        for (Integer index : oldList.keySet()) {
-            if (System.currentTimeMillis() - oldList.get(index).lastModified() > usedDataExpiryMill) {
-                deleteList.add(index);
-            }
+    private boolean isReading(long index) {
+        if (info.getNowReadFileIndex() == index) {
+            return true;
         }
-        for (Integer index : deleteList) {
-            File data = oldList.get(index);
-            if (data != null && data.exists()) {
-                boolean isDelete = false;
-                try {
-                    isDelete = data.delete();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                if (isDelete) {
-                    oldList.remove(index);
-                }
+        for (FileQueueConsumer group : groups.values()) {
+            if (group.getCursor().getNowReadFileIndex() == index) {
+                return true;
             }
         }
+        return false;
+    }
 
-        info.sync();
-        for (FileQueueData fmd : datas.values()) {
-            fmd.sync();
+    /**
+     * 数据文件中是否有数据
+     *
+     * @param file 数据文件
+     * @return 第一条记录的头信息不为0
+     * @throws IOException IO异常
+     */
+    private static boolean hasData(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.length() >= 4 && raf.readInt() != 0;
         }
     }
 
     /**
-     * 关闭
+     * 启动恢复：顺序扫描未消费的数据文件，按记录校验值截断损坏的尾部，<br/>
+     * 以数据文件为准校正计数文件中的写入游标与总数，并重新计算各消费组的数据量
      */
-    @Override
-    public synchronized void close() {
-        if (isClose) {
-            return;
-        }
-//        sync();
-        if (executorService != null) {
-            executorService.shutdown();
+    private void recover() {
+        long[] result = scan(info.getNowReadFileIndex(), info.getNowReadByteIndex());
+        if (result[0] >= 0) {
+            info.recover(result[0], result[1]);
+        } else {
+            info.updateCount(result[1]);
         }
-        info.close();
-        for (FileQueueData fmd : datas.values()) {
-            fmd.close();
+        for (FileQueueConsumer group : groups.values()) {
+            FileQueueCursor cursor = group.getCursor();
+            cursor.updateCount(scan(cursor.getNowReadFileIndex(), cursor.getNowReadByteIndex())[1]);
         }
-        isClose = true;
     }
 
     /**
-     * 删除
+     * 延迟加载模式的启动恢复：只扫描正在写入的数据文件，按记录校验值截断损坏的尾部；<br/>
+     * 已打开的数据文件按索引加载序号，各消费者的数据量由下一条写入数据的序号与读取位置的序号相减得到，<br/>
+     * 启动时间与堆积的数据量无关；写入文件之前的数据文件在切换写入文件时已写完，不再校验
+     *
+     * @throws IOException IO异常
      */
-    public synchronized void delete() {
-        this.close();
-        info.delete();
-        for (FileQueueData fmd : datas.values()) {
-            fmd.delete();
+    private void recoverLazily() throws IOException {
+        long writeIndex = info.getNowWriteFileIndex();
+        FileQueueData write = datas.get(writeIndex);
+        if (write != null) {
+            info.recover(write.recover(0, info.getNowWriteByteIndex(), !info.isCleanShutdown())[0], 0);
         }
-        for (File file : oldList.values()) {
-            file.delete();
+        for (Long index : new TreeSet<>(datas.keySet())) {
+            datas.get(index).loadSequence(previousNextSequence(index), index == writeIndex ? info.getNowWriteByteIndex() : Long.MAX_VALUE);
+        }
+        info.updateCount(unconsumed(info));
+        for (FileQueueConsumer group : groups.values()) {
+            group.getCursor().updateCount(unconsumed(group.getCursor()));
+        }
+        readAhead(info.getNowReadFileIndex());
+        for (FileQueueConsumer group : groups.values()) {
+            readAhead(group.getCursor().getNowReadFileIndex());
         }
-        datas.clear();
-        oldList.clear();
-        info = null;
-        new File(queueDirPath).delete();
     }
 
     /**
-     * 检测关闭
+     * 前一个数据文件的下一条数据序号【数据文件没有有效索引时接续前一个数据文件的序号】
+     *
+     * @param index 文件编号
+     * @return 序号，不需要或不存在前一个数据文件时为-1
+     * @throws IOException IO异常
      */
-    private void assertFileClosed() {
-        if (isClose) {
-            throw new FileStoreClosedException();
+    private long previousNextSequence(long index) throws IOException {
+        if (index <= retiredFileIndex + 1 || FileQueueIndex.isValid(FileQueueData.dataFile(queueDirPath, index))) {
+            return -1;
         }
+        FileQueueData previous = getData(index - 1);
+        return previous == null ? -1 : previous.getNextSequence();
     }
 
     /**
-     * 创建新的数据文件
+     * 按序号计算消费者未消费的数据量
      *
-     * @return 数据文件
-     * @throws IOException IO异常
+     * @param cursor 读取游标
+     * @return 数据量
      */
-    private synchronized FileQueueData createFileQueueData() throws IOException {
-        info.addFile();
-        FileQueueData data = new FileQueueData(queueDirPath, oneDataFileSize, info.getNowWriteFileIndex());
-        datas.put(info.getNowWriteFileIndex(), data);
-        return data;
+    private long unconsumed(FileQueueCursor cursor) {
+        long next = getNextSequence();
+        long readIndex = cursor.getNowReadFileIndex();
+        for (long index = readIndex; index <= info.getNowWriteFileIndex(); index++) {
+            FileQueueData fmd = getData(index);
+            if (fmd != null) {
+                long sequence = index == readIndex ? fmd.sequenceOf(cursor.getNowReadByteIndex()) : fmd.getBaseSequence();
+                return Math.max(0, next - sequence);
+            }
+        }
+        return 0;
     }
 
     /**
-     * 队列大小
-     *
-     * @return 队列大小
+     * 加载各数据文件的序号：按文件编号顺序，没有索引的数据文件接续前一个数据文件的序号并重建索引，<br/>
+     * 正在写入的数据文件在恢复时可能被截断，只保留恢复后写入游标之前的索引项
      */
-    public int size() {
-        return info.getCount();
+    private void loadSequences() {
+        long next = -1;
+        for (Long index : new TreeSet<>(datas.keySet())) {
+            long end = index == info.getNowWriteFileIndex() ? info.getNowWriteByteIndex() : Long.MAX_VALUE;
+            next = datas.get(index).loadSequence(next, end);
+        }
     }
 
     /**
-     * 压入数据
+     * 从读取位置开始扫描到写入位置
      *
-     * @param value 数据
+     * @param readIndex     读取的文件编号
+     * @param readByteIndex 读取的数据游标
+     * @return [写入文件中有效数据的结束游标(写入文件不存在时为-1), 有效记录数]
      */
-    public synchronized void offer(String value) {
-        if (value == null) {
-            return;
+    private long[] scan(long readIndex, long readByteIndex) {
+        long writeIndex = info.getNowWriteFileIndex();
+        long count = 0;
+        for (long index = readIndex; index <= writeIndex; index++) {
+            FileQueueData data = datas.get(index);
+            if (data == null) {
+                continue;
+            }
+            long begin = index == readIndex ? readByteIndex : 0;
+            long trustedEnd = index == writeIndex ? info.getNowWriteByteIndex() : Long.MAX_VALUE;
+            long[] result = data.recover(begin, trustedEnd, !info.isCleanShutdown());
+            count += result[1];
+            if (index == writeIndex) {
+                return new long[]{result[0], count};
+            }
         }
-        byte[] bytes;
-        bytes = value.getBytes(StandardCharsets.UTF_8);
-        offerBytes(bytes);
+        return new long[]{-1, count};
     }
 
     /**
-     * 压入数据
-     *
-     * @param value 数据
+     * 同步逻辑
      */
-    public synchronized void offerBytes(byte[] value) {
-        assertFileClosed();
-        if (value == null || value.length == 0) {
+    public void sync() {
+        if (isClose) {
+            return;
+        }
+        // 按时间回放期间不清理数据文件
+        if (!retireLock.writeLock().tryLock()) {
+            syncFiles();
             return;
         }
-        FileQueueData fmd = datas.get(info.getNowWriteFileIndex());
         try {
-            if (fmd == null) {
-                fmd = createFileQueueData();
+            if (isClose) {
+                return;
             }
-            fmd.write(info.getNowWriteByteIndex(), value);
-            info.add(value.length);
-        } catch (IOException e) {
-            throw new IllegalArgumentException(e);
-        } catch (FileStoreOutSizeException e) {
+            retire();
+        } finally {
+            retireLock.writeLock().unlock();
+        }
+        if (recycleUsedData) {
+            putLock.lock();
             try {
-                createFileQueueData();
-            } catch (IOException e1) {
-                throw new IllegalArgumentException(e1);
+                prepareNextFile();
+            } finally {
+                putLock.unlock();
             }
-            offerBytes(value);
         }
+
+        syncFiles();
     }
 
     /**
-     * 弹出数据
-     *
-     * @return 数据
+     * 清理已被所有消费者读完的数据文件：关闭后转为历史文件，历史文件过期后删除或回收
      */
-    public synchronized String poll() {
-        byte[] bytes = pollBytes();
-        if (bytes == null) {
-            return null;
+    private void retire() {
+        // 清理前写入检查点，保证计数文件中的读取游标不会指向被删除的数据文件
+        checkpoint();
+        Map<Long, File> olds = new HashMap<>();
+        // 跟随清理移动默认消费者的游标时与生产者互斥
+        putLock.lock();
+        try {
+            long minReadFileIndex = minReadFileIndex();
+            if (!retainsDefault()) {
+                skipDefault(minReadFileIndex);
+            }
+            for (Long index : datas.keySet()) {
+                if (index < minReadFileIndex) {
+                    olds.put(index, datas.get(index).getFile());
+                }
+            }
+            // 延迟加载时未打开过的数据文件
+            for (long index = retiredFileIndex + 1; index < minReadFileIndex; index++) {
+                File file = FileQueueData.dataFile(queueDirPath, index);
+                if (!olds.containsKey(index) && file.exists()) {
+                    olds.put(index, file);
+                }
+            }
+            retiredFileIndex = Math.max(retiredFileIndex, minReadFileIndex - 1);
+            for (Long index : olds.keySet()) {
+                FileQueueData data = datas.get(index);
+                if (data != null) {
+                    datas.remove(index);
+                    data.close();
+                }
+            }
+        } finally {
+            putLock.unlock();
+        }
+        oldList.putAll(olds);
+        if (lazyLoad) {
+            closeIdle();
+        }
+
+        List<Long> deleteList = new ArrayList<>();
+        for (Long index : oldList.keySet()) {
+            if (System.currentTimeMillis() - oldList.get(index).lastModified() > usedDataExpiryMill) {
+                deleteList.add(index);
+            }
+        }
+        for (Long index : deleteList) {
+            File data = oldList.get(index);
+            if (data == null || !data.exists()) {
+                // 内存存储没有文件，或文件已被外部删除
+                oldList.remove(index);
+                continue;
+            }
+            FileQueueIndex.indexFile(data).delete();
+            if (recycleUsedData && allocator.recycle(data)) {
+                oldList.remove(index);
+                continue;
+            }
+            boolean isDelete = false;
+            try {
+                isDelete = data.delete();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (isDelete) {
+                oldList.remove(index);
+            }
         }
-        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /**
-     * 弹出数据
+     * 未使用的默认消费者跟随清理移动读取游标，之后创建的消费组从保留的数据开始【调用方持有写锁】
      *
-     * @return 数据
+     * @param minReadFileIndex 清理后第一个保留的数据文件编号
      */
-    public synchronized byte[] pollBytes() {
-        assertFileClosed();
-        if (info.getNowReadFileIndex() >= info.getNowWriteFileIndex() && info.getNowReadByteIndex() >= info.getNowWriteByteIndex()) {
-            info.updateCount(0);
-            return null;
+    private void skipDefault(long minReadFileIndex) {
+        consumer.getTakeLock().lock();
+        try {
+            if (info.isConsumed() || info.getNowReadFileIndex() >= minReadFileIndex) {
+                return;
+            }
+            FileQueueData fmd = getData(minReadFileIndex);
+            long count = fmd == null ? 0 : getNextSequence() - fmd.getBaseSequence();
+            consumer.seekTo(minReadFileIndex, 0, count);
+        } finally {
+            consumer.getTakeLock().unlock();
         }
-        FileQueueData fmd = datas.get(info.getNowReadFileIndex());
+    }
+
+    /**
+     * 延迟加载模式下关闭空闲的数据文件：只保留正在写入的数据文件，以及各消费者读取游标开始的预读范围内的数据文件；<br/>
+     * 按序号读取、移动游标与回放打开的数据文件在此关闭，再次读到时重新打开
+     */
+    private void closeIdle() {
+        fullyLock();
         try {
-            if (fmd == null) {
-                return null;
+            if (isClose) {
+                return;
             }
-            byte[] bytes = fmd.read(info.getNowReadByteIndex());
-            info.remove(bytes.length);
-            return bytes;
-        } catch (FileStoreOutSizeException e) {
-            info.nextFile();
-            return pollBytes();
+            long writeIndex = info.getNowWriteFileIndex();
+            for (Long index : new ArrayList<>(datas.keySet())) {
+                if (index == writeIndex || isReadingAhead(index)) {
+                    continue;
+                }
+                FileQueueData data = datas.remove(index);
+                if (data != null) {
+                    data.close();
+                }
+            }
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * 数据文件是否在某个消费者的预读范围内
+     *
+     * @param index 文件编号
+     * @return 是否在预读范围内
+     */
+    private boolean isReadingAhead(long index) {
+        long read = info.getNowReadFileIndex();
+        if (index >= read && index <= read + readAheadFiles) {
+            return true;
+        }
+        for (FileQueueConsumer group : groups.values()) {
+            read = group.getCursor().getNowReadFileIndex();
+            if (index >= read && index <= read + readAheadFiles) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 写入游标检查点：计数文件与消费组游标文件【不刷盘】
+     */
+    private void checkpoint() {
+        FileQueueInfo queueInfo = info;
+        if (queueInfo == null) {
+            return;
+        }
+        queueInfo.checkpoint();
+        for (FileQueueConsumer group : groups.values()) {
+            group.getCursor().checkpoint();
+        }
+    }
+
+    /**
+     * 定时写入游标检查点【有持久化策略时一并刷盘：只消费不写入时不会按策略刷盘，消费进度同样按期落盘】
+     */
+    private void periodicCheckpoint() {
+        if (durability.getPolicy().getMode() == DurabilityPolicy.Mode.NONE) {
+            checkpoint();
+        } else {
+            syncCursors();
+        }
+    }
+
+    /**
+     * 刷盘：数据文件，之后是计数文件与消费组游标文件
+     */
+    private void syncFiles() {
+        if (isClose || info == null) {
+            return;
         }
+        for (FileQueueData fmd : datas.values()) {
+            fmd.sync();
+        }
+        syncCursors();
+    }
+
+    /**
+     * 刷盘：计数文件与消费组游标文件【写入检查点后刷盘】
+     */
+    private void syncCursors() {
+        FileQueueInfo queueInfo = info;
+        if (isClose || queueInfo == null) {
+            return;
+        }
+        queueInfo.sync();
+        for (FileQueueConsumer group : groups.values()) {
+            group.getCursor().sync();
+        }
+    }
+
+    /**
+     * 关闭
+     */
+    @Override
+    public void close() {
+        RuntimeException lost = closeWriteBehind();
+        // 等待按时间回放、按序号读取结束后关闭数据文件【加锁顺序：清理锁、写锁、读锁】
+        retireLock.writeLock().lock();
+        fullyLock();
+        try {
+            if (isClose) {
+                return;
+            }
+//        sync();
+            if (executorService != null) {
+                executorService.shutdown();
+            }
+            if (prefetcher != null) {
+                // 等待正在执行的预读结束，预读不再打开或读取数据文件
+                prefetcher.shutdownNow();
+                awaitTermination(prefetcher);
+            }
+            durability.close();
+            allocator.close();
+            for (FileQueueConsumer group : groups.values()) {
+                group.getCursor().close();
+            }
+            // 与延迟加载打开数据文件互斥，关闭后不再打开
+            synchronized (this) {
+                isClose = true;
+                for (FileQueueData fmd : datas.values()) {
+                    fmd.sync();
+                    fmd.close();
+                }
+            }
+            // 数据文件刷盘后计数文件才写入正常关闭标记
+            info.close();
+            // 唤醒等待数据的消费者，使其抛出关闭异常
+            consumer.signalAll();
+            for (FileQueueConsumer group : groups.values()) {
+                group.signalAll();
+            }
+        } finally {
+            fullyUnlock();
+            retireLock.writeLock().unlock();
+        }
+        if (lost != null) {
+            // 关闭完成后报告异步写入丢弃的数据
+            throw lost;
+        }
+    }
+
+    /**
+     * 等待线程池中的任务全部结束
+     *
+     * @param executor 已关闭的线程池
+     */
+    private static void awaitTermination(ThreadPoolExecutor executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 关闭异步写入：等待环形缓冲区中的数据全部写入数据文件【在获取写锁之前调用，后台写入线程需要写锁】
+     *
+     * @return 写入失败而丢弃数据的异常，没有丢弃返回null
+     */
+    private RuntimeException closeWriteBehind() {
+        if (writeBehind != null && !isClose) {
+            return writeBehind.close();
+        }
+        return null;
+    }
+
+    /**
+     * 刷新：等待之前压入的数据全部写入数据文件并落盘<br/>
+     * 异步写入模式下先等待环形缓冲区中已有的数据写入数据文件
+     */
+    public void flush() {
+        assertFileClosed();
+        if (writeBehind != null) {
+            writeBehind.await();
+        }
+        durability.syncAppended();
+    }
+
+    /**
+     * 将目前所有写入刷盘【异步写入的后台线程按刷盘间隔调用】
+     */
+    protected void syncAppended() {
+        durability.syncAppended();
+    }
+
+    /**
+     * 删除
+     */
+    public void delete() {
+        // 删除时不报告异步写入丢弃的数据
+        closeWriteBehind();
+        // 与关闭相同的加锁顺序：清理锁、写锁、读锁
+        retireLock.writeLock().lock();
+        fullyLock();
+        try {
+            this.close();
+            info.delete();
+            for (FileQueueConsumer group : groups.values()) {
+                group.getCursor().delete();
+            }
+            for (FileQueueData fmd : datas.values()) {
+                fmd.delete();
+            }
+            if (lazyLoad) {
+                // 延迟加载时未打开的数据文件
+                for (long index = retiredFileIndex + 1; index < info.getNowWriteFileIndex(); index++) {
+                    File file = FileQueueData.dataFile(queueDirPath, index);
+                    if (file.exists()) {
+                        file.delete();
+                        FileQueueIndex.indexFile(file).delete();
+                    }
+                }
+            }
+            for (File file : oldList.values()) {
+                file.delete();
+                FileQueueIndex.indexFile(file).delete();
+            }
+            allocator.delete();
+            datas.clear();
+            oldList.clear();
+            info = null;
+            new File(queueDirPath).delete();
+        } finally {
+            fullyUnlock();
+            retireLock.writeLock().unlock();
+        }
+        groups.clear();
+    }
+
+    /**
+     * 同时持有写锁与所有消费者的读锁
+     */
+    private void fullyLock() {
+        putLock.lock();
+        consumer.getTakeLock().lock();
+        for (FileQueueConsumer group : groups.values()) {
+            group.getTakeLock().lock();
+        }
+    }
+
+    /**
+     * 释放写锁与所有消费者的读锁
+     */
+    private void fullyUnlock() {
+        for (FileQueueConsumer group : groups.values()) {
+            group.getTakeLock().unlock();
+        }
+        consumer.getTakeLock().unlock();
+        putLock.unlock();
+    }
+
+    /**
+     * 检测关闭
+     */
+    protected void assertFileClosed() {
+        if (isClose) {
+            throw new FileStoreClosedException();
+        }
+    }
+
+    /**
+     * 创建新的数据文件【开启预分配时直接取用后台准备好的文件，调用方持有写锁】
+     *
+     * @return 数据文件
+     * @throws IOException IO异常
+     */
+    private FileQueueData createFileQueueData() throws IOException {
+        long baseSequence = getNextSequence();
+        info.addFile();
+        long index = info.getNowWriteFileIndex();
+        FileQueueData data = new FileQueueData(allocator.take(FileQueueData.dataFile(queueDirPath, index), oneDataFileSize), mappingBudget);
+        data.beginSequence(baseSequence);
+        datas.put(index, data);
+        prepareNextFile();
+        return data;
+    }
+
+    /**
+     * 准备下一个数据文件【开启预分配或回收池中有可用文件时，调用方持有写锁】
+     */
+    private void prepareNextFile() {
+        if (allocator.isEnabled() || allocator.hasRecycled()) {
+            allocator.prepare(FileQueueData.dataFile(queueDirPath, info.getNowWriteFileIndex() + 1), oneDataFileSize);
+        }
+    }
+
+    /**
+     * 队列大小
+     *
+     * @return 队列大小
+     */
+    public long size() {
+        return info.getCount();
+    }
+
+    /**
+     * 压入数据
+     *
+     * @param value 数据
+     */
+    public void offer(String value) {
+        if (value == null) {
+            return;
+        }
+        byte[] bytes;
+        bytes = value.getBytes(StandardCharsets.UTF_8);
+        offerBytes(bytes);
+    }
+
+    /**
+     * 压入数据
+     *
+     * @param value 数据
+     */
+    public void offerBytes(byte[] value) {
+        assertFileClosed();
+        if (value == null || value.length == 0) {
+            return;
+        }
+        offerBuffer(ByteBuffer.wrap(value));
+    }
+
+    /**
+     * 压入数据【直接从缓冲区写入文件，不产生中间数组】<br/>
+     * 按持久化策略刷盘，组提交模式下等待数据落盘后返回
+     *
+     * @param value 数据(remaining部分)，不改变其position
+     */
+    public void offerBuffer(ByteBuffer value) {
+        if (writeBehind != null) {
+            offerBehind(new ByteBuffer[]{value});
+            return;
+        }
+        durability.commit(append(value));
+    }
+
+    /**
+     * 异步写入：先检查全部数据，再拷贝到环形缓冲区连续的位置后返回【null或空数据会被跳过】
+     *
+     * @param values 数据(remaining部分)，不改变其position
+     */
+    private void offerBehind(ByteBuffer[] values) {
+        assertFileClosed();
+        if (values == null) {
+            return;
+        }
+        int count = 0;
+        for (ByteBuffer value : values) {
+            if (value == null || !value.hasRemaining()) {
+                continue;
+            }
+            if (value.remaining() + 8L > oneDataFileSize) {
+                throw new IllegalArgumentException("data length [" + value.remaining() + "] is bigger than one data file size [" + oneDataFileSize + "]");
+            }
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        byte[][] bytes = new byte[count][];
+        int i = 0;
+        for (ByteBuffer value : values) {
+            if (value != null && value.hasRemaining()) {
+                bytes[i] = new byte[value.remaining()];
+                value.duplicate().get(bytes[i++]);
+            }
+        }
+        writeBehind.offer(bytes);
+    }
+
+    /**
+     * 异步写入的后台线程整批写入数据文件
+     *
+     * @param values 数据
+     */
+    protected void appendBehind(ByteBuffer[] values) {
+        durability.commit(appendBatch(values));
+    }
+
+    /**
+     * 写入数据
+     *
+     * @param value 数据(remaining部分)，不改变其position
+     * @return 持久化写入序号，没有写入返回0
+     */
+    private long append(ByteBuffer value) {
+        assertFileClosed();
+        if (value == null || !value.hasRemaining()) {
+            return 0;
+        }
+        if (multiProducer) {
+            return reserveAppend(new ByteBuffer[]{value});
+        }
+        List<FileQueueConsumer> signals = new ArrayList<>(0);
+        putLock.lock();
+        try {
+            assertFileClosed();
+            published(1, enqueue(value), signals);
+            return durability.append();
+        } finally {
+            putLock.unlock();
+            signal(signals);
+        }
+    }
+
+    /**
+     * 写入一条数据，当前数据文件写满时切换到下一个数据文件【调用方持有写锁】
+     *
+     * @param value 数据(remaining部分)，不改变其position
+     * @return 写入前的队列大小
+     */
+    private long enqueue(ByteBuffer value) {
+        FileQueueData fmd = datas.get(info.getNowWriteFileIndex());
+        try {
+            if (fmd == null) {
+                fmd = createFileQueueData();
+            }
+            long position = info.getNowWriteByteIndex();
+            int recordSize = fmd.write(position, value);
+            fmd.indexed(position, recordSize, System.currentTimeMillis());
+            return info.add(recordSize);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } catch (FileStoreOutSizeException e) {
+            try {
+                createFileQueueData();
+            } catch (IOException e1) {
+                throw new IllegalArgumentException(e1);
+            }
+            return enqueue(value);
+        }
+    }
+
+    /**
+     * 批量压入数据【一次加锁、按数据文件聚合写入、每个数据文件只更新一次计数文件】<br/>
+     * null或空数据会被跳过；按持久化策略刷盘，组提交模式下等待整批数据落盘后返回
+     *
+     * @param values 数据
+     */
+    public void offerBatch(List<byte[]> values) {
+        assertFileClosed();
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[values.size()];
+        int i = 0;
+        for (byte[] value : values) {
+            buffers[i++] = value == null ? null : ByteBuffer.wrap(value);
+        }
+        offerBatch(buffers);
+    }
+
+    /**
+     * 批量压入数据【一次加锁、按数据文件聚合写入、每个数据文件只更新一次计数文件】<br/>
+     * null或空数据会被跳过；按持久化策略刷盘，组提交模式下等待整批数据落盘后返回
+     *
+     * @param values 数据(remaining部分)，不改变其position
+     */
+    public void offerBatch(ByteBuffer[] values) {
+        if (writeBehind != null) {
+            offerBehind(values);
+            return;
+        }
+        durability.commit(appendBatch(values));
+    }
+
+    /**
+     * 批量写入数据，当前数据文件写满时切换到下一个数据文件继续写入
+     *
+     * @param values 数据(remaining部分)，不改变其position
+     * @return 持久化写入序号，没有写入返回0
+     */
+    private long appendBatch(ByteBuffer[] values) {
+        assertFileClosed();
+        if (values == null) {
+            return 0;
+        }
+        List<ByteBuffer> list = new ArrayList<>(values.length);
+        for (ByteBuffer value : values) {
+            if (value != null && value.hasRemaining()) {
+                list.add(value);
+            }
+        }
+        if (list.isEmpty()) {
+            return 0;
+        }
+        ByteBuffer[] buffers = list.toArray(new ByteBuffer[0]);
+        if (multiProducer) {
+            return reserveAppend(buffers);
+        }
+        List<FileQueueConsumer> signals = new ArrayList<>(0);
+        putLock.lock();
+        try {
+            assertFileClosed();
+            int from = 0;
+            while (from < buffers.length) {
+                FileQueueData fmd = datas.get(info.getNowWriteFileIndex());
+                if (fmd == null) {
+                    fmd = createFileQueueData();
+                }
+                long position = info.getNowWriteByteIndex();
+                long[] result = fmd.write(position, buffers, from);
+                if (result[0] == 0) {
+                    if (position == 0) {
+                        throw new IllegalArgumentException("data length [" + buffers[from].remaining() + "] is bigger than one data file size [" + oneDataFileSize + "]");
+                    }
+                    createFileQueueData();
+                    continue;
+                }
+                fmd.indexed(position, buffers, from, (int) result[0]);
+                published((int) result[0], info.add((int) result[0], result[1]), signals);
+                from += (int) result[0];
+            }
+            return durability.append(buffers.length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            putLock.unlock();
+            signal(signals);
+        }
+    }
+
+    /**
+     * 多生产者写入：原子预留整批数据的写入区域，并行拷贝数据，等待之前预留的数据提交后计数并提交<br/>
+     * 预留区域超出数据文件时，预留开始位置在文件内的生产者负责切换数据文件，其余生产者等待切换后重新预留；<br/>
+     * 写入或计数失败时，轮到提交后放弃当前数据文件并切换到下一个数据文件，之后预留的生产者重新写入，不会一直等待提交；<br/>
+     * 【整批数据跨数据文件时，失败前已提交的部分仍可被消费】
+     *
+     * @param buffers 数据(remaining部分)，不改变其position
+     * @return 持久化写入序号
+     */
+    private long reserveAppend(ByteBuffer[] buffers) {
+        long[] suffix = new long[buffers.length + 1];
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            int recordSize = buffers[i].remaining() + 8;
+            if (recordSize > oneDataFileSize) {
+                throw new IllegalArgumentException("data length [" + buffers[i].remaining() + "] is bigger than one data file size [" + oneDataFileSize + "]");
+            }
+            suffix[i] = suffix[i + 1] + recordSize;
+        }
+        try {
+            int from = 0;
+            while (from < buffers.length) {
+                FileQueueData fmd = appendingData();
+                long position = fmd.reserve(suffix[from]);
+                long fileSize = fmd.getFileSize();
+                if (position > fileSize) {
+                    // 其他生产者负责切换数据文件
+                    for (int spins = 0; appending == fmd; spins++) {
+                        assertFileClosed();
+                        backoff(spins);
+                    }
+                    continue;
+                }
+                long[] result = null;
+                RuntimeException failure = null;
+                try {
+                    result = fmd.write(position, buffers, from);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                if (!awaitCommitted(fmd, position)) {
+                    // 之前的生产者写入失败，当前数据文件已放弃，重新写入下一个数据文件
+                    continue;
+                }
+                // 轮到提交时之前的数据均已计数，序号不再变化
+                long sequence = fmd.getNextSequence();
+                if (failure == null && result[0] > 0) {
+                    // 计数与创建消费组互斥，保证新消费组的计数一致
+                    List<FileQueueConsumer> signals = new ArrayList<>(0);
+                    putLock.lock();
+                    try {
+                        try {
+                            fmd.indexed(position, buffers, from, (int) result[0]);
+                        } catch (RuntimeException e) {
+                            failure = e;
+                        }
+                        if (failure == null) {
+                            published((int) result[0], info.add((int) result[0], result[1]), signals);
+                        }
+                    } finally {
+                        putLock.unlock();
+                        signal(signals);
+                    }
+                }
+                if (failure != null) {
+                    abandonAppending(fmd, position, suffix[from], sequence, failure);
+                    throw failure;
+                }
+                from += (int) result[0];
+                if (from == buffers.length) {
+                    fmd.commit(position + result[1]);
+                } else {
+                    rollAppending(fmd);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return durability.append(buffers.length);
+    }
+
+    /**
+     * 多生产者等待之前预留的数据提交
+     *
+     * @param fmd      数据文件
+     * @param position 预留区域的开始位置
+     * @return 是否轮到提交，数据文件已放弃时返回false
+     */
+    private boolean awaitCommitted(FileQueueData fmd, long position) {
+        for (int spins = 0; fmd.getCommitted() != position; spins++) {
+            if (fmd.isAbandoned()) {
+                return false;
+            }
+            assertFileClosed();
+            backoff(spins);
+        }
+        return true;
+    }
+
+    /**
+     * 多生产者等待：先自旋让出CPU，超过自旋次数后休眠，避免长时间等待时空转
+     *
+     * @param spins 已自旋次数
+     */
+    private static void backoff(int spins) {
+        if (spins < MAX_SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /**
+     * 多生产者写入失败：放弃当前数据文件，下一次写入时切换到新的数据文件【轮到写入失败的生产者提交时调用】<br/>
+     * 清零失败的区域出错时同样放弃，保证之后预留的生产者不会一直等待
+     *
+     * @param fmd      数据文件
+     * @param position 写入失败的位置
+     * @param length   写入失败的预留长度
+     * @param sequence 写入失败前的下一条数据序号
+     * @param failure  写入失败的异常
+     */
+    private void abandonAppending(FileQueueData fmd, long position, long length, long sequence, RuntimeException failure) {
+        putLock.lock();
+        try {
+            fmd.abandon(position, length, sequence);
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        } finally {
+            if (appending == fmd) {
+                appending = null;
+            }
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * 多生产者模式下当前写入的数据文件，首次写入时从计数文件的写入游标开始预留
+     *
+     * @return 数据文件
+     * @throws IOException IO异常
+     */
+    private FileQueueData appendingData() throws IOException {
+        FileQueueData fmd = appending;
+        if (fmd != null) {
+            return fmd;
+        }
+        putLock.lock();
+        try {
+            assertFileClosed();
+            if (appending == null) {
+                fmd = datas.get(info.getNowWriteFileIndex());
+                if (fmd == null || fmd.isAbandoned()) {
+                    fmd = createFileQueueData();
+                }
+                fmd.beginAppend(info.getNowWriteByteIndex());
+                appending = fmd;
+            }
+            return appending;
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * 多生产者模式下切换数据文件【当前数据文件之前预留的数据均已提交】
+     *
+     * @param full 写满的数据文件
+     * @throws IOException IO异常
+     */
+    private void rollAppending(FileQueueData full) throws IOException {
+        putLock.lock();
+        try {
+            assertFileClosed();
+            if (appending == full) {
+                // 创建失败时由下一次写入重新创建，等待切换的生产者不会一直等待
+                appending = null;
+                FileQueueData fmd = createFileQueueData();
+                fmd.beginAppend(0);
+                appending = fmd;
+            }
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * 增加消费组的计数，收集新增前没有可消费的数据、需要唤醒的消费者【生产者在增加计数后调用，调用方持有写锁】
+     *
+     * @param records 新增的记录数
+     * @param before  默认消费者新增前的数据量
+     * @param signals 需要唤醒的消费者，释放写锁后调用signal唤醒
+     */
+    private void published(int records, long before, List<FileQueueConsumer> signals) {
+        if (consumer.starved(before)) {
+            signals.add(consumer);
+        }
+        for (FileQueueConsumer group : groups.values()) {
+            if (group.added(records)) {
+                signals.add(group);
+            }
+        }
+    }
+
+    /**
+     * 唤醒等待数据的消费者【释放写锁后调用，不在写锁内获取读锁】
+     *
+     * @param signals 需要唤醒的消费者
+     */
+    private static void signal(List<FileQueueConsumer> signals) {
+        for (FileQueueConsumer waiting : signals) {
+            waiting.signalNotEmpty();
+        }
+    }
+
+    /**
+     * 弹出数据
+     *
+     * @return 数据
+     */
+    public String poll() {
+        return defaultConsumer().poll();
+    }
+
+    /**
+     * 弹出数据
+     *
+     * @return 数据
+     */
+    public byte[] pollBytes() {
+        return defaultConsumer().pollBytes();
+    }
+
+    /**
+     * 弹出数据，队列为空时等待直到有数据
+     *
+     * @return 数据
+     * @throws InterruptedException 等待时被中断
+     */
+    public String take() throws InterruptedException {
+        return defaultConsumer().take();
+    }
+
+    /**
+     * 弹出数据，队列为空时等待直到有数据
+     *
+     * @return 数据
+     * @throws InterruptedException 等待时被中断
+     */
+    public byte[] takeBytes() throws InterruptedException {
+        return defaultConsumer().takeBytes();
+    }
+
+    /**
+     * 弹出数据，队列为空时最多等待指定时间
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return 数据，超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return defaultConsumer().poll(timeout, unit);
+    }
+
+    /**
+     * 弹出数据，队列为空时最多等待指定时间
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return 数据，超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public byte[] pollBytes(long timeout, TimeUnit unit) throws InterruptedException {
+        return defaultConsumer().pollBytes(timeout, unit);
+    }
+
+    /**
+     * 弹出数据到目标缓冲区【直接从文件拷贝到缓冲区，不产生中间数组】<br/>
+     * 目标缓冲区剩余空间不足时抛出IllegalArgumentException，且不消费数据
+     *
+     * @param dst 目标缓冲区
+     * @return 数据长度，队列为空返回-1
+     */
+    public int pollInto(ByteBuffer dst) {
+        return defaultConsumer().pollInto(dst);
+    }
+
+    /**
+     * 批量弹出数据【一次加锁顺序读取，每个数据文件只更新一次计数文件】<br/>
+     * 第一条数据超过长度上限时仍然返回这一条，避免大数据无法被消费
+     *
+     * @param maxRecords 最多弹出的记录数
+     * @param maxBytes   最多弹出的数据长度
+     * @return 数据，队列为空返回空列表
+     */
+    public List<byte[]> pollBatch(int maxRecords, int maxBytes) {
+        return defaultConsumer().pollBatch(maxRecords, maxBytes);
+    }
+
+    /**
+     * 弹出所有数据到集合
+     *
+     * @param collection 集合
+     * @return 弹出的记录数
+     */
+    public int drainTo(Collection<? super byte[]> collection) {
+        return defaultConsumer().drainTo(collection);
+    }
+
+    /**
+     * 弹出数据到集合
+     *
+     * @param collection  集合
+     * @param maxElements 最多弹出的记录数
+     * @return 弹出的记录数
+     */
+    public int drainTo(Collection<? super byte[]> collection, int maxElements) {
+        return defaultConsumer().drainTo(collection, maxElements);
+    }
+
+    /**
+     * 确认消费模式投递一条数据，数据在确认后才会被消费，详见 {@link FileQueueConsumer#pollDelivery()}
+     *
+     * @return 投递，没有可投递的数据返回null
+     */
+    public FileQueueDelivery pollDelivery() {
+        return defaultConsumer().pollDelivery();
+    }
+
+    /**
+     * 确认消费模式投递一条数据，没有可投递的数据时最多等待指定时间
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return 投递，超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public FileQueueDelivery pollDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        return defaultConsumer().pollDelivery(timeout, unit);
+    }
+
+    /**
+     * 确认
+     *
+     * @param delivery 投递
+     */
+    public void ack(FileQueueDelivery delivery) {
+        if (delivery == null) {
+            throw new IllegalArgumentException("delivery is null");
+        }
+        delivery.getConsumer().ack(delivery);
+    }
+
+    /**
+     * 拒绝，数据立即重新投递
+     *
+     * @param delivery 投递
+     */
+    public void nack(FileQueueDelivery delivery) {
+        if (delivery == null) {
+            throw new IllegalArgumentException("delivery is null");
+        }
+        delivery.getConsumer().nack(delivery);
+    }
+
+    /**
+     * 获取消费组，不存在时创建<br/>
+     * 新建的消费组从默认消费者当前的读取位置开始消费；每个消费组有独立的游标文件，与默认消费者互不影响
+     *
+     * @param name 消费组名称【字母、数字、下划线、中划线】
+     * @return 消费组
+     */
+    public FileQueueConsumer group(String name) {
+        assertFileClosed();
+        if (name == null || !name.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("group name [" + name + "] is illegal");
+        }
+        FileQueueConsumer group = groups.get(name);
+        if (group != null) {
+            return group;
+        }
+        // 持有写锁与默认消费者的读锁，保证新消费组的游标与计数一致
+        putLock.lock();
+        consumer.getTakeLock().lock();
+        try {
+            assertFileClosed();
+            group = groups.get(name);
+            if (group == null) {
+                FileQueueGroupInfo groupInfo = new FileQueueGroupInfo(FileQueueGroupInfo.groupFile(queueDirPath, name), storageType, info.getNowReadFileIndex(), info.getNowReadByteIndex(), info.getCount());
+                group = new FileQueueConsumer(this, groupInfo, maxInFlight, ackTimeoutMills);
+                groups.put(name, group);
+            }
+            return group;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            consumer.getTakeLock().unlock();
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * 删除消费组
+     *
+     * @param name 消费组名称
+     */
+    public void removeGroup(String name) {
+        assertFileClosed();
+        FileQueueConsumer group = groups.get(name);
+        if (group == null) {
+            return;
+        }
+        putLock.lock();
+        group.getTakeLock().lock();
+        try {
+            groups.remove(name);
+            group.getCursor().delete();
+            group.signalAll();
+        } finally {
+            group.getTakeLock().unlock();
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * 所有消费组名称
+     *
+     * @return 消费组名称
+     */
+    public Set<String> getGroupNames() {
+        return new TreeSet<>(groups.keySet());
+    }
+
+    /**
+     * 按序号读取数据【不移动任何消费者的读取游标，可以读取未清理的已消费数据】
+     *
+     * @param sequence 序号
+     * @return 数据，序号不可用(已清理或尚未写入)返回null
+     */
+    public byte[] read(long sequence) {
+        assertFileClosed();
+        retireLock.readLock().lock();
+        try {
+            assertFileClosed();
+            long index = fileIndexOf(sequence);
+            FileQueueData fmd = index < 0 ? null : getData(index);
+            if (fmd != null && sequence < fmd.getNextSequence()) {
+                return fmd.read(fmd.positionOf(sequence));
+            }
+            return null;
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            retireLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 第一条可用数据的序号【未清理的数据文件中最早的数据】
+     *
+     * @return 序号
+     */
+    public long getFirstSequence() {
+        assertFileClosed();
+        retireLock.readLock().lock();
+        try {
+            assertFileClosed();
+            return firstSequence();
+        } finally {
+            retireLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 下一条写入数据的序号
+     *
+     * @return 序号
+     */
+    public long getNextSequence() {
+        FileQueueData fmd = datas.get(info.getNowWriteFileIndex());
+        return fmd == null ? 0 : fmd.getNextSequence();
+    }
+
+    /**
+     * 第一条可用数据的序号【调用方持有清理锁的读锁】
+     *
+     * @return 序号
+     */
+    private long firstSequence() {
+        for (long index = retiredFileIndex + 1; index <= info.getNowWriteFileIndex(); index++) {
+            FileQueueData fmd = getData(index);
+            if (fmd != null) {
+                return fmd.getBaseSequence();
+            }
+        }
+        return getNextSequence();
+    }
+
+    /**
+     * 按序号查找数据所在的数据文件【按文件编号二分查找，延迟加载时只打开查找经过的数据文件，调用方持有清理锁的读锁】
+     *
+     * @param sequence 序号
+     * @return 第一条数据的序号不大于该序号的最后一个数据文件的编号，不存在返回-1
+     */
+    private long fileIndexOf(long sequence) {
+        long low = retiredFileIndex + 1;
+        long high = info.getNowWriteFileIndex();
+        long found = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            FileQueueData fmd = getData(mid);
+            if (fmd == null) {
+                // 数据文件缺失，缩小到缺失位置之后查找
+                low = mid + 1;
+                continue;
+            }
+            if (fmd.getBaseSequence() <= sequence) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 按写入时间回放数据：依次回放历史文件与未清理的数据文件，不移动任何消费者的读取游标<br/>
+     * 各数据文件按索引二分查找开始位置，只读取时间范围内的数据；<br/>
+     * 时间精确到索引项【每4K数据或每秒一个索引项】，开始与结束处可能多回放少量相邻的数据；<br/>
+     * 没有索引的旧版本历史文件按文件修改时间判断，修改时间早于开始时间时跳过，否则全部回放；<br/>
+     * 回放到调用时已写入的数据为止，回放期间暂停清理数据文件
+     *
+     * @param from    开始时间(包含)
+     * @param to      结束时间(包含)，为null时不限制
+     * @param handler 处理器
+     */
+    public void replayFrom(Instant from, Instant to, HistoryDataHandler handler) {
+        assertFileClosed();
+        long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+        long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        if (fromMillis > toMillis) {
+            return;
+        }
+        retireLock.readLock().lock();
+        try {
+            List<File> olds;
+            List<FileQueueData> lives = new ArrayList<>();
+            List<long[]> ranges = new ArrayList<>();
+            putLock.lock();
+            try {
+                assertFileClosed();
+                olds = new ArrayList<>(oldList.values());
+                for (long index = retiredFileIndex + 1; index <= info.getNowWriteFileIndex(); index++) {
+                    FileQueueData fmd = getData(index);
+                    if (fmd != null) {
+                        lives.add(fmd);
+                        ranges.add(fmd.rangeByTime(fromMillis, toMillis));
+                    }
+                }
+            } finally {
+                putLock.unlock();
+            }
+            for (File file : olds) {
+                FileQueueHistoryReader.replay(file, fromMillis, toMillis, handler);
+            }
+            for (int i = 0; i < lives.size(); i++) {
+                long[] range = ranges.get(i);
+                lives.get(i).replay(range[0], range[1], handler);
+            }
+        } finally {
+            retireLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 回放指定时间之后写入的数据
+     *
+     * @param from    开始时间(包含)
+     * @param handler 处理器
+     */
+    public void replayFrom(Instant from, HistoryDataHandler handler) {
+        replayFrom(from, null, handler);
+    }
+
+    /**
+     * 移动默认消费者的读取游标到指定序号的数据
+     *
+     * @param sequence 序号
+     */
+    public void seek(long sequence) {
+        defaultConsumer().seek(sequence);
+    }
+
+    /**
+     * 移动默认消费者的读取游标到第一条可用数据
+     */
+    public void rewind() {
+        defaultConsumer().rewind();
+    }
+
+    /**
+     * 默认消费者下一条读取数据的序号
+     *
+     * @return 序号
+     */
+    public long position() {
+        return consumer.position();
+    }
+
+    /**
+     * 移动消费者的读取游标到指定序号的数据，之后的数据全部作为未消费的数据
+     *
+     * @param consumer 消费者
+     * @param sequence 序号，小于0时为第一条可用数据
+     */
+    protected void seek(FileQueueConsumer consumer, long sequence) {
+        assertFileClosed();
+        retireLock.readLock().lock();
+        try {
+            assertFileClosed();
+            long first = firstSequence();
+            long next = getNextSequence();
+            long target = sequence < 0 ? first : sequence;
+            if (target < first || target > next) {
+                throw new IllegalArgumentException("sequence [" + sequence + "] is not available, available sequences are [" + first + ", " + next + "]");
+            }
+            // 查找数据文件不持有写锁，只在移动游标时短暂持有写锁，保证计数与写入一致
+            long[] position = positionOf(target);
+            putLock.lock();
+            consumer.getTakeLock().lock();
+            try {
+                next = getNextSequence();
+                if (position == null && target < next) {
+                    // 查找后又写入了该序号的数据
+                    position = positionOf(target);
+                }
+                if (position == null) {
+                    position = new long[]{info.getNowWriteFileIndex(), info.getNowWriteByteIndex()};
+                }
+                consumer.seekTo(position[0], position[1], next - target);
+            } finally {
+                consumer.getTakeLock().unlock();
+                putLock.unlock();
+            }
+        } finally {
+            retireLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 按序号查找数据的位置【调用方持有清理锁的读锁】
+     *
+     * @param sequence 序号
+     * @return [文件编号, 数据游标]，序号尚未写入或不可用返回null
+     */
+    private long[] positionOf(long sequence) {
+        long index = fileIndexOf(sequence);
+        FileQueueData fmd = index < 0 ? null : getData(index);
+        if (fmd == null || sequence >= fmd.getNextSequence()) {
+            return null;
+        }
+        long position = fmd.positionOf(sequence);
+        return position < 0 ? null : new long[]{index, position};
+    }
+
+    /**
+     * 消费者下一条读取数据的序号
+     *
+     * @param consumer 消费者
+     * @return 序号
+     */
+    protected long position(FileQueueConsumer consumer) {
+        assertFileClosed();
+        retireLock.readLock().lock();
+        consumer.getTakeLock().lock();
+        try {
+            assertFileClosed();
+            // 按读取游标所在的数据文件查找序号，不与生产者互斥
+            FileQueueCursor cursor = consumer.getCursor();
+            FileQueueData fmd = getData(cursor.getNowReadFileIndex());
+            if (fmd != null) {
+                return fmd.sequenceOf(cursor.getNowReadByteIndex());
+            }
+            return getNextSequence() - cursor.getCount();
+        } finally {
+            consumer.getTakeLock().unlock();
+            retireLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 获取数据文件
+     *
+     * @param index 文件编号
+     * @return 数据文件，不存在返回null
+     */
+    protected FileQueueData getData(long index) {
+        FileQueueData data = datas.get(index);
+        if (data != null || !lazyLoad) {
+            return data;
+        }
+        return open(index);
+    }
+
+    /**
+     * 延迟加载模式下打开未清理的数据文件并加载序号
+     *
+     * @param index 文件编号
+     * @return 数据文件，已清理、尚未创建或不存在返回null
+     */
+    private synchronized FileQueueData open(long index) {
+        FileQueueData data = datas.get(index);
+        if (data != null) {
+            return data;
+        }
+        if (isClose || index <= retiredFileIndex || index >= info.getNowWriteFileIndex() || !FileQueueData.dataFile(queueDirPath, index).exists()) {
+            return null;
+        }
+        try {
+            data = new FileQueueData(queueDirPath, oneDataFileSize, index, storageType, mappingBudget);
+            data.loadSequence(previousNextSequence(index), Long.MAX_VALUE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        datas.put(index, data);
+        return data;
+    }
+
+    /**
+     * 预读消费者读取游标之后的数据【消费后调用，调用方持有读锁】<br/>
+     * 已预读的数据少于预读数据量的一半时，由预读线程接着已预读的位置继续预读，补足预读数据量；<br/>
+     * 预读跨越数据文件时按单数据文件大小估算位置
+     *
+     * @param cursor     读取游标
+     * @param prefetched 消费者已预读到的位置[文件编号, 数据游标]，预读后更新
+     */
+    protected void prefetch(FileQueueCursor cursor, long[] prefetched) {
+        if (prefetcher == null) {
+            return;
+        }
+        long readFileIndex = cursor.getNowReadFileIndex();
+        long readByteIndex = cursor.getNowReadByteIndex();
+        long ahead = (prefetched[0] - readFileIndex) * oneDataFileSize + prefetched[1] - readByteIndex;
+        if (ahead >= prefetchBytes / 2) {
+            return;
+        }
+        long beginFileIndex = ahead > 0 ? prefetched[0] : readFileIndex;
+        long beginByteIndex = ahead > 0 ? prefetched[1] : readByteIndex;
+        long endFileIndex = beginFileIndex;
+        long endByteIndex = beginByteIndex + prefetchBytes - Math.max(ahead, 0);
+        long writeFileIndex = info.getNowWriteFileIndex();
+        while (endByteIndex > oneDataFileSize && endFileIndex < writeFileIndex) {
+            endByteIndex -= oneDataFileSize;
+            endFileIndex++;
+        }
+        long lastFileIndex = endFileIndex;
+        long lastByteIndex = endByteIndex;
+        try {
+            prefetcher.execute(() -> prefetch(beginFileIndex, beginByteIndex, lastFileIndex, lastByteIndex));
+        } catch (RejectedExecutionException e) {
+            // 队列已关闭
+            return;
+        }
+        prefetched[0] = endFileIndex;
+        prefetched[1] = endByteIndex;
+    }
+
+    /**
+     * 预读数据文件【预读线程执行】
+     *
+     * @param beginFileIndex 开始文件编号
+     * @param beginByteIndex 开始数据游标
+     * @param endFileIndex   结束文件编号
+     * @param endByteIndex   结束数据游标(不包含)
+     */
+    private void prefetch(long beginFileIndex, long beginByteIndex, long endFileIndex, long endByteIndex) {
+        for (long index = beginFileIndex; index <= endFileIndex && !isClose; index++) {
+            FileQueueData fmd = getData(index);
+            if (fmd != null) {
+                fmd.prefetch(index == beginFileIndex ? beginByteIndex : 0, index == endFileIndex ? endByteIndex : oneDataFileSize);
+            }
+        }
+    }
+
+    /**
+     * 延迟加载模式下打开读取游标之后的数据文件【消费者切换到下一个数据文件时调用】
+     *
+     * @param index 读取的文件编号
+     */
+    protected void readAhead(long index) {
+        if (!lazyLoad) {
+            return;
+        }
+        for (long i = index; i <= index + readAheadFiles; i++) {
+            getData(i);
+        }
+    }
+
+    /**
+     * 当前写入的文件编号
+     *
+     * @return 写文件编号
+     */
+    protected long getNowWriteFileIndex() {
+        return info.getNowWriteFileIndex();
     }
 
     /**
@@ -0,0 +1,175 @@
+package cn.emay.store.file.queue;
+
+import cn.emay.store.file.core.FileStoreAllocator;
+import cn.emay.store.file.core.FileStoreConfig;
+
+/**
+ * 文件队列配置<br/>
+ * 默认：30秒刷盘时间间隔、10M一个数据文件、已消费数据不保留、不主动刷盘
+ *
+ * @author Frank
+ */
+public class FileQueueConfig extends FileStoreConfig {
+
+    /**
+     * 已经消费的数据，保留时间，秒
+     */
+    private int usedDataExpirySecond = -1;
+    /**
+     * 过期的已消费文件是否回收复用【清零后改名为新的数据文件，不再删除】
+     */
+    private boolean recycleUsedData;
+    /**
+     * 回收池上限，超出上限的过期文件直接删除
+     */
+    private int recycleMaxFiles = FileStoreAllocator.DEFAULT_MAX_RECYCLED;
+    /**
+     * 多生产者模式【生产者以原子操作预留写入区域后并行拷贝数据，按预留顺序提交】
+     */
+    private boolean multiProducer;
+    /**
+     * 确认消费模式的投递窗口大小【每个消费者最多未确认的数据量】
+     */
+    private int maxInFlight = 1000;
+    /**
+     * 确认消费模式的确认超时时间，秒，超时未确认的数据重新投递
+     */
+    private int ackTimeoutSecond = 30;
+    /**
+     * 游标检查点时间间隔，毫秒，小于等于0则只在刷盘与关闭时写入检查点【异常退出后，检查点之后消费的数据会重新消费】
+     */
+    private int checkpointPeriodMills = 1000;
+    /**
+     * 延迟加载数据文件【启动时只打开各消费者正在读取的数据文件与正在写入的数据文件，其他数据文件读到时再打开，空闲的数据文件在清理时关闭】
+     */
+    private boolean lazyLoad;
+    /**
+     * 延迟加载模式下，读取游标之后保持打开的数据文件数量
+     */
+    private int readAheadFiles = 1;
+    /**
+     * 预读数据量，字节，小于等于0则不预读【后台线程跟随各消费者的读取游标，提前把之后的数据读入页缓存】
+     */
+    private long prefetchBytes;
+    /**
+     * 异步写入模式【压入数据只拷贝到环形缓冲区后返回，由后台线程批量写入数据文件，写入数据文件后才能被消费】
+     */
+    private boolean writeBehind;
+    /**
+     * 异步写入的环形缓冲区大小，条【向上取整为2的幂，写满时压入数据等待后台写入】
+     */
+    private int writeBehindCapacity = 65536;
+    /**
+     * 异步写入的刷盘间隔，毫秒【异常退出最多丢失刷盘间隔内写入的数据】
+     */
+    private int writeBehindFlushMills = 1000;
+
+    public FileQueueConfig() {
+        super(30, FileQueue.DEFAULT_FILE_SIZE);
+    }
+
+    public int getUsedDataExpirySecond() {
+        return usedDataExpirySecond;
+    }
+
+    public void setUsedDataExpirySecond(int usedDataExpirySecond) {
+        this.usedDataExpirySecond = usedDataExpirySecond;
+    }
+
+    public boolean isRecycleUsedData() {
+        return recycleUsedData;
+    }
+
+    public void setRecycleUsedData(boolean recycleUsedData) {
+        this.recycleUsedData = recycleUsedData;
+    }
+
+    public int getRecycleMaxFiles() {
+        return recycleMaxFiles;
+    }
+
+    public void setRecycleMaxFiles(int recycleMaxFiles) {
+        this.recycleMaxFiles = recycleMaxFiles;
+    }
+
+    public boolean isMultiProducer() {
+        return multiProducer;
+    }
+
+    public void setMultiProducer(boolean multiProducer) {
+        this.multiProducer = multiProducer;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getAckTimeoutSecond() {
+        return ackTimeoutSecond;
+    }
+
+    public void setAckTimeoutSecond(int ackTimeoutSecond) {
+        this.ackTimeoutSecond = ackTimeoutSecond;
+    }
+
+    public int getCheckpointPeriodMills() {
+        return checkpointPeriodMills;
+    }
+
+    public void setCheckpointPeriodMills(int checkpointPeriodMills) {
+        this.checkpointPeriodMills = checkpointPeriodMills;
+    }
+
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    public int getReadAheadFiles() {
+        return readAheadFiles;
+    }
+
+    public void setReadAheadFiles(int readAheadFiles) {
+        this.readAheadFiles = readAheadFiles;
+    }
+
+    public long getPrefetchBytes() {
+        return prefetchBytes;
+    }
+
+    public void setPrefetchBytes(long prefetchBytes) {
+        this.prefetchBytes = prefetchBytes;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindCapacity() {
+        return writeBehindCapacity;
+    }
+
+    public void setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+
+    public int getWriteBehindFlushMills() {
+        return writeBehindFlushMills;
+    }
+
+    public void setWriteBehindFlushMills(int writeBehindFlushMills) {
+        this.writeBehindFlushMills = writeBehindFlushMills;
+    }
+
+}
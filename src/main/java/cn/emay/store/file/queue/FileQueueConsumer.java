@@ -0,0 +1,712 @@
+package cn.emay.store.file.queue;
+
+import cn.emay.store.file.exception.FileStoreOutSizeException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FileQueue 的消费者：默认消费者或一个消费组<br/>
+ * 每个消费者有独立的读取游标、读锁与非空条件，互不影响；以游标中的原子计数判断是否有数据：<br/>
+ * 生产者先写入数据再增加计数，因此消费者不需要读取写入游标；<br/>
+ * 确认消费模式：pollDelivery 投递数据但不推进读取游标，数据进入投递窗口；连续的数据被确认后批量推进读取游标，<br/>
+ * 未确认即崩溃的数据在重启后重新投递；投递窗口中有数据时不能使用 poll 等直接消费的方法；
+ *
+ * @author Frank
+ */
+public class FileQueueConsumer {
+
+    /**
+     * 队列
+     */
+    private final FileQueue queue;
+    /**
+     * 读取游标
+     */
+    private final FileQueueCursor cursor;
+    /**
+     * 读锁
+     */
+    private final ReentrantLock takeLock = new ReentrantLock();
+    /**
+     * 非空条件
+     */
+    private final Condition notEmpty = takeLock.newCondition();
+    /**
+     * 投递窗口大小
+     */
+    private final int maxInFlight;
+    /**
+     * 确认超时时间，纳秒
+     */
+    private final long ackTimeoutNanos;
+    /**
+     * 投递窗口【按投递序号排序，包含已确认但尚未推进读取游标的数据】
+     */
+    private final TreeMap<Long, FileQueueDelivery> inFlight = new TreeMap<>();
+    /**
+     * 等待确认的投递【按确认超时时间排序，不包含已确认与等待重新投递的数据】
+     */
+    private final TreeSet<FileQueueDelivery> deadlines = new TreeSet<>(Comparator.comparingLong(FileQueueDelivery::getDeadline).thenComparingLong(FileQueueDelivery::getSequence));
+    /**
+     * 投递窗口中的数据量【生产者不加读锁读取，判断新增的数据是否需要唤醒消费者】
+     */
+    private volatile int dispatched;
+    /**
+     * 等待重新投递的数据
+     */
+    private final ArrayDeque<FileQueueDelivery> redeliveries = new ArrayDeque<>();
+    /**
+     * 下一次投递的序号
+     */
+    private long nextSequence;
+    /**
+     * 下一次投递的文件编号
+     */
+    private long dispatchFileIndex;
+    /**
+     * 下一次投递的数据游标
+     */
+    private long dispatchByteIndex;
+    /**
+     * 已预读到的位置[文件编号, 数据游标]
+     */
+    private final long[] prefetched = new long[2];
+
+    /**
+     * @param queue           队列
+     * @param cursor          读取游标
+     * @param maxInFlight     投递窗口大小
+     * @param ackTimeoutMills 确认超时时间，毫秒
+     */
+    protected FileQueueConsumer(FileQueue queue, FileQueueCursor cursor, int maxInFlight, long ackTimeoutMills) {
+        this.queue = queue;
+        this.cursor = cursor;
+        this.maxInFlight = maxInFlight;
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMills);
+    }
+
+    /**
+     * 读取游标
+     *
+     * @return 读取游标
+     */
+    protected FileQueueCursor getCursor() {
+        return cursor;
+    }
+
+    /**
+     * 读锁
+     *
+     * @return 读锁
+     */
+    protected ReentrantLock getTakeLock() {
+        return takeLock;
+    }
+
+    /**
+     * 未消费的数据量
+     *
+     * @return 数据量
+     */
+    public long size() {
+        return cursor.getCount();
+    }
+
+    /**
+     * 弹出数据
+     *
+     * @return 数据
+     */
+    public String poll() {
+        byte[] bytes = pollBytes();
+        if (bytes == null) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 弹出数据
+     *
+     * @return 数据
+     */
+    public byte[] pollBytes() {
+        queue.assertFileClosed();
+        if (cursor.getCount() <= 0) {
+            return null;
+        }
+        takeLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 弹出数据，没有数据时等待直到有数据
+     *
+     * @return 数据
+     * @throws InterruptedException 等待时被中断
+     */
+    public String take() throws InterruptedException {
+        return new String(takeBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 弹出数据，没有数据时等待直到有数据
+     *
+     * @return 数据
+     * @throws InterruptedException 等待时被中断
+     */
+    public byte[] takeBytes() throws InterruptedException {
+        takeLock.lockInterruptibly();
+        try {
+            byte[] bytes;
+            while ((bytes = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return bytes;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 弹出数据，没有数据时最多等待指定时间
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return 数据，超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        byte[] bytes = pollBytes(timeout, unit);
+        if (bytes == null) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 弹出数据，没有数据时最多等待指定时间
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return 数据，超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public byte[] pollBytes(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        takeLock.lockInterruptibly();
+        try {
+            byte[] bytes;
+            while ((bytes = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return bytes;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 弹出数据到目标缓冲区【直接从文件拷贝到缓冲区，不产生中间数组】<br/>
+     * 目标缓冲区剩余空间不足时抛出IllegalArgumentException，且不消费数据
+     *
+     * @param dst 目标缓冲区
+     * @return 数据长度，没有数据返回-1
+     */
+    public int pollInto(ByteBuffer dst) {
+        queue.assertFileClosed();
+        if (dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        if (cursor.getCount() <= 0) {
+            return -1;
+        }
+        takeLock.lock();
+        try {
+            queue.assertFileClosed();
+            assertNoDelivery();
+            FileQueueData fmd = locate();
+            if (fmd == null) {
+                return -1;
+            }
+            long position = cursor.getNowReadByteIndex();
+            int length = fmd.readInto(position, dst);
+            removed(1, cursor.remove(1, fmd.recordSize(position)));
+            return length;
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 批量弹出数据【一次加锁顺序读取，每个数据文件只更新一次游标】<br/>
+     * 第一条数据超过长度上限时仍然返回这一条，避免大数据无法被消费
+     *
+     * @param maxRecords 最多弹出的记录数
+     * @param maxBytes   最多弹出的数据长度
+     * @return 数据，没有数据返回空列表
+     */
+    public List<byte[]> pollBatch(int maxRecords, int maxBytes) {
+        List<byte[]> values = new ArrayList<>();
+        pollRun(values, maxRecords, maxBytes);
+        return values;
+    }
+
+    /**
+     * 弹出所有数据到集合
+     *
+     * @param collection 集合
+     * @return 弹出的记录数
+     */
+    public int drainTo(Collection<? super byte[]> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 弹出数据到集合
+     *
+     * @param collection  集合
+     * @param maxElements 最多弹出的记录数
+     * @return 弹出的记录数
+     */
+    public int drainTo(Collection<? super byte[]> collection, int maxElements) {
+        if (collection == null) {
+            throw new IllegalArgumentException("collection is null");
+        }
+        return pollRun(collection, maxElements, Long.MAX_VALUE);
+    }
+
+    /**
+     * 顺序读取一段数据并推进读取游标，跨数据文件时切换到下一个数据文件继续读取
+     *
+     * @param out        读取的数据
+     * @param maxRecords 最多读取的记录数
+     * @param maxBytes   最多读取的数据长度
+     * @return 读取的记录数
+     */
+    private int pollRun(Collection<? super byte[]> out, int maxRecords, long maxBytes) {
+        queue.assertFileClosed();
+        if (cursor.getCount() <= 0) {
+            return 0;
+        }
+        int records = 0;
+        long bytes = 0;
+        takeLock.lock();
+        try {
+            queue.assertFileClosed();
+            assertNoDelivery();
+            while (records < maxRecords) {
+                FileQueueData fmd = locate();
+                if (fmd == null) {
+                    break;
+                }
+                int limit = (int) Math.min(maxRecords - records, cursor.getCount());
+                long[] result = fmd.read(cursor.getNowReadByteIndex(), limit, maxBytes - bytes, records == 0, out);
+                if (result[0] == 0) {
+                    break;
+                }
+                removed((int) result[0], cursor.remove(result[0], result[1]));
+                records += (int) result[0];
+                bytes += result[2];
+            }
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            takeLock.unlock();
+        }
+        return records;
+    }
+
+    /**
+     * 确认消费模式投递一条数据：优先重新投递被拒绝或确认超时的数据，投递窗口已满时不投递新数据
+     *
+     * @return 投递，没有可投递的数据返回null
+     */
+    public FileQueueDelivery pollDelivery() {
+        queue.assertFileClosed();
+        takeLock.lock();
+        try {
+            return deliver(System.nanoTime());
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 确认消费模式投递一条数据，没有可投递的数据时最多等待指定时间
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return 投递，超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public FileQueueDelivery pollDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        takeLock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                FileQueueDelivery delivery = deliver(now);
+                if (delivery != null) {
+                    return delivery;
+                }
+                long nanos = end - now;
+                if (nanos <= 0) {
+                    return null;
+                }
+                // 等待新数据、确认、拒绝，或最早的确认超时
+                if (!deadlines.isEmpty()) {
+                    nanos = Math.min(nanos, Math.max(1, deadlines.first().getDeadline() - now));
+                }
+                notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 确认【连续被确认的数据批量推进读取游标】
+     *
+     * @param delivery 投递
+     */
+    public void ack(FileQueueDelivery delivery) {
+        takeLock.lock();
+        try {
+            FileQueueDelivery pending = pending(delivery);
+            if (pending == null) {
+                return;
+            }
+            deadlines.remove(pending);
+            pending.setAcked(true);
+            if (pending.isQueued()) {
+                pending.setQueued(false);
+                redeliveries.remove(pending);
+            }
+            commitAcked();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 拒绝，数据立即重新投递
+     *
+     * @param delivery 投递
+     */
+    public void nack(FileQueueDelivery delivery) {
+        takeLock.lock();
+        try {
+            FileQueueDelivery pending = pending(delivery);
+            if (pending == null || pending.isQueued()) {
+                return;
+            }
+            deadlines.remove(pending);
+            pending.setQueued(true);
+            redeliveries.add(pending);
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 投递窗口中的数据量(包含已确认但尚未推进读取游标的数据)
+     *
+     * @return 数据量
+     */
+    public int getInFlightSize() {
+        takeLock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 投递一条数据【调用方持有读锁】
+     *
+     * @param now 当前时间
+     * @return 投递，没有可投递的数据返回null
+     */
+    private FileQueueDelivery deliver(long now) {
+        queue.assertFileClosed();
+        FileQueueDelivery delivery = redeliveries.poll();
+        if (delivery == null && !deadlines.isEmpty() && deadlines.first().getDeadline() - now <= 0) {
+            // 最早超时的投递，修改超时时间前移出排序
+            delivery = deadlines.pollFirst();
+        }
+        if (delivery != null) {
+            delivery.redeliver(now + ackTimeoutNanos);
+            deadlines.add(delivery);
+            return delivery;
+        }
+        if (inFlight.size() >= maxInFlight) {
+            return null;
+        }
+        if (inFlight.isEmpty()) {
+            dispatchFileIndex = cursor.getNowReadFileIndex();
+            dispatchByteIndex = cursor.getNowReadByteIndex();
+        }
+        if (cursor.getCount() <= inFlight.size()) {
+            return null;
+        }
+        try {
+            while (true) {
+                FileQueueData fmd = queue.getData(dispatchFileIndex);
+                if (fmd == null) {
+                    return null;
+                }
+                int recordSize;
+                try {
+                    recordSize = fmd.recordSize(dispatchByteIndex);
+                } catch (FileStoreOutSizeException e) {
+                    if (dispatchFileIndex >= queue.getNowWriteFileIndex()) {
+                        return null;
+                    }
+                    dispatchFileIndex++;
+                    dispatchByteIndex = 0;
+                    queue.readAhead(dispatchFileIndex);
+                    continue;
+                }
+                delivery = new FileQueueDelivery(this, nextSequence++, dispatchFileIndex, dispatchByteIndex, recordSize, fmd.read(dispatchByteIndex), now + ackTimeoutNanos);
+                inFlight.put(delivery.getSequence(), delivery);
+                deadlines.add(delivery);
+                dispatched = inFlight.size();
+                dispatchByteIndex += recordSize;
+                return delivery;
+            }
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 校验投递属于本消费者且尚未确认【调用方持有读锁】
+     *
+     * @param delivery 投递
+     * @return 投递窗口中的投递，已确认或已提交返回null
+     */
+    private FileQueueDelivery pending(FileQueueDelivery delivery) {
+        queue.assertFileClosed();
+        if (delivery == null || delivery.getConsumer() != this) {
+            throw new IllegalArgumentException("delivery is not from this consumer");
+        }
+        FileQueueDelivery pending = inFlight.get(delivery.getSequence());
+        if (pending != delivery || pending.isAcked()) {
+            return null;
+        }
+        return pending;
+    }
+
+    /**
+     * 从投递窗口头部开始，连续被确认的数据批量推进读取游标【调用方持有读锁】
+     */
+    private void commitAcked() {
+        int records = 0;
+        long length = 0;
+        long before = 0;
+        while (!inFlight.isEmpty() && inFlight.firstEntry().getValue().isAcked()) {
+            FileQueueDelivery delivery = inFlight.pollFirstEntry().getValue();
+            if (delivery.getFileIndex() != cursor.getNowReadFileIndex()) {
+                if (records > 0) {
+                    before = cursor.remove(records, length);
+                    records = 0;
+                    length = 0;
+                }
+                while (cursor.getNowReadFileIndex() < delivery.getFileIndex()) {
+                    cursor.nextFile();
+                }
+            }
+            records++;
+            length += delivery.getRecordSize();
+        }
+        if (records > 0) {
+            before = cursor.remove(records, length);
+            queue.prefetch(cursor, prefetched);
+        }
+        dispatched = inFlight.size();
+        if (before > 0) {
+            // 投递窗口有空位
+            notEmpty.signal();
+        }
+    }
+
+    /**
+     * 移动读取游标到指定序号的数据【可以回退到未清理的已消费数据重新消费，或跳过未消费的数据】<br/>
+     * 有未确认的投递时不能移动
+     *
+     * @param sequence 序号
+     */
+    public void seek(long sequence) {
+        if (sequence < 0) {
+            throw new IllegalArgumentException("sequence [" + sequence + "] is not available");
+        }
+        queue.seek(this, sequence);
+    }
+
+    /**
+     * 移动读取游标到第一条可用数据【未清理的数据文件中最早的数据】
+     */
+    public void rewind() {
+        queue.seek(this, -1);
+    }
+
+    /**
+     * 下一条读取数据的序号【确认消费模式下为第一条未确认数据的序号】
+     *
+     * @return 序号
+     */
+    public long position() {
+        return queue.position(this);
+    }
+
+    /**
+     * 移动读取游标【调用方持有写锁与读锁】
+     *
+     * @param fileIndex 读文件编号
+     * @param byteIndex 读数据游标
+     * @param count     移动后未消费的数据量
+     */
+    protected void seekTo(long fileIndex, long byteIndex, long count) {
+        assertNoDelivery();
+        cursor.seek(fileIndex, byteIndex, count);
+        prefetched[0] = fileIndex;
+        prefetched[1] = byteIndex;
+        if (count > 0) {
+            notEmpty.signal();
+        }
+    }
+
+    /**
+     * 直接消费前检查投递窗口【调用方持有读锁】
+     */
+    private void assertNoDelivery() {
+        if (!inFlight.isEmpty()) {
+            throw new IllegalArgumentException("deliveries are in flight, ack or nack them before poll");
+        }
+    }
+
+    /**
+     * 读取一条数据并推进读取游标【调用方持有读锁】
+     *
+     * @return 数据，没有数据返回null
+     */
+    private byte[] dequeue() {
+        queue.assertFileClosed();
+        assertNoDelivery();
+        FileQueueData fmd = locate();
+        if (fmd == null) {
+            return null;
+        }
+        try {
+            long position = cursor.getNowReadByteIndex();
+            byte[] bytes = fmd.read(position);
+            removed(1, cursor.remove(1, fmd.recordSize(position)));
+            return bytes;
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 定位下一条数据所在的数据文件，当前读取的数据文件已读完时切换到下一个数据文件【调用方持有读锁】
+     *
+     * @return 数据文件，没有数据返回null
+     */
+    private FileQueueData locate() {
+        while (cursor.getCount() > 0) {
+            long readFileIndex = cursor.getNowReadFileIndex();
+            FileQueueData fmd = queue.getData(readFileIndex);
+            if (fmd == null) {
+                return null;
+            }
+            try {
+                fmd.recordSize(cursor.getNowReadByteIndex());
+                return fmd;
+            } catch (FileStoreOutSizeException e) {
+                if (readFileIndex >= queue.getNowWriteFileIndex()) {
+                    return null;
+                }
+                cursor.nextFile();
+                queue.readAhead(cursor.getNowReadFileIndex());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 消费后仍有数据时唤醒下一个等待的消费者，并按需预读之后的数据【调用方持有读锁】
+     *
+     * @param records 消费的记录数
+     * @param before  消费前的数据量
+     */
+    private void removed(int records, long before) {
+        if (before > records) {
+            notEmpty.signal();
+        }
+        queue.prefetch(cursor, prefetched);
+    }
+
+    /**
+     * 消费组新增数据【生产者持有写锁增加计数，由没有可消费的数据变为有时释放写锁后唤醒等待的消费者】
+     *
+     * @param records 新增的记录数
+     * @return 是否需要唤醒
+     */
+    protected boolean added(int records) {
+        return starved(cursor.addCount(records));
+    }
+
+    /**
+     * 新增数据前是否没有可消费的数据【确认消费模式下，投递窗口中的数据不可再投递，新增数据时同样需要唤醒】
+     *
+     * @param before 新增数据前的数据量
+     * @return 新增的数据是否需要唤醒等待的消费者
+     */
+    protected boolean starved(long before) {
+        int pending = dispatched;
+        return before <= pending && pending < maxInFlight;
+    }
+
+    /**
+     * 唤醒一个等待数据的消费者【新增的数据可以消费时，生产者调用】
+     */
+    protected void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 唤醒所有等待数据的消费者【队列关闭时调用，调用方持有读锁】
+     */
+    protected void signalAll() {
+        notEmpty.signalAll();
+    }
+
+}
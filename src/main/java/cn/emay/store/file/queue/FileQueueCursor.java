@@ -0,0 +1,161 @@
+package cn.emay.store.file.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileQueue 的读取游标：默认消费者的游标保存在计数文件中，消费组的游标保存在各自的游标文件中<br/>
+ * 游标只由持有对应读锁的消费者修改；总数为原子计数，由生产者增加、消费者减少；<br/>
+ * 游标只在内存中更新，定时或刷盘时写入检查点；<br/>
+ * 文件编号与数据游标均为64位，同时修改两者时前后各增加一次版本号，检查点按版本号读取一致的游标
+ *
+ * @author Frank
+ */
+public abstract class FileQueueCursor {
+
+    /**
+     * 当前读取的文件编号
+     */
+    private volatile long nowReadFileIndex;
+    /**
+     * 当前读取的数据游标
+     */
+    private volatile long nowReadByteIndex;
+    /**
+     * 读取游标版本【奇数表示正在修改文件编号与数据游标】
+     */
+    private volatile long readVersion;
+    /**
+     * 未消费的数据总数
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * 读取一致的读取游标【检查点调用】
+     *
+     * @return [读文件编号, 读数据游标]
+     */
+    protected long[] readSnapshot() {
+        while (true) {
+            long version = readVersion;
+            if ((version & 1) == 0) {
+                long fileIndex = nowReadFileIndex;
+                long byteIndex = nowReadByteIndex;
+                if (version == readVersion) {
+                    return new long[]{fileIndex, byteIndex};
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 修改读取游标
+     *
+     * @param fileIndex 读文件编号
+     * @param byteIndex 读数据游标
+     */
+    private void moveRead(long fileIndex, long byteIndex) {
+        readVersion++;
+        this.nowReadFileIndex = fileIndex;
+        this.nowReadByteIndex = byteIndex;
+        readVersion++;
+    }
+
+    /**
+     * 当前读取的文件编号
+     *
+     * @return 读文件编号
+     */
+    protected long getNowReadFileIndex() {
+        return nowReadFileIndex;
+    }
+
+    /**
+     * 当前读取的数据游标
+     *
+     * @return 读数据游标
+     */
+    protected long getNowReadByteIndex() {
+        return nowReadByteIndex;
+    }
+
+    /**
+     * 未消费的数据总数
+     *
+     * @return 数据总数
+     */
+    protected long getCount() {
+        return count.get();
+    }
+
+    /**
+     * 增加总数【生产者调用】
+     *
+     * @param records 记录数
+     * @return 增加前的总数
+     */
+    protected long addCount(long records) {
+        return count.getAndAdd(records);
+    }
+
+    /**
+     * 更新总数【启动恢复扫描后调用】
+     *
+     * @param count 总数
+     */
+    protected void updateCount(long count) {
+        this.count.set(count);
+    }
+
+    /**
+     * 切换到下一个文件
+     */
+    protected void nextFile() {
+        moveRead(nowReadFileIndex + 1, 0);
+    }
+
+    /**
+     * 批量删除数据【只更新一次游标】
+     *
+     * @param records 记录数
+     * @param length  记录总长度(头信息+数据)
+     * @return 删除前的总数
+     */
+    protected long remove(long records, long length) {
+        this.nowReadByteIndex += length;
+        return count.getAndAdd(-records);
+    }
+
+    /**
+     * 移动游标到指定位置【调用方持有写锁与对应读锁】
+     *
+     * @param fileIndex 读文件编号
+     * @param byteIndex 读数据游标
+     * @param count     移动后未消费的数据总数
+     */
+    protected void seek(long fileIndex, long byteIndex, long count) {
+        moveRead(fileIndex, byteIndex);
+        this.count.set(count);
+    }
+
+    /**
+     * 写入检查点：内存中的游标与总数写入游标文件【不刷盘】
+     */
+    protected abstract void checkpoint();
+
+    /**
+     * 关闭
+     */
+    protected abstract void close();
+
+    /**
+     * 删除
+     */
+    protected abstract void delete();
+
+    /**
+     * 同步
+     */
+    protected abstract void sync();
+
+}
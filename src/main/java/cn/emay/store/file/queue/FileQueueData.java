@@ -1,17 +1,26 @@
 package cn.emay.store.file.queue;
 
 import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.MappingBudget;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
-import cn.emay.store.file.util.ByteIntConverter;
+import cn.emay.store.file.util.Crc32c;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * FileQueue 的数据文件【定长文件】<br/>
  * <br/>
- * item:<br/>
+ * item v2【带校验，当前写入格式】:<br/>
+ * length|0x80000000(4),crc32c(4),value(length)<br/>
+ * item v1【旧格式，只读】:<br/>
  * length(4),value(length)<br/>
+ * 长度最高位区分格式，同一文件中可以混合两种格式；长度为0表示文件中的数据结束<br/>
+ * 每条数据有递增的64位序号(不写入数据文件)，由数据文件的稀疏索引记录第一条数据的序号，以及按间隔记录的序号、位置与写入时间<br/>
  *
  * @author Frank
  */
@@ -25,24 +34,83 @@ public class FileQueueData {
      * 文件名后缀
      */
     protected final static String END_FILE_NAME = ".eqd";
+    /**
+     * 带校验记录的长度标记
+     */
+    protected final static int CHECKSUM_FLAG = 0x80000000;
+    /**
+     * 稀疏序号索引【历史读取时为null】
+     */
+    private final FileQueueIndex index;
+    /**
+     * 下一条写入数据的序号
+     */
+    private volatile long nextSequence;
+    /**
+     * 已写入数据的结束游标
+     */
+    private volatile long endPosition;
+    /**
+     * 最后一个索引项的数据游标
+     */
+    private long lastIndexedPosition = -FileQueueIndex.INTERVAL;
+    /**
+     * 最后一个索引项的写入时间
+     */
+    private long lastIndexedTime;
+    /**
+     * 多生产者模式下的预留游标【下一次预留的开始位置】
+     */
+    private final AtomicLong reserved = new AtomicLong(-1);
+    /**
+     * 多生产者模式下的提交游标【之前的记录均已写入并计数】
+     */
+    private final AtomicLong committed = new AtomicLong(-1);
+    /**
+     * 多生产者模式下是否已放弃写入【有生产者写入失败，之后预留的生产者改为写入下一个数据文件】
+     */
+    private volatile boolean abandoned;
 
     /**
      * @param dataFile 数据文件
      * @throws IOException IO异常
      */
     protected FileQueueData(File dataFile) throws IOException {
-        store = new FileStoreItem(dataFile, (int) dataFile.length());
+        store = new FileStoreItem(dataFile, dataFile.length());
+        index = null;
     }
 
     /**
      * @param queueDirPath 队列文件夹
      * @param fileSize     单数据文件大小
      * @param index        当前文件编号
+     * @param storageType  存储后端类型
+     * @param budget       映射预算，为null时不受预算管理
      * @throws IOException IO异常
      */
-    protected FileQueueData(String queueDirPath, int fileSize, int index) throws IOException {
-        File file = new File(queueDirPath + File.separator + index + END_FILE_NAME);
-        store = new FileStoreItem(file, fileSize);
+    protected FileQueueData(String queueDirPath, long fileSize, long index, StorageType storageType, MappingBudget budget) throws IOException {
+        store = new FileStoreItem(dataFile(queueDirPath, index), fileSize, storageType, budget);
+        this.index = new FileQueueIndex(store.getFile(), fileSize, storageType, budget);
+    }
+
+    /**
+     * @param store  已准备好的存储文件
+     * @param budget 映射预算，为null时不受预算管理
+     */
+    protected FileQueueData(FileStoreItem store, MappingBudget budget) throws IOException {
+        this.store = store;
+        this.index = new FileQueueIndex(store.getFile(), store.getFileSize(), store.getStorageType(), budget);
+    }
+
+    /**
+     * 数据文件
+     *
+     * @param queueDirPath 队列文件夹
+     * @param index        文件编号
+     * @return 数据文件
+     */
+    protected static File dataFile(String queueDirPath, long index) {
+        return new File(queueDirPath + File.separator + index + END_FILE_NAME);
     }
 
     /**
@@ -50,24 +118,350 @@ public class FileQueueData {
      *
      * @param writePosition 写入开始游标
      * @param bytes         数据
+     * @return 记录总长度，没有写入返回0
      * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    protected synchronized void write(int writePosition, byte[] bytes) throws FileStoreOutSizeException {
+    protected int write(long writePosition, byte[] bytes) throws FileStoreOutSizeException {
         if (bytes == null || bytes.length == 0) {
-            return;
+            return 0;
+        }
+        return write(writePosition, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 写入数据【头信息与数据聚合写入，不拼接临时数组】
+     *
+     * @param writePosition 写入开始游标
+     * @param value         数据(remaining部分)
+     * @return 记录总长度，没有写入返回0
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    protected synchronized int write(long writePosition, ByteBuffer value) throws FileStoreOutSizeException {
+        if (value == null || !value.hasRemaining()) {
+            return 0;
         }
         if (writePosition < 0) {
             throw new IllegalArgumentException("writePosition must bigger than 0");
         }
-        int nextwritePosition = bytes.length + 4 + writePosition;
-        if (nextwritePosition > store.getFileSize()) {
+        int recordSize = value.remaining() + 8;
+        if (writePosition + recordSize > store.getFileSize()) {
             throw new FileStoreOutSizeException();
         }
-        byte[] length = ByteIntConverter.toBytes(bytes.length);
-        byte[] incom = new byte[bytes.length + 4];
-        System.arraycopy(length, 0, incom, 0, 4);
-        System.arraycopy(bytes, 0, incom, 4, bytes.length);
-        store.write(writePosition, incom);
+        ByteBuffer head = ByteBuffer.allocate(8);
+        head.putInt(0, value.remaining() | CHECKSUM_FLAG);
+        head.putInt(4, Crc32c.checksum(value));
+        store.write(writePosition, head, value);
+        return recordSize;
+    }
+
+    /**
+     * 批量写入数据【从指定下标开始尽可能多地写入本文件，所有记录的头信息与数据一次聚合写入】
+     *
+     * @param writePosition 写入开始游标
+     * @param values        数据(remaining部分)，不能包含null或空数据，不改变其position
+     * @param from          开始下标
+     * @return [写入的记录数, 写入的总长度]，文件剩余空间不足一条记录时返回[0, 0]
+     */
+    protected long[] write(long writePosition, ByteBuffer[] values, int from) {
+        if (writePosition < 0) {
+            throw new IllegalArgumentException("writePosition must bigger than 0");
+        }
+        long available = store.getFileSize() - writePosition;
+        long total = 0;
+        int end = from;
+        while (end < values.length && total + values[end].remaining() + 8 <= available) {
+            total += values[end].remaining() + 8;
+            end++;
+        }
+        int records = end - from;
+        if (records == 0) {
+            return new long[]{0, 0};
+        }
+        ByteBuffer heads = ByteBuffer.allocate(records * 8);
+        ByteBuffer[] srcs = new ByteBuffer[records * 2];
+        for (int i = 0; i < records; i++) {
+            ByteBuffer value = values[from + i];
+            heads.putInt(i * 8, value.remaining() | CHECKSUM_FLAG);
+            heads.putInt(i * 8 + 4, Crc32c.checksum(value));
+            heads.limit(i * 8 + 8).position(i * 8);
+            srcs[i * 2] = heads.slice();
+            srcs[i * 2 + 1] = value;
+            heads.clear();
+        }
+        try {
+            store.write(writePosition, srcs);
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return new long[]{records, total};
+    }
+
+    /**
+     * 新数据文件：清空索引，序号从指定序号开始
+     *
+     * @param baseSequence 第一条数据的序号
+     */
+    protected void beginSequence(long baseSequence) {
+        index.reset(baseSequence);
+        this.lastIndexedPosition = -FileQueueIndex.INTERVAL;
+        this.lastIndexedTime = 0;
+        this.nextSequence = baseSequence;
+        this.endPosition = 0;
+    }
+
+    /**
+     * 加载已有数据文件的序号：索引有效时去掉超出数据结束位置的索引项，从最后一个索引项向后遍历得到下一条数据的序号；<br/>
+     * 没有有效索引(旧版本数据文件)时从头遍历数据文件重建索引，写入时间取数据文件的修改时间
+     *
+     * @param previousNextSequence 前一个数据文件的下一条数据序号，没有前一个数据文件时为-1
+     * @param end                  数据结束游标【正在写入的数据文件为恢复后的写入游标，其他数据文件为Long.MAX_VALUE】
+     * @return 下一条数据的序号
+     */
+    protected long loadSequence(long previousNextSequence, long end) {
+        long position = 0;
+        long timestamp;
+        if (index.load()) {
+            index.truncate(end);
+            this.nextSequence = index.getBaseSequence();
+            int last = index.size() - 1;
+            if (last >= 0) {
+                position = index.getPosition(last);
+                this.nextSequence = index.getSequence(last);
+                this.lastIndexedPosition = position;
+                this.lastIndexedTime = index.getTimestamp(last);
+            }
+            timestamp = lastIndexedTime;
+        } else {
+            beginSequence(Math.max(previousNextSequence, 0));
+            timestamp = store.getLastModifiedTime();
+        }
+        this.endPosition = position;
+        try {
+            while (position < end && position + 4 <= store.getFileSize()) {
+                int head = store.readInt(position);
+                if (head == 0) {
+                    break;
+                }
+                int recordSize = headSize(head) + dataLength(head);
+                indexed(position, recordSize, timestamp);
+                position += recordSize;
+            }
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return nextSequence;
+    }
+
+    /**
+     * 记录写入的数据【按写入顺序调用，分配序号并按间隔增加索引项】
+     *
+     * @param position   数据游标
+     * @param recordSize 记录总长度(头信息+数据)
+     * @param timestamp  写入时间
+     */
+    protected void indexed(long position, int recordSize, long timestamp) {
+        long gap = position - lastIndexedPosition;
+        if (gap >= FileQueueIndex.INTERVAL || (gap >= FileQueueIndex.MIN_INTERVAL && timestamp - lastIndexedTime >= FileQueueIndex.TIME_INTERVAL)) {
+            // 时钟回拨时沿用上一个索引项的时间，保持时间递增
+            long time = Math.max(timestamp, lastIndexedTime);
+            index.add(nextSequence, position, time);
+            lastIndexedPosition = position;
+            lastIndexedTime = time;
+        }
+        nextSequence++;
+        endPosition = position + recordSize;
+    }
+
+    /**
+     * 记录批量写入的数据【按写入顺序调用】
+     *
+     * @param position 第一条数据的数据游标
+     * @param values   数据
+     * @param from     开始下标
+     * @param records  记录数
+     */
+    protected void indexed(long position, ByteBuffer[] values, int from, int records) {
+        long timestamp = System.currentTimeMillis();
+        long offset = position;
+        for (int i = from; i < from + records; i++) {
+            int recordSize = values[i].remaining() + 8;
+            indexed(offset, recordSize, timestamp);
+            offset += recordSize;
+        }
+    }
+
+    /**
+     * 第一条数据的序号
+     *
+     * @return 序号
+     */
+    protected long getBaseSequence() {
+        return index.getBaseSequence();
+    }
+
+    /**
+     * 下一条写入数据的序号
+     *
+     * @return 序号
+     */
+    protected long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * 预读数据到页缓存【预读线程调用，文件已关闭时忽略】
+     *
+     * @param begin 开始游标
+     * @param end   结束游标(不包含)
+     */
+    protected void prefetch(long begin, long end) {
+        store.prefetch(begin, end - begin);
+    }
+
+    /**
+     * 按数据游标查找序号【二分查找索引项后向后遍历】
+     *
+     * @param position 数据游标【记录的开始位置或数据结束位置】
+     * @return 该位置数据的序号，超出数据结束位置时返回下一条写入数据的序号
+     */
+    protected long sequenceOf(long position) {
+        int i = index.floorByPosition(position);
+        long offset = i < 0 ? 0 : index.getPosition(i);
+        long current = i < 0 ? getBaseSequence() : index.getSequence(i);
+        try {
+            while (offset < position && current < nextSequence) {
+                offset += recordSize(offset);
+                current++;
+            }
+        } catch (FileStoreOutSizeException e) {
+            return nextSequence;
+        }
+        return current;
+    }
+
+    /**
+     * 按序号查找数据游标【二分查找索引项后向后遍历】
+     *
+     * @param sequence 序号，等于下一条写入数据的序号时返回数据结束位置
+     * @return 数据游标，序号不在本数据文件中返回-1
+     */
+    protected long positionOf(long sequence) {
+        if (sequence < getBaseSequence() || sequence > nextSequence) {
+            return -1;
+        }
+        int i = index.floorBySequence(sequence);
+        long position = i < 0 ? 0 : index.getPosition(i);
+        long current = i < 0 ? getBaseSequence() : index.getSequence(i);
+        try {
+            while (current < sequence) {
+                position += recordSize(position);
+                current++;
+            }
+        } catch (FileStoreOutSizeException e) {
+            return -1;
+        }
+        return position;
+    }
+
+    /**
+     * 按写入时间查找数据范围【精确到索引项，调用方持有写锁】
+     *
+     * @param from 开始时间(包含)
+     * @param to   结束时间(包含)
+     * @return [开始游标, 结束游标(不包含)]，结束游标不超过当前已写入数据的结束位置
+     */
+    protected long[] rangeByTime(long from, long to) {
+        long[] range = index.rangeByTime(from, to);
+        range[1] = Math.min(range[1], endPosition);
+        return range;
+    }
+
+    /**
+     * 回放指定范围内的数据
+     *
+     * @param begin   开始游标
+     * @param end     结束游标(不包含)
+     * @param handler 处理器
+     */
+    protected void replay(long begin, long end, HistoryDataHandler handler) {
+        FileQueueHistoryReader.read(store, begin, end, handler);
+    }
+
+    /**
+     * 开始多生产者写入：预留游标与提交游标从指定位置开始
+     *
+     * @param position 写入开始游标
+     */
+    protected void beginAppend(long position) {
+        committed.set(position);
+        reserved.set(position);
+    }
+
+    /**
+     * 预留写入区域【原子操作，预留的区域可能超出文件大小】
+     *
+     * @param length 预留长度
+     * @return 预留区域的开始位置
+     */
+    protected long reserve(long length) {
+        return reserved.getAndAdd(length);
+    }
+
+    /**
+     * 提交游标
+     *
+     * @return 提交游标
+     */
+    protected long getCommitted() {
+        return committed.get();
+    }
+
+    /**
+     * 推进提交游标
+     *
+     * @param position 提交游标
+     */
+    protected void commit(long position) {
+        committed.set(position);
+    }
+
+    /**
+     * 放弃多生产者写入【写入失败的生产者在轮到其提交时调用，调用方持有写锁】<br/>
+     * 清零写入失败的区域，读取在此结束；序号与数据结束游标回到写入失败前；<br/>
+     * 之后预留的生产者不再等待提交，改为写入下一个数据文件【其已写入的数据在清零的记录头之后，不会被读取，启动恢复时清零】
+     *
+     * @param position     写入失败的位置
+     * @param length       写入失败的预留长度
+     * @param nextSequence 写入失败前的下一条数据序号
+     */
+    protected synchronized void abandon(long position, long length, long nextSequence) {
+        this.abandoned = true;
+        this.nextSequence = nextSequence;
+        this.endPosition = position;
+        try {
+            index.truncate(position);
+            store.zero(position, Math.min(length, store.getFileSize() - position));
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 是否已放弃多生产者写入
+     *
+     * @return 是否已放弃
+     */
+    protected boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * 文件大小
+     *
+     * @return 文件大小
+     */
+    protected long getFileSize() {
+        return store.getFileSize();
     }
 
     /**
@@ -77,44 +471,175 @@ public class FileQueueData {
      * @return 数据
      * @throws FileStoreOutSizeException 数据超出文件大小异常
      */
-    protected byte[] read(int readPosition) throws FileStoreOutSizeException {
-        int nextwritePosition = readPosition + 4;
-        if (nextwritePosition > store.getFileSize()) {
+    protected byte[] read(long readPosition) throws FileStoreOutSizeException {
+        int head = readHead(readPosition);
+        return store.read(readPosition + headSize(head), dataLength(head));
+    }
+
+    /**
+     * 批量顺序读取数据【只读取记录头与数据，不修改文件】<br/>
+     * 遇到文件中数据结束、记录数上限或数据长度上限时停止
+     *
+     * @param readPosition 读取开始游标
+     * @param maxRecords   最多读取的记录数
+     * @param maxBytes     最多读取的数据长度
+     * @param atLeastOne   第一条数据超过长度上限时是否仍然读取
+     * @param out          读取的数据
+     * @return [读取的记录数, 读取的记录总长度(头信息+数据), 读取的数据长度]
+     * @throws FileStoreOutSizeException 读取开始游标处没有数据或数据超出文件大小异常
+     */
+    protected long[] read(long readPosition, int maxRecords, long maxBytes, boolean atLeastOne, Collection<? super byte[]> out) throws FileStoreOutSizeException {
+        readHead(readPosition);
+        long position = readPosition;
+        long payload = 0;
+        int records = 0;
+        long size = store.getFileSize();
+        while (records < maxRecords && position + 4 <= size) {
+            int head = store.readInt(position);
+            if (head == 0) {
+                break;
+            }
+            int length = dataLength(head);
+            if (payload + length > maxBytes && !(atLeastOne && records == 0)) {
+                break;
+            }
+            out.add(store.read(position + headSize(head), length));
+            position += headSize(head) + length;
+            payload += length;
+            records++;
+        }
+        return new long[]{records, position - readPosition, payload};
+    }
+
+    /**
+     * 读取数据到目标缓冲区
+     *
+     * @param readPosition 读取开始游标
+     * @param dst          目标缓冲区，剩余空间不足时抛出IllegalArgumentException且不读取
+     * @return 数据长度
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    protected int readInto(long readPosition, ByteBuffer dst) throws FileStoreOutSizeException {
+        int head = readHead(readPosition);
+        int length = dataLength(head);
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("dst remaining [" + dst.remaining() + "] is less than data length [" + length + "]");
+        }
+        store.readInto(readPosition + headSize(head), length, dst);
+        return length;
+    }
+
+    /**
+     * 获取数据的只读视图，不拷贝数据；文件关闭后视图不可再使用
+     *
+     * @param readPosition 读取开始游标
+     * @return 只读视图
+     * @throws FileStoreOutSizeException 数据超出文件大小异常
+     */
+    protected ByteBuffer slice(long readPosition) throws FileStoreOutSizeException {
+        int head = readHead(readPosition);
+        return store.slice(readPosition + headSize(head), dataLength(head));
+    }
+
+    /**
+     * 读取记录总长度(头信息+数据)
+     *
+     * @param readPosition 读取开始游标
+     * @return 记录总长度
+     * @throws FileStoreOutSizeException 没有数据或数据超出文件大小异常
+     */
+    protected int recordSize(long readPosition) throws FileStoreOutSizeException {
+        int head = readHead(readPosition);
+        return headSize(head) + dataLength(head);
+    }
+
+    /**
+     * 读取记录头【长度与格式标记】
+     *
+     * @param readPosition 读取开始游标
+     * @return 记录头
+     * @throws FileStoreOutSizeException 没有数据或数据超出文件大小异常
+     */
+    private int readHead(long readPosition) throws FileStoreOutSizeException {
+        if (readPosition + 4 > store.getFileSize()) {
             throw new FileStoreOutSizeException();
         }
-        byte[] lengthbytes = store.read(readPosition, 4);
-        int length = ByteIntConverter.toInt(lengthbytes);
-        if (length == 0) {
+        int head = store.readInt(readPosition);
+        if (head == 0) {
             throw new FileStoreOutSizeException();
         }
-        return store.read(readPosition + 4, length);
+        return head;
+    }
+
+    /**
+     * 记录头信息长度
+     *
+     * @param head 记录头
+     * @return 头信息长度
+     */
+    protected static int headSize(int head) {
+        return (head & CHECKSUM_FLAG) != 0 ? 8 : 4;
     }
 
     /**
-     * 读取文件包含的数据数量<br/>
-     * 保留方法：遍历所有数据，校正总数，暂时不需要；
+     * 记录数据长度
+     *
+     * @param head 记录头
+     * @return 数据长度
+     */
+    protected static int dataLength(int head) {
+        return head & ~CHECKSUM_FLAG;
+    }
+
+    /**
+     * 恢复扫描：从起始游标顺序校验记录，遇到第一条损坏的记录、或数据结束后仍有残留内容时截断(清零其后的内容)<br/>
+     * 带校验的记录按校验值判断；旧格式记录无法校验，只信任计数文件记录的写入游标之前的部分；<br/>
+     * 正常关闭时数据文件已刷盘，数据结束后不会残留内容，不再检查
      *
      * @param beginPosition 起始游标
-     * @return 数据数量
+     * @param trustedEnd    旧格式记录可信的结束游标
+     * @param checkTail     是否检查数据结束后残留的内容
+     * @return [有效数据的结束游标, 有效记录数]
      */
-    protected int readDataInfo(int beginPosition) {
-        int count = 0;
-        int readPosition = beginPosition;
+    protected synchronized long[] recover(long beginPosition, long trustedEnd, boolean checkTail) {
+        long position = beginPosition;
+        long count = 0;
         long size = store.getFileSize();
-        while (readPosition + 4 < size) {
-            try {
-                byte[] lengthbytes = store.read(readPosition, 4);
-                int length = ByteIntConverter.toInt(lengthbytes);
-                if (length <= 0) {
+        boolean broken = false;
+        try {
+            while (position + 4 <= size) {
+                int head = store.readInt(position);
+                if (head == 0) {
+                    // 数据结束：之后应全部为0，残留的内容(如写了一半的记录)与损坏的记录一样清零
+                    broken = checkTail && !store.isZero(position, size - position);
+                    break;
+                }
+                int length = dataLength(head);
+                int headSize = headSize(head);
+                if (length == 0 || position + headSize + length > size) {
+                    broken = true;
                     break;
                 }
-                readPosition += 4 + length;
+                if (headSize == 4) {
+                    if (position + 4 + length > trustedEnd) {
+                        broken = true;
+                        break;
+                    }
+                } else if (store.readInt(position + 4) != Crc32c.checksum(store.slice(position + 8, length))) {
+                    broken = true;
+                    break;
+                }
+                position += headSize + length;
                 count++;
-            } catch (FileStoreOutSizeException e) {
-                throw new IllegalArgumentException(e);
             }
+            if (broken) {
+                store.zero(position, size - position);
+                store.sync();
+            }
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
         }
-        return count;
+        return new long[]{position, count};
     }
 
     /**
@@ -122,6 +647,9 @@ public class FileQueueData {
      */
     protected synchronized void close() {
         store.close();
+        if (index != null) {
+            index.close();
+        }
     }
 
     /**
@@ -129,6 +657,9 @@ public class FileQueueData {
      */
     protected synchronized void delete() {
         store.delete();
+        if (index != null) {
+            index.delete();
+        }
     }
 
     /**
@@ -136,6 +667,9 @@ public class FileQueueData {
      */
     protected synchronized void sync() {
         store.sync();
+        if (index != null) {
+            index.sync();
+        }
     }
 
     /**
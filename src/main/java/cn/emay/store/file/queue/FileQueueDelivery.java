@@ -0,0 +1,166 @@
+package cn.emay.store.file.queue;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FileQueue 确认消费模式下的一次投递<br/>
+ * 消费者处理完成后调用 ack 确认，处理失败调用 nack 立即重新投递；超过确认超时时间未确认的数据也会重新投递；
+ *
+ * @author Frank
+ */
+public class FileQueueDelivery {
+
+    /**
+     * 所属消费者
+     */
+    private final FileQueueConsumer consumer;
+    /**
+     * 投递序号【按数据在队列中的顺序递增】
+     */
+    private final long sequence;
+    /**
+     * 数据所在的文件编号
+     */
+    private final long fileIndex;
+    /**
+     * 数据所在的数据游标
+     */
+    private final long byteIndex;
+    /**
+     * 记录总长度(头信息+数据)
+     */
+    private final int recordSize;
+    /**
+     * 数据
+     */
+    private final byte[] data;
+    /**
+     * 投递次数
+     */
+    private int deliveryCount;
+    /**
+     * 确认超时时间【System.nanoTime】
+     */
+    private long deadline;
+    /**
+     * 是否已确认
+     */
+    private boolean acked;
+    /**
+     * 是否在等待重新投递
+     */
+    private boolean queued;
+
+    /**
+     * @param consumer   所属消费者
+     * @param sequence   投递序号
+     * @param fileIndex  数据所在的文件编号
+     * @param byteIndex  数据所在的数据游标
+     * @param recordSize 记录总长度
+     * @param data       数据
+     * @param deadline   确认超时时间
+     */
+    protected FileQueueDelivery(FileQueueConsumer consumer, long sequence, long fileIndex, long byteIndex, int recordSize, byte[] data, long deadline) {
+        this.consumer = consumer;
+        this.sequence = sequence;
+        this.fileIndex = fileIndex;
+        this.byteIndex = byteIndex;
+        this.recordSize = recordSize;
+        this.data = data;
+        this.deadline = deadline;
+        this.deliveryCount = 1;
+    }
+
+    /**
+     * 数据
+     *
+     * @return 数据
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * 数据【UTF-8字符串】
+     *
+     * @return 数据
+     */
+    public String getValue() {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 投递次数，重新投递时大于1
+     *
+     * @return 投递次数
+     */
+    public int getDeliveryCount() {
+        return deliveryCount;
+    }
+
+    /**
+     * 确认
+     */
+    public void ack() {
+        consumer.ack(this);
+    }
+
+    /**
+     * 拒绝，立即重新投递
+     */
+    public void nack() {
+        consumer.nack(this);
+    }
+
+    protected FileQueueConsumer getConsumer() {
+        return consumer;
+    }
+
+    protected long getSequence() {
+        return sequence;
+    }
+
+    protected long getFileIndex() {
+        return fileIndex;
+    }
+
+    protected long getByteIndex() {
+        return byteIndex;
+    }
+
+    protected int getRecordSize() {
+        return recordSize;
+    }
+
+    protected long getDeadline() {
+        return deadline;
+    }
+
+    protected boolean isAcked() {
+        return acked;
+    }
+
+    protected void setAcked(boolean acked) {
+        this.acked = acked;
+    }
+
+    protected boolean isQueued() {
+        return queued;
+    }
+
+    protected void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * 重新投递
+     *
+     * @param deadline 新的确认超时时间
+     */
+    protected void redeliver(long deadline) {
+        this.deadline = deadline;
+        this.queued = false;
+        this.deliveryCount++;
+    }
+
+}
@@ -0,0 +1,217 @@
+package cn.emay.store.file.queue;
+
+import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.StorageType;
+import cn.emay.store.file.exception.FileStoreOutSizeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * FileQueue 消费组的游标文件【定长文件】<br/>
+ * <br/>
+ * v2(32):<br/>
+ * magic(4),version(4),nowReadFileIndex(8),nowReadByteIndex(8),count(8)<br/>
+ * v1(32)【旧格式，打开时自动迁移为v2】:<br/>
+ * magic(4),version(4),nowReadFileIndex(4),nowReadByteIndex(8),count(4),reserved<br/>
+ * <br/>
+ * 游标与总数只在内存中更新，定时或刷盘时写入检查点，启动时按数据文件重新计算总数<br/>
+ *
+ * @author Frank
+ */
+public class FileQueueGroupInfo extends FileQueueCursor {
+
+    /**
+     * 文件大小
+     */
+    private static final int FILE_SIZE = 32;
+
+    /**
+     * 文件标识【EQG】
+     */
+    private static final int MAGIC = 0x45514700;
+
+    /**
+     * 当前版本
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * v1版本
+     */
+    private static final int V1_VERSION = 1;
+
+    /**
+     * 各字段位置
+     */
+    private static final int READ_FILE_POSITION = 8;
+    private static final int READ_BYTE_POSITION = 16;
+    private static final int COUNT_POSITION = 24;
+
+    /**
+     * v1各字段位置
+     */
+    private static final int V1_READ_FILE_POSITION = 8;
+    private static final int V1_READ_BYTE_POSITION = 12;
+    private static final int V1_COUNT_POSITION = 20;
+
+    /**
+     * 文件名后缀
+     */
+    protected final static String END_FILE_NAME = ".eqg";
+
+    /**
+     * 消费组名称
+     */
+    private final String name;
+    /**
+     * 存储文件
+     */
+    private final FileStoreItem store;
+
+    /**
+     * 加载已有的消费组
+     *
+     * @param file        游标文件
+     * @param storageType 存储后端类型
+     * @throws IOException IO异常
+     */
+    protected FileQueueGroupInfo(File file, StorageType storageType) throws IOException {
+        this.name = file.getName().substring(0, file.getName().length() - END_FILE_NAME.length());
+        if (storageType.isPersistent() && file.exists() && file.length() == FILE_SIZE) {
+            migrateV1(file);
+        }
+        this.store = new FileStoreItem(file, FILE_SIZE, storageType);
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(store.read(0, FILE_SIZE));
+            if (bytes.getInt(0) != MAGIC || bytes.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("unknown queue group file format : " + file.getAbsolutePath());
+            }
+            seek(bytes.getLong(READ_FILE_POSITION), bytes.getLong(READ_BYTE_POSITION), bytes.getLong(COUNT_POSITION));
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * v1格式迁移为v2格式：写入临时文件后替换，迁移中断不影响原文件【先只读取头信息，不是v1格式的文件不映射、不改写】
+     *
+     * @param file 游标文件
+     * @throws IOException IO异常
+     */
+    private static void migrateV1(File file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(FILE_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readInt() != V1_VERSION) {
+                return;
+            }
+            raf.seek(0);
+            raf.readFully(bytes.array());
+        }
+        ByteBuffer v2 = ByteBuffer.allocate(FILE_SIZE);
+        v2.putInt(0, MAGIC);
+        v2.putInt(4, VERSION);
+        v2.putLong(READ_FILE_POSITION, bytes.getInt(V1_READ_FILE_POSITION));
+        v2.putLong(READ_BYTE_POSITION, bytes.getLong(V1_READ_BYTE_POSITION));
+        v2.putLong(COUNT_POSITION, bytes.getInt(V1_COUNT_POSITION));
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileStoreItem store = new FileStoreItem(tmpFile, FILE_SIZE);
+        try {
+            store.write(0, v2);
+            store.sync();
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            store.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 新建消费组
+     *
+     * @param file             游标文件
+     * @param storageType      存储后端类型
+     * @param nowReadFileIndex 开始读取的文件编号
+     * @param nowReadByteIndex 开始读取的数据游标
+     * @param count            未消费的数据总数
+     * @throws IOException IO异常
+     */
+    protected FileQueueGroupInfo(File file, StorageType storageType, long nowReadFileIndex, long nowReadByteIndex, long count) throws IOException {
+        this.name = file.getName().substring(0, file.getName().length() - END_FILE_NAME.length());
+        this.store = new FileStoreItem(file, FILE_SIZE, storageType);
+        seek(nowReadFileIndex, nowReadByteIndex, count);
+        checkpoint();
+        store.sync();
+    }
+
+    /**
+     * 游标文件
+     *
+     * @param queueDirPath 队列文件夹
+     * @param name         消费组名称
+     * @return 游标文件
+     */
+    protected static File groupFile(String queueDirPath, String name) {
+        return new File(queueDirPath + File.separator + name + END_FILE_NAME);
+    }
+
+    @Override
+    protected synchronized void checkpoint() {
+        if (store.isClosed()) {
+            return;
+        }
+        long[] read = readSnapshot();
+        ByteBuffer bytes = ByteBuffer.allocate(FILE_SIZE);
+        bytes.putInt(0, MAGIC);
+        bytes.putInt(4, VERSION);
+        bytes.putLong(READ_FILE_POSITION, read[0]);
+        bytes.putLong(READ_BYTE_POSITION, read[1]);
+        bytes.putLong(COUNT_POSITION, getCount());
+        try {
+            this.store.write(0, bytes);
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 消费组名称
+     *
+     * @return 名称
+     */
+    protected String getName() {
+        return name;
+    }
+
+    /**
+     * 关闭【关闭前写入检查点】
+     */
+    @Override
+    protected synchronized void close() {
+        checkpoint();
+        store.close();
+    }
+
+    /**
+     * 删除
+     */
+    @Override
+    protected synchronized void delete() {
+        store.delete();
+    }
+
+    /**
+     * 同步【写入检查点后刷盘】
+     */
+    @Override
+    protected synchronized void sync() {
+        checkpoint();
+        store.sync();
+    }
+
+}
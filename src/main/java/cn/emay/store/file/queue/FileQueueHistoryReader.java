@@ -2,19 +2,39 @@ package cn.emay.store.file.queue;
 
 import cn.emay.store.file.core.FileStoreItem;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
-import cn.emay.store.file.util.ByteIntConverter;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
- * 历史数据读取工具,建议历史文件拷贝到其他位置进行读取，避免被删除逻辑影响
+ * 历史数据读取工具,建议历史文件拷贝到其他位置进行读取，避免被删除逻辑影响<br/>
+ * 字节模式直接回调只读映射视图，不拷贝、不解码；多个文件可以在线程池中并行读取，过滤条件在读取线程中执行
  *
  * @author Frank
  */
 public class FileQueueHistoryReader {
 
+    /**
+     * 顺序并行读取时每个文件缓冲的数据条数
+     */
+    private static final int ORDERED_BUFFER_SIZE = 1024;
+
     /**
      * 读取，回调模式
      *
@@ -22,34 +42,194 @@ public class FileQueueHistoryReader {
      * @param handler  处理器
      */
     public static void readHistory(File dataFile, HistoryDataHandler handler) {
+        readHistoryBuffer(dataFile, null, toBufferHandler(handler));
+    }
+
+    /**
+     * 读取，字节回调模式
+     *
+     * @param dataFile 数据文件
+     * @param handler  处理器
+     */
+    public static void readHistoryBuffer(File dataFile, HistoryBufferHandler handler) {
+        readHistoryBuffer(dataFile, null, handler);
+    }
+
+    /**
+     * 读取，字节回调模式
+     *
+     * @param dataFile 数据文件
+     * @param filter   过滤条件，只回调返回true的数据，为null时不过滤【不能修改数据视图的position与limit】
+     * @param handler  处理器
+     */
+    public static void readHistoryBuffer(File dataFile, Predicate<ByteBuffer> filter, HistoryBufferHandler handler) {
         if (dataFile == null || !dataFile.exists()) {
             return;
         }
         FileStoreItem store = null;
         try {
-            store = new FileStoreItem(dataFile, (int) dataFile.length(), FileChannel.MapMode.READ_ONLY);
-            int nextBegin = 0;
-            while (true) {
-                try {
-                    if (nextBegin + 4 > store.getFileSize()) {
-                        break;
-                    }
-                    byte[] bytes = store.read(nextBegin, 4);
-                    int length = ByteIntConverter.toInt(bytes);
-                    if (length == 0) {
-                        break;
-                    }
-                    if (nextBegin + 4 + length > store.getFileSize()) {
-                        break;
-                    }
-                    bytes = store.read(nextBegin + 4, length);
-                    handler.handle(new String(bytes, StandardCharsets.UTF_8));
-                    nextBegin += 4 + length;
-                } catch (FileStoreOutSizeException e) {
-                    break;
+            store = new FileStoreItem(dataFile, dataFile.length(), FileChannel.MapMode.READ_ONLY);
+            read(store, 0, Long.MAX_VALUE, filter, handler);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * 并行读取多个文件，字节回调模式【使用临时线程池，读取结束后关闭】
+     *
+     * @param dataFiles   数据文件
+     * @param parallelism 并行读取的文件数
+     * @param ordered     是否按文件顺序回调
+     * @param filter      过滤条件，只回调返回true的数据，为null时不过滤
+     * @param handler     处理器
+     */
+    public static void readHistoryBuffer(List<File> dataFiles, int parallelism, boolean ordered, Predicate<ByteBuffer> filter, HistoryBufferHandler handler) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            readHistoryBuffer(dataFiles, executor, ordered, filter, handler);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 并行读取多个文件，字节回调模式<br/>
+     * 不保证顺序时在线程池中直接回调，处理器需要线程安全；<br/>
+     * 保证顺序时在调用线程中按文件顺序、文件内顺序回调，线程池提前读取与过滤后续文件，每个文件最多缓冲1024条数据，<br/>
+     * 线程池需要按提交顺序执行任务，调用线程不能是线程池中的线程
+     *
+     * @param dataFiles 数据文件
+     * @param executor  线程池
+     * @param ordered   是否按文件顺序回调
+     * @param filter    过滤条件，只回调返回true的数据，为null时不过滤
+     * @param handler   处理器
+     */
+    public static void readHistoryBuffer(List<File> dataFiles, ExecutorService executor, boolean ordered, Predicate<ByteBuffer> filter, HistoryBufferHandler handler) {
+        if (dataFiles == null || dataFiles.isEmpty()) {
+            return;
+        }
+        if (ordered) {
+            readOrdered(dataFiles, executor, filter, handler);
+        } else {
+            readUnordered(dataFiles, executor, filter, handler);
+        }
+    }
+
+    /**
+     * 并行读取，在线程池中直接回调
+     *
+     * @param dataFiles 数据文件
+     * @param executor  线程池
+     * @param filter    过滤条件
+     * @param handler   处理器
+     */
+    private static void readUnordered(List<File> dataFiles, ExecutorService executor, Predicate<ByteBuffer> filter, HistoryBufferHandler handler) {
+        List<Future<?>> futures = new ArrayList<>(dataFiles.size());
+        try {
+            for (File dataFile : dataFiles) {
+                futures.add(executor.submit(() -> readHistoryBuffer(dataFile, filter, handler)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 并行读取，在调用线程中按顺序回调
+     *
+     * @param dataFiles 数据文件
+     * @param executor  线程池
+     * @param filter    过滤条件
+     * @param handler   处理器
+     */
+    private static void readOrdered(List<File> dataFiles, ExecutorService executor, Predicate<ByteBuffer> filter, HistoryBufferHandler handler) {
+        List<OrderedStream> streams = new ArrayList<>(dataFiles.size());
+        try {
+            for (File dataFile : dataFiles) {
+                OrderedStream stream = new OrderedStream(dataFile, filter);
+                streams.add(stream);
+                stream.future = executor.submit(stream);
+            }
+            for (OrderedStream stream : streams) {
+                stream.drain(handler);
+            }
+        } finally {
+            for (OrderedStream stream : streams) {
+                stream.cancel();
+            }
+        }
+    }
+
+    /**
+     * 按写入时间读取，回调模式【按索引文件二分查找开始位置，时间精确到索引项；<br/>
+     * 没有索引文件时按文件修改时间判断，修改时间早于开始时间时跳过，否则全部读取】
+     *
+     * @param dataFile 数据文件
+     * @param from     开始时间(包含)
+     * @param to       结束时间(包含)，为null时不限制
+     * @param handler  处理器
+     */
+    public static void readHistory(File dataFile, Instant from, Instant to, HistoryDataHandler handler) {
+        replay(dataFile, from == null ? Long.MIN_VALUE : from.toEpochMilli(), to == null ? Long.MAX_VALUE : to.toEpochMilli(), handler);
+    }
+
+    /**
+     * 按写入时间读取
+     *
+     * @param dataFile 数据文件
+     * @param from     开始时间(毫秒，包含)
+     * @param to       结束时间(毫秒，包含)
+     * @param handler  处理器
+     */
+    protected static void replay(File dataFile, long from, long to, HistoryDataHandler handler) {
+        if (dataFile == null || !dataFile.exists() || from > to) {
+            return;
+        }
+        long[] range = {0, Long.MAX_VALUE};
+        File indexFile = FileQueueIndex.indexFile(dataFile);
+        boolean indexed = false;
+        if (indexFile.exists()) {
+            FileQueueIndex index = null;
+            try {
+                index = new FileQueueIndex(dataFile);
+                if (index.load()) {
+                    range = index.rangeByTime(from, to);
+                    indexed = true;
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            } finally {
+                if (index != null) {
+                    index.close();
                 }
             }
-        } catch (Exception e) {
+        }
+        if (!indexed && dataFile.lastModified() < from) {
+            return;
+        }
+        FileStoreItem store = null;
+        try {
+            store = new FileStoreItem(dataFile, dataFile.length(), FileChannel.MapMode.READ_ONLY);
+            read(store, range[0], range[1], handler);
+        } catch (IOException e) {
             throw new IllegalArgumentException(e);
         } finally {
             if (store != null) {
@@ -58,4 +238,193 @@ public class FileQueueHistoryReader {
         }
     }
 
+    /**
+     * 顺序读取数据，到数据末尾或结束游标为止
+     *
+     * @param store   存储文件
+     * @param begin   开始游标
+     * @param end     结束游标(不包含)
+     * @param handler 处理器
+     */
+    protected static void read(FileStoreItem store, long begin, long end, HistoryDataHandler handler) {
+        read(store, begin, end, null, toBufferHandler(handler));
+    }
+
+    /**
+     * 顺序读取数据，到数据末尾或结束游标为止【回调只读视图，不拷贝】
+     *
+     * @param store   存储文件
+     * @param begin   开始游标
+     * @param end     结束游标(不包含)
+     * @param filter  过滤条件，为null时不过滤
+     * @param handler 处理器
+     */
+    protected static void read(FileStoreItem store, long begin, long end, Predicate<ByteBuffer> filter, HistoryBufferHandler handler) {
+        long nextBegin = begin;
+        while (nextBegin < end) {
+            try {
+                if (nextBegin + 4 > store.getFileSize()) {
+                    break;
+                }
+                int head = store.readInt(nextBegin);
+                if (head == 0) {
+                    break;
+                }
+                int headSize = FileQueueData.headSize(head);
+                int length = FileQueueData.dataLength(head);
+                if (nextBegin + headSize + length > store.getFileSize()) {
+                    break;
+                }
+                ByteBuffer data = store.slice(nextBegin + headSize, length);
+                if (filter == null || filter.test(data)) {
+                    handler.handle(data);
+                }
+                nextBegin += headSize + length;
+            } catch (FileStoreOutSizeException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 字符串处理器转为字节处理器【按UTF-8解码】
+     *
+     * @param handler 处理器
+     * @return 字节处理器
+     */
+    private static HistoryBufferHandler toBufferHandler(HistoryDataHandler handler) {
+        return data -> handler.handle(StandardCharsets.UTF_8.decode(data).toString());
+    }
+
+    /**
+     * 顺序并行读取中的单个文件：线程池中读取与过滤，放入有界缓冲，<br/>
+     * 调用线程回调完成后才关闭文件【缓冲中是文件的只读视图】
+     */
+    private static class OrderedStream implements Runnable {
+
+        /**
+         * 文件结束标记
+         */
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        /**
+         * 数据文件
+         */
+        private final File dataFile;
+        /**
+         * 过滤条件
+         */
+        private final Predicate<ByteBuffer> filter;
+        /**
+         * 缓冲
+         */
+        private final BlockingQueue<ByteBuffer> buffer = new ArrayBlockingQueue<>(ORDERED_BUFFER_SIZE);
+        /**
+         * 调用线程回调完成
+         */
+        private final CountDownLatch drained = new CountDownLatch(1);
+        /**
+         * 读取任务
+         */
+        private Future<?> future;
+        /**
+         * 读取异常
+         */
+        private volatile RuntimeException error;
+        /**
+         * 是否取消
+         */
+        private volatile boolean cancelled;
+
+        private OrderedStream(File dataFile, Predicate<ByteBuffer> filter) {
+            this.dataFile = dataFile;
+            this.filter = filter;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled || !dataFile.exists()) {
+                put(END);
+                return;
+            }
+            FileStoreItem store = null;
+            try {
+                store = new FileStoreItem(dataFile, dataFile.length(), FileChannel.MapMode.READ_ONLY);
+                read(store, 0, Long.MAX_VALUE, filter, data -> {
+                    put(data);
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+                });
+            } catch (CancellationException e) {
+                // 已取消，调用线程不再回调
+            } catch (IOException e) {
+                error = new IllegalArgumentException(e);
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                // 视图在调用线程回调完成前不能关闭文件
+                put(END);
+                if (store != null) {
+                    store.close();
+                }
+            }
+        }
+
+        /**
+         * 放入缓冲，缓冲满时等待调用线程回调
+         *
+         * @param data 数据
+         */
+        private void put(ByteBuffer data) {
+            try {
+                while (!cancelled && !buffer.offer(data, 100, TimeUnit.MILLISECONDS)) {
+                    // 等待调用线程回调
+                }
+                if (data == END && !cancelled) {
+                    drained.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+        }
+
+        /**
+         * 在调用线程中按顺序回调
+         *
+         * @param handler 处理器
+         */
+        private void drain(HistoryBufferHandler handler) {
+            try {
+                while (true) {
+                    ByteBuffer data = buffer.take();
+                    if (data == END) {
+                        drained.countDown();
+                        if (error != null) {
+                            throw error;
+                        }
+                        return;
+                    }
+                    handler.handle(data);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * 取消读取，释放等待中的读取线程
+         */
+        private void cancel() {
+            cancelled = true;
+            drained.countDown();
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+    }
+
 }
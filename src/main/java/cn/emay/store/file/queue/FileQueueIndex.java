@@ -0,0 +1,440 @@
+package cn.emay.store.file.queue;
+
+import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.MappingBudget;
+import cn.emay.store.file.core.StorageType;
+import cn.emay.store.file.exception.FileStoreOutSizeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * FileQueue 数据文件的稀疏索引【与数据文件同名，后缀为eqi；按4K间隔预留索引项，写满后扩容】<br/>
+ * <br/>
+ * v2:<br/>
+ * magic(4),version(4),baseSequence(8),entryCount(4),reserved(12),entries<br/>
+ * entry:sequence(8),byteIndex(8),timestamp(8)<br/>
+ * <br/>
+ * 数据文件中每隔4K数据记录一个索引项；数据稀疏时，距上一个索引项超过1秒且超过1K数据也记录一个索引项；<br/>
+ * 索引项的时间为该位置数据的写入时间(毫秒)，索引项之间的数据写入时间在前后两个索引项的时间之间；<br/>
+ * 按序号查找时二分查找索引项，再从索引项位置向后最多遍历4K数据；按时间查找精确到索引项；<br/>
+ * 索引项同时保存在内存中，查找不访问文件；
+ *
+ * @author Frank
+ */
+public class FileQueueIndex {
+
+    /**
+     * 文件名后缀
+     */
+    protected final static String END_FILE_NAME = ".eqi";
+
+    /**
+     * 索引间隔【字节】
+     */
+    protected final static int INTERVAL = 4096;
+
+    /**
+     * 按时间记录索引项的最小间隔【字节】
+     */
+    protected final static int MIN_INTERVAL = 1024;
+
+    /**
+     * 按时间记录索引项的时间间隔【毫秒】
+     */
+    protected final static long TIME_INTERVAL = 1000L;
+
+    /**
+     * 文件标识【EQI】
+     */
+    private static final int MAGIC = 0x45514900;
+
+    /**
+     * 当前版本
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * 头信息长度
+     */
+    private static final int HEAD_SIZE = 32;
+
+    /**
+     * 索引项长度
+     */
+    private static final int ENTRY_SIZE = 24;
+
+    /**
+     * 各字段位置
+     */
+    private static final int BASE_SEQUENCE_POSITION = 8;
+    private static final int ENTRY_COUNT_POSITION = 16;
+
+    /**
+     * 存储文件
+     */
+    private final FileStoreItem store;
+    /**
+     * 索引文件可容纳的索引项数量
+     */
+    private int capacity;
+    /**
+     * 最多索引项数量【相邻索引项至少间隔1K数据，按数据文件大小计算】
+     */
+    private final int maxCapacity;
+    /**
+     * 第一条数据的序号
+     */
+    private long baseSequence;
+    /**
+     * 索引项的序号【扩容时复制后替换数组，查找不加锁】
+     */
+    private volatile long[] sequences = new long[16];
+    /**
+     * 索引项的数据游标
+     */
+    private volatile long[] positions = new long[16];
+    /**
+     * 索引项的写入时间
+     */
+    private volatile long[] timestamps = new long[16];
+    /**
+     * 索引项数量【先写入索引项再增加数量，查找时先读取数量，只读取数量以内的索引项】
+     */
+    private volatile int size;
+
+    /**
+     * @param dataFile     数据文件
+     * @param dataFileSize 数据文件大小
+     * @param storageType  存储后端类型
+     * @param budget       映射预算，为null时不受预算管理
+     * @throws IOException IO异常
+     */
+    protected FileQueueIndex(File dataFile, long dataFileSize, StorageType storageType, MappingBudget budget) throws IOException {
+        this.maxCapacity = (int) (dataFileSize / MIN_INTERVAL + 2);
+        int initial = (int) Math.min(maxCapacity, dataFileSize / INTERVAL + 2);
+        this.store = new FileStoreItem(indexFile(dataFile), HEAD_SIZE + (long) initial * ENTRY_SIZE, storageType, budget);
+        this.capacity = (int) Math.min(maxCapacity, (store.getFileSize() - HEAD_SIZE) / ENTRY_SIZE);
+    }
+
+    /**
+     * 只读打开已有的索引文件【历史读取】
+     *
+     * @param dataFile 数据文件
+     * @throws IOException IO异常
+     */
+    protected FileQueueIndex(File dataFile) throws IOException {
+        File file = indexFile(dataFile);
+        this.capacity = (int) Math.max(0, (file.length() - HEAD_SIZE) / ENTRY_SIZE);
+        this.maxCapacity = capacity;
+        this.store = new FileStoreItem(file, file.length(), FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * 索引文件
+     *
+     * @param dataFile 数据文件
+     * @return 索引文件
+     */
+    protected static File indexFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - FileQueueData.END_FILE_NAME.length()) + END_FILE_NAME);
+    }
+
+    /**
+     * 数据文件是否有有效的索引文件【只读取头信息，不映射文件】
+     *
+     * @param dataFile 数据文件
+     * @return 是否有效
+     * @throws IOException IO异常
+     */
+    protected static boolean isValid(File dataFile) throws IOException {
+        File file = indexFile(dataFile);
+        if (file.length() < HEAD_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readInt() == MAGIC && raf.readInt() == VERSION;
+        }
+    }
+
+    /**
+     * 加载索引文件中的索引项
+     *
+     * @return 是否存在有效的索引
+     */
+    protected boolean load() {
+        try {
+            if (store.getFileSize() < HEAD_SIZE) {
+                return false;
+            }
+            ByteBuffer head = ByteBuffer.wrap(store.read(0, HEAD_SIZE));
+            if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION) {
+                return false;
+            }
+            this.baseSequence = head.getLong(BASE_SEQUENCE_POSITION);
+            int count = Math.min(head.getInt(ENTRY_COUNT_POSITION), capacity);
+            ensureCapacity(count);
+            if (count > 0) {
+                ByteBuffer entries = ByteBuffer.wrap(store.read(HEAD_SIZE, count * ENTRY_SIZE));
+                for (int i = 0; i < count; i++) {
+                    sequences[i] = entries.getLong(i * ENTRY_SIZE);
+                    positions[i] = entries.getLong(i * ENTRY_SIZE + 8);
+                    timestamps[i] = entries.getLong(i * ENTRY_SIZE + 16);
+                }
+            }
+            this.size = count;
+            return true;
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 清空索引，重新开始
+     *
+     * @param baseSequence 第一条数据的序号
+     */
+    protected void reset(long baseSequence) {
+        this.baseSequence = baseSequence;
+        this.size = 0;
+        ByteBuffer head = ByteBuffer.allocate(HEAD_SIZE);
+        head.putInt(0, MAGIC);
+        head.putInt(4, VERSION);
+        head.putLong(BASE_SEQUENCE_POSITION, baseSequence);
+        head.putInt(ENTRY_COUNT_POSITION, 0);
+        write(0, head);
+    }
+
+    /**
+     * 截断索引项【只保留数据游标小于指定游标的索引项】
+     *
+     * @param end 数据结束游标
+     */
+    protected void truncate(long end) {
+        int count = size;
+        while (count > 0 && positions[count - 1] >= end) {
+            count--;
+        }
+        if (count != size) {
+            this.size = count;
+            writeCount(count);
+        }
+    }
+
+    /**
+     * 增加索引项【序号、数据游标与时间均递增；索引文件写满时扩容】
+     *
+     * @param sequence  序号
+     * @param position  数据游标
+     * @param timestamp 写入时间
+     * @throws IllegalArgumentException 索引项超过最多数量【相邻索引项至少间隔1K数据，不应发生】
+     */
+    protected void add(long sequence, long position, long timestamp) {
+        if (size >= capacity) {
+            grow();
+        }
+        ensureCapacity(size + 1);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putLong(0, sequence);
+        entry.putLong(8, position);
+        entry.putLong(16, timestamp);
+        write(HEAD_SIZE + (long) size * ENTRY_SIZE, entry);
+        sequences[size] = sequence;
+        positions[size] = position;
+        timestamps[size] = timestamp;
+        size++;
+        writeCount(size);
+    }
+
+    /**
+     * 索引文件扩容为两倍，不超过最多数量
+     */
+    private void grow() {
+        if (capacity >= maxCapacity) {
+            throw new IllegalArgumentException("queue index is full : " + store.getFile().getAbsolutePath());
+        }
+        int length = (int) Math.min(maxCapacity, Math.max(16L, capacity * 2L));
+        try {
+            store.refulshFileSize(HEAD_SIZE + (long) length * ENTRY_SIZE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.capacity = length;
+    }
+
+    /**
+     * 扩容内存中的索引项
+     *
+     * @param count 需要的数量
+     */
+    private void ensureCapacity(int count) {
+        if (count <= sequences.length) {
+            return;
+        }
+        int length = Math.max(count, Math.min(sequences.length * 2, maxCapacity));
+        sequences = Arrays.copyOf(sequences, length);
+        positions = Arrays.copyOf(positions, length);
+        timestamps = Arrays.copyOf(timestamps, length);
+    }
+
+    /**
+     * 写入索引项数量
+     *
+     * @param count 数量
+     */
+    private void writeCount(int count) {
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        bytes.putInt(0, count);
+        write(ENTRY_COUNT_POSITION, bytes);
+    }
+
+    /**
+     * 写入
+     *
+     * @param position 位置
+     * @param bytes    数据
+     */
+    private void write(long position, ByteBuffer bytes) {
+        try {
+            store.write(position, bytes);
+        } catch (FileStoreOutSizeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 第一条数据的序号
+     *
+     * @return 序号
+     */
+    protected long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * 索引项数量
+     *
+     * @return 数量
+     */
+    protected int size() {
+        return size;
+    }
+
+    /**
+     * 查找序号不大于指定序号的最后一个索引项
+     *
+     * @param sequence 序号
+     * @return 索引项下标，不存在返回-1
+     */
+    protected int floorBySequence(long sequence) {
+        int count = size;
+        int i = Arrays.binarySearch(sequences, 0, count, sequence);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * 查找数据游标不大于指定游标的最后一个索引项
+     *
+     * @param position 数据游标
+     * @return 索引项下标，不存在返回-1
+     */
+    protected int floorByPosition(long position) {
+        int count = size;
+        int i = Arrays.binarySearch(positions, 0, count, position);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * 按写入时间查找数据范围【精确到索引项，范围可能多包含开始与结束处索引项之间的少量数据】
+     *
+     * @param from 开始时间(包含)
+     * @param to   结束时间(包含)
+     * @return [开始游标, 结束游标(不包含，到数据末尾时为Long.MAX_VALUE)]
+     */
+    protected long[] rangeByTime(long from, long to) {
+        int count = size;
+        // 写入时间早于开始时间的最后一个索引项之前的数据都早于开始时间
+        int begin = upperBound(from - 1, count) - 1;
+        // 写入时间晚于结束时间的第一个索引项及之后的数据都晚于结束时间
+        int end = upperBound(to, count);
+        return new long[]{begin < 0 ? 0 : positions[begin], end >= count ? Long.MAX_VALUE : positions[end]};
+    }
+
+    /**
+     * 写入时间不大于指定时间的索引项数量
+     *
+     * @param timestamp 时间
+     * @param count     索引项数量
+     * @return 数量
+     */
+    private int upperBound(long timestamp, int count) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 索引项的序号
+     *
+     * @param i 索引项下标
+     * @return 序号
+     */
+    protected long getSequence(int i) {
+        return sequences[i];
+    }
+
+    /**
+     * 索引项的数据游标
+     *
+     * @param i 索引项下标
+     * @return 数据游标
+     */
+    protected long getPosition(int i) {
+        return positions[i];
+    }
+
+    /**
+     * 索引项的写入时间
+     *
+     * @param i 索引项下标
+     * @return 写入时间
+     */
+    protected long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * 关闭
+     */
+    protected synchronized void close() {
+        store.close();
+    }
+
+    /**
+     * 删除
+     */
+    protected synchronized void delete() {
+        store.delete();
+    }
+
+    /**
+     * 同步
+     */
+    protected synchronized void sync() {
+        store.sync();
+    }
+
+}
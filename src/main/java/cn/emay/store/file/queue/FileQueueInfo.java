@@ -1,46 +1,115 @@
 package cn.emay.store.file.queue;
 
 import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.StorageType;
 import cn.emay.store.file.exception.FileStoreOutSizeException;
 import cn.emay.store.file.util.ByteIntConverter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * FileQueue 的 计数文件【定长文件】<br/>
  * <br/>
+ * v3(64):<br/>
+ * magic(4),version(4),nowReadFileIndex(8),nowReadByteIndex(8),count(8),nowWriteFileIndex(8),nowWriteByteIndex(8),flags(4),reserved<br/>
+ * flags：1 默认消费者已使用【从旧格式迁移的计数文件视为已使用】，2 正常关闭【数据文件已刷盘，打开后清除】<br/>
+ * v2(64)【旧格式，打开时自动迁移为v3】:<br/>
+ * magic(4),version(4),nowReadFileIndex(4),nowReadByteIndex(8),count(4),nowWriteByteIndex(8),nowWriteFileIndex(4),reserved<br/>
+ * v1(20)【旧格式，打开时自动迁移为v3】:<br/>
  * nowReadFileIndex(4),nowReadByteIndex(4),count(4),nowWriteByteIndex(4),nowWriteFileIndex(4)<br/>
+ * <br/>
+ * 写入游标只由生产者(持有写锁)修改，读取游标只由消费者(持有读锁)修改，总数为原子计数；<br/>
+ * 游标与总数只在内存中更新，定时或刷盘时写入检查点；文件编号、数据游标与总数均为64位，检查点按版本号读取一致的游标；<br/>
+ * 启动时从检查点的读取游标向后扫描数据文件，重新得到写入游标与总数，检查点之后消费的数据会重新消费<br/>
  *
  * @author Frank
  */
-public class FileQueueInfo {
+public class FileQueueInfo extends FileQueueCursor {
 
     /**
      * 文件大小
      */
-    private static final int fileSize = 20;
+    private static final int fileSize = 64;
+
+    /**
+     * v1文件大小
+     */
+    private static final int V1_FILE_SIZE = 20;
+
+    /**
+     * 文件标识【EQC】
+     */
+    private static final int MAGIC = 0x45514300;
+
+    /**
+     * 当前版本
+     */
+    private static final int VERSION = 3;
+
+    /**
+     * v2版本
+     */
+    private static final int V2_VERSION = 2;
 
     /**
-     * 当前读取的文件编号
+     * 各字段位置
      */
-    private int nowReadFileIndex;
+    private static final int READ_FILE_POSITION = 8;
+    private static final int READ_BYTE_POSITION = 16;
+    private static final int COUNT_POSITION = 24;
+    private static final int WRITE_FILE_POSITION = 32;
+    private static final int WRITE_BYTE_POSITION = 40;
+    private static final int FLAGS_POSITION = 48;
+    private static final int HEAD_SIZE = 52;
+
     /**
-     * 当前读取的数据游标
+     * 默认消费者已使用标记
      */
-    private int nowReadByteIndex;
+    private static final int CONSUMED_FLAG = 1;
+
+    /**
+     * 正常关闭标记
+     */
+    private static final int CLEAN_FLAG = 2;
+
+    /**
+     * v2各字段位置
+     */
+    private static final int V2_READ_FILE_POSITION = 8;
+    private static final int V2_READ_BYTE_POSITION = 12;
+    private static final int V2_COUNT_POSITION = 20;
+    private static final int V2_WRITE_BYTE_POSITION = 24;
+    private static final int V2_WRITE_FILE_POSITION = 32;
+
     /**
      * 当前写入的文件编号
      */
-    private int nowWriteFileIndex;
+    private volatile long nowWriteFileIndex;
     /**
      * 当前写入的数据游标
      */
-    private int nowWriteByteIndex;
+    private volatile long nowWriteByteIndex;
+    /**
+     * 写入游标版本【奇数表示正在修改文件编号与数据游标】
+     */
+    private volatile long writeVersion;
+    /**
+     * 默认消费者是否使用过
+     */
+    private volatile boolean consumed;
     /**
-     * 总数
+     * 上次是否正常关闭
      */
-    private int count;
+    private boolean cleanShutdown;
+    /**
+     * 是否正在关闭【关闭时的检查点写入正常关闭标记】
+     */
+    private boolean closing;
     /**
      * 存储文件
      */
@@ -52,145 +121,228 @@ public class FileQueueInfo {
 
     /**
      * @param queueDirPath Queue的路径
+     * @param storageType  存储后端类型
      * @throws IOException IO异常
      */
-    protected FileQueueInfo(String queueDirPath) throws IOException {
+    protected FileQueueInfo(String queueDirPath, StorageType storageType) throws IOException {
         File file = new File(queueDirPath + File.separator + FILE_NAME);
-        this.store = new FileStoreItem(file, fileSize);
+        if (storageType.isPersistent() && file.exists()) {
+            if (file.length() == V1_FILE_SIZE) {
+                migrateV1(file);
+            } else if (file.length() == fileSize) {
+                migrateV2(file);
+            }
+        }
+        this.store = new FileStoreItem(file, fileSize, storageType);
         try {
-            int begin = 0;
-            byte[] bytes = store.read(0, fileSize);
-            byte[] tmp = new byte[4];
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.nowReadFileIndex = ByteIntConverter.toInt(tmp);
-            this.nowReadFileIndex = this.nowReadFileIndex == 0 ? 1 : this.nowReadFileIndex;
-            begin += 4;
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.nowReadByteIndex = ByteIntConverter.toInt(tmp);
-            begin += 4;
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.count = ByteIntConverter.toInt(tmp);
-            begin += 4;
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.nowWriteByteIndex = ByteIntConverter.toInt(tmp);
-            begin += 4;
-            System.arraycopy(bytes, begin, tmp, 0, 4);
-            this.nowWriteFileIndex = ByteIntConverter.toInt(tmp);
+            ByteBuffer bytes = ByteBuffer.wrap(store.read(0, fileSize));
+            int magic = bytes.getInt(0);
+            if (magic == 0) {
+                seek(1, 0, 0);
+                checkpoint();
+                return;
+            }
+            int version = bytes.getInt(4);
+            if (magic != MAGIC || version != VERSION) {
+                throw new IllegalArgumentException("unknown queue info file format : " + file.getAbsolutePath());
+            }
+            long readFileIndex = bytes.getLong(READ_FILE_POSITION);
+            seek(readFileIndex == 0 ? 1 : readFileIndex, bytes.getLong(READ_BYTE_POSITION), bytes.getLong(COUNT_POSITION));
+            moveWrite(bytes.getLong(WRITE_FILE_POSITION), bytes.getLong(WRITE_BYTE_POSITION));
+            int flags = bytes.getInt(FLAGS_POSITION);
+            this.consumed = (flags & CONSUMED_FLAG) != 0;
+            this.cleanShutdown = (flags & CLEAN_FLAG) != 0;
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
     /**
-     * 新增一个文件
+     * v1格式迁移为v3格式：写入临时文件后替换，迁移中断不影响原文件
+     *
+     * @param file v1计数文件
+     * @throws IOException IO异常
      */
-    protected synchronized void addFile() {
-        this.nowWriteByteIndex = 0;
-        this.nowWriteFileIndex++;
-        byte[] nowWriteByteIndextmp = ByteIntConverter.toBytes(this.nowWriteByteIndex);
-        byte[] nowWriteFileIndextmp = ByteIntConverter.toBytes(this.nowWriteFileIndex);
-        byte[] bytes = new byte[8];
-        System.arraycopy(nowWriteByteIndextmp, 0, bytes, 0, 4);
-        System.arraycopy(nowWriteFileIndextmp, 0, bytes, 4, 4);
+    private static void migrateV1(File file) throws IOException {
+        FileStoreItem v1 = new FileStoreItem(file, V1_FILE_SIZE);
+        byte[] bytes;
         try {
-            this.store.write(12, bytes);
+            bytes = v1.read(0, V1_FILE_SIZE);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
+        } finally {
+            v1.close();
         }
+        byte[] tmp = new byte[4];
+        int[] values = new int[5];
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(bytes, i * 4, tmp, 0, 4);
+            values[i] = ByteIntConverter.toInt(tmp);
+        }
+        ByteBuffer v3 = ByteBuffer.allocate(fileSize);
+        v3.putInt(0, MAGIC);
+        v3.putInt(4, VERSION);
+        v3.putLong(READ_FILE_POSITION, values[0]);
+        v3.putLong(READ_BYTE_POSITION, values[1] & 0xFFFFFFFFL);
+        v3.putLong(COUNT_POSITION, values[2]);
+        v3.putLong(WRITE_FILE_POSITION, values[4]);
+        v3.putLong(WRITE_BYTE_POSITION, values[3] & 0xFFFFFFFFL);
+        v3.putInt(FLAGS_POSITION, CONSUMED_FLAG);
+        replace(file, v3);
     }
 
     /**
-     * 切换到下一个文件
+     * v2格式迁移为v3格式：写入临时文件后替换，迁移中断不影响原文件【先只读取头信息，不是v2格式的文件不映射、不改写】
+     *
+     * @param file 计数文件
+     * @throws IOException IO异常
      */
-    protected synchronized void nextFile() {
-        this.nowReadFileIndex++;
-        this.nowReadByteIndex = 0;
-        byte[] nowReadFileIndextmp = ByteIntConverter.toBytes(this.nowReadFileIndex);
-        byte[] nowReadByteIndextmp = ByteIntConverter.toBytes(this.nowReadByteIndex);
-        byte[] bytes = new byte[8];
-        System.arraycopy(nowReadFileIndextmp, 0, bytes, 0, 4);
-        System.arraycopy(nowReadByteIndextmp, 0, bytes, 4, 4);
-        try {
-            this.store.write(0, bytes);
-        } catch (FileStoreOutSizeException e) {
-            throw new IllegalArgumentException(e);
+    private static void migrateV2(File file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(fileSize);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readInt() != V2_VERSION) {
+                return;
+            }
+            raf.seek(0);
+            raf.readFully(bytes.array());
         }
+        ByteBuffer v3 = ByteBuffer.allocate(fileSize);
+        v3.putInt(0, MAGIC);
+        v3.putInt(4, VERSION);
+        v3.putLong(READ_FILE_POSITION, bytes.getInt(V2_READ_FILE_POSITION));
+        v3.putLong(READ_BYTE_POSITION, bytes.getLong(V2_READ_BYTE_POSITION));
+        v3.putLong(COUNT_POSITION, bytes.getInt(V2_COUNT_POSITION));
+        v3.putLong(WRITE_FILE_POSITION, bytes.getInt(V2_WRITE_FILE_POSITION));
+        v3.putLong(WRITE_BYTE_POSITION, bytes.getLong(V2_WRITE_BYTE_POSITION));
+        v3.putInt(FLAGS_POSITION, CONSUMED_FLAG);
+        replace(file, v3);
     }
 
     /**
-     * 新增数据
+     * 写入临时文件并刷盘后，原子替换计数文件
      *
-     * @param bytesLength 数据长度
-     */
-    protected synchronized void add(int bytesLength) {
-        count++;
-        nowWriteByteIndex += bytesLength + 4;
-        byte[] counttmp = ByteIntConverter.toBytes(this.count);
-        byte[] nowWriteByteIndextmp = ByteIntConverter.toBytes(this.nowWriteByteIndex);
-        byte[] bytes = new byte[8];
-        System.arraycopy(counttmp, 0, bytes, 0, 4);
-        System.arraycopy(nowWriteByteIndextmp, 0, bytes, 4, 4);
+     * @param file  计数文件
+     * @param bytes 新的文件内容
+     * @throws IOException IO异常
+     */
+    private static void replace(File file, ByteBuffer bytes) throws IOException {
+        File tmpFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        FileStoreItem store = new FileStoreItem(tmpFile, fileSize);
         try {
-            this.store.write(8, bytes);
+            store.write(0, bytes);
+            store.sync();
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
+        } finally {
+            store.close();
         }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
-     * 删除数据
-     *
-     * @param bytesLength 数据长度
-     */
-    protected synchronized void remove(int bytesLength) {
-        this.nowReadByteIndex += bytesLength + 4;
-        count--;
-        byte[] nowReadByteIndextmp = ByteIntConverter.toBytes(this.nowReadByteIndex);
-        byte[] counttmp = ByteIntConverter.toBytes(this.count);
-        byte[] bytes = new byte[8];
-        System.arraycopy(nowReadByteIndextmp, 0, bytes, 0, 4);
-        System.arraycopy(counttmp, 0, bytes, 4, 4);
+     * 写入检查点：内存中的游标与总数写入计数文件【不刷盘】
+     */
+    protected synchronized void checkpoint() {
+        if (store.isClosed()) {
+            return;
+        }
+        long[] read = readSnapshot();
+        long[] write = writeSnapshot();
+        ByteBuffer bytes = ByteBuffer.allocate(HEAD_SIZE);
+        bytes.putInt(0, MAGIC);
+        bytes.putInt(4, VERSION);
+        bytes.putLong(READ_FILE_POSITION, read[0]);
+        bytes.putLong(READ_BYTE_POSITION, read[1]);
+        bytes.putLong(COUNT_POSITION, getCount());
+        bytes.putLong(WRITE_FILE_POSITION, write[0]);
+        bytes.putLong(WRITE_BYTE_POSITION, write[1]);
+        bytes.putInt(FLAGS_POSITION, (consumed ? CONSUMED_FLAG : 0) | (closing ? CLEAN_FLAG : 0));
         try {
-            this.store.write(4, bytes);
+            this.store.write(0, bytes);
         } catch (FileStoreOutSizeException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
     /**
-     * 更新总数
+     * 读取一致的写入游标【检查点调用】
      *
-     * @param count 总数
+     * @return [写文件编号, 写数据游标]
      */
-    protected synchronized void updateCount(int count) {
-        if (count == this.count) {
-            return;
-        }
-        this.count = count;
-        byte[] countbytes = ByteIntConverter.toBytes(this.count);
-        try {
-            store.write(16, countbytes);
-        } catch (FileStoreOutSizeException e) {
-            throw new IllegalArgumentException(e);
+    private long[] writeSnapshot() {
+        while (true) {
+            long version = writeVersion;
+            if ((version & 1) == 0) {
+                long fileIndex = nowWriteFileIndex;
+                long byteIndex = nowWriteByteIndex;
+                if (version == writeVersion) {
+                    return new long[]{fileIndex, byteIndex};
+                }
+            }
+            Thread.yield();
         }
     }
 
     /**
-     * 当前读取的文件编号
+     * 修改写入游标
+     *
+     * @param fileIndex 写文件编号
+     * @param byteIndex 写数据游标
+     */
+    private void moveWrite(long fileIndex, long byteIndex) {
+        writeVersion++;
+        this.nowWriteFileIndex = fileIndex;
+        this.nowWriteByteIndex = byteIndex;
+        writeVersion++;
+    }
+
+    /**
+     * 新增一个文件
+     */
+    protected void addFile() {
+        moveWrite(nowWriteFileIndex + 1, 0);
+    }
+
+    /**
+     * 恢复写入的文件编号【检查点之后新建了数据文件，启动恢复时调用】
+     *
+     * @param writeFileIndex 写文件编号
+     */
+    protected void recoverWriteFile(long writeFileIndex) {
+        moveWrite(writeFileIndex, 0);
+    }
+
+    /**
+     * 新增数据
+     *
+     * @param recordSize 记录总长度(头信息+数据)
+     * @return 新增前的总数
+     */
+    protected long add(int recordSize) {
+        return add(1, recordSize);
+    }
+
+    /**
+     * 批量新增数据
      *
-     * @return 读文件编号
+     * @param records 记录数
+     * @param length  记录总长度(头信息+数据)
+     * @return 新增前的总数
      */
-    protected int getNowReadFileIndex() {
-        return nowReadFileIndex;
+    protected long add(long records, long length) {
+        this.nowWriteByteIndex += length;
+        return addCount(records);
     }
 
     /**
-     * 当前读取的数据游标
+     * 恢复写入游标与总数【启动恢复扫描后调用，以数据文件为准】
      *
-     * @return 读数据游标
+     * @param writeByteIndex 写入游标
+     * @param count          总数
      */
-    protected int getNowReadByteIndex() {
-        return nowReadByteIndex;
+    protected void recover(long writeByteIndex, long count) {
+        moveWrite(nowWriteFileIndex, writeByteIndex);
+        updateCount(count);
     }
 
     /**
@@ -198,7 +350,7 @@ public class FileQueueInfo {
      *
      * @return 写文件编号
      */
-    protected int getNowWriteFileIndex() {
+    protected long getNowWriteFileIndex() {
         return nowWriteFileIndex;
     }
 
@@ -207,37 +359,73 @@ public class FileQueueInfo {
      *
      * @return 写数据游标
      */
-    protected int getNowWriteByteIndex() {
+    protected long getNowWriteByteIndex() {
         return nowWriteByteIndex;
     }
 
     /**
-     * 数据总数
+     * 默认消费者是否使用过【只使用消费组时，未使用的默认消费者不阻止清理数据文件】
+     *
+     * @return 是否使用过
+     */
+    protected boolean isConsumed() {
+        return consumed;
+    }
+
+    /**
+     * 标记默认消费者已使用【首次标记时写入检查点】
+     */
+    protected void markConsumed() {
+        if (!consumed) {
+            this.consumed = true;
+            checkpoint();
+        }
+    }
+
+    /**
+     * 上次是否正常关闭【正常关闭时数据文件已刷盘，恢复扫描不检查数据结束后残留的内容】
      *
-     * @return 数据总数
+     * @return 是否正常关闭
      */
-    protected int getCount() {
-        return count;
+    protected boolean isCleanShutdown() {
+        return cleanShutdown;
     }
 
     /**
-     * 关闭
+     * 打开完成：清除正常关闭标记并刷盘，之后崩溃时恢复扫描仍检查数据结束后残留的内容
      */
+    protected synchronized void markOpened() {
+        if (cleanShutdown) {
+            this.cleanShutdown = false;
+            sync();
+        }
+    }
+
+    /**
+     * 关闭【数据文件刷盘并关闭后调用，写入带正常关闭标记的检查点并刷盘】
+     */
+    @Override
     protected synchronized void close() {
+        this.closing = true;
+        checkpoint();
+        store.sync();
         store.close();
     }
 
     /**
      * 删除
      */
+    @Override
     protected synchronized void delete() {
         store.delete();
     }
 
     /**
-     * 同步
+     * 同步【写入检查点后刷盘】
      */
+    @Override
     protected synchronized void sync() {
+        checkpoint();
         store.sync();
     }
 
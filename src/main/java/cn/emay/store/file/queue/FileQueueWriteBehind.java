@@ -0,0 +1,368 @@
+package cn.emay.store.file.queue;
+
+import cn.emay.store.file.exception.FileStoreClosedException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FileQueue 的异步写入：生产者把数据拷贝到预分配的环形缓冲区后立即返回，由一个后台写入线程按顺序批量写入数据文件<br/>
+ * 生产者以原子操作领取环形缓冲区的位置，写入数据后发布该位置；后台写入线程按位置顺序收集已发布的数据，整批写入数据文件；<br/>
+ * 环形缓冲区已满时生产者等待后台写入；后台写入线程至少每个刷盘间隔刷盘一次，异常退出最多丢失刷盘间隔内的数据；<br/>
+ * 写入数据文件失败时保留未写入的数据，间隔一段时间后重试，重试成功前压入与等待写入抛出异常；关闭时仍写入失败的数据丢弃，由关闭抛出；<br/>
+ * 【数据写入数据文件后才能被消费，队列大小与序号不包含环形缓冲区中的数据】
+ *
+ * @author Frank
+ */
+public class FileQueueWriteBehind implements Runnable {
+
+    /**
+     * 关闭标记【领取位置的最高位，关闭后不再领取位置】
+     */
+    private static final long SEALED = Long.MIN_VALUE;
+
+    /**
+     * 每批最多写入的记录数
+     */
+    private static final int MAX_BATCH = 4096;
+
+    /**
+     * 写入失败后重试的间隔，纳秒
+     */
+    private static final long RETRY_NANOS = 100000000L;
+
+    /**
+     * 所属队列
+     */
+    private final FileQueue queue;
+    /**
+     * 环形缓冲区
+     */
+    private final byte[][] slots;
+    /**
+     * 各位置已发布的领取序号【未发布为-1】
+     */
+    private final AtomicLongArray published;
+    /**
+     * 位置掩码
+     */
+    private final int mask;
+    /**
+     * 已领取的数量【最高位为关闭标记】
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * 已写入数据文件的数量
+     */
+    private volatile long consumed;
+    /**
+     * 刷盘间隔，纳秒
+     */
+    private final long flushNanos;
+    /**
+     * 后台写入线程
+     */
+    private final Thread appender;
+    /**
+     * 后台写入线程是否在等待数据
+     */
+    private volatile boolean parked;
+    /**
+     * 写入数据文件的异常【重试成功后清除，期间压入与等待写入抛出】
+     */
+    private volatile RuntimeException error;
+    /**
+     * 刷盘异常【刷盘成功后清除】
+     */
+    private volatile RuntimeException syncError;
+    /**
+     * 关闭时写入失败而丢弃的数据
+     */
+    private volatile RuntimeException lost;
+    /**
+     * 写入进度的等待对象【环形缓冲区已满的生产者与等待写入的调用方在此等待，写入数据文件或失败时唤醒】
+     */
+    private final Object progress = new Object();
+    /**
+     * 等待写入进度的线程数
+     */
+    private volatile int waiters;
+
+    /**
+     * @param queue      所属队列
+     * @param capacity   环形缓冲区大小【向上取整为2的幂】
+     * @param flushMills 刷盘间隔，毫秒
+     */
+    protected FileQueueWriteBehind(FileQueue queue, int capacity, int flushMills) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("writeBehindCapacity must be between 1 and " + (1 << 30));
+        }
+        if (flushMills <= 0) {
+            throw new IllegalArgumentException("writeBehindFlushMills must be bigger than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.queue = queue;
+        this.slots = new byte[size][];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.flushNanos = flushMills * 1000000L;
+        this.appender = new Thread(this, "FileQueue-appender");
+        this.appender.start();
+    }
+
+    /**
+     * 批量写入环形缓冲区【整批领取连续的位置，超过环形缓冲区大小时按环形缓冲区大小分段领取；环形缓冲区已满时等待后台写入】
+     *
+     * @param values 数据，调用方不再修改
+     */
+    protected void offer(byte[][] values) {
+        for (int from = 0; from < values.length; from += slots.length) {
+            offer(values, from, Math.min(values.length - from, slots.length));
+        }
+    }
+
+    /**
+     * 领取连续的位置写入数据后发布
+     *
+     * @param values 数据
+     * @param from   开始下标
+     * @param count  数量，不超过环形缓冲区大小
+     */
+    private void offer(byte[][] values, int from, int count) {
+        assertNoError();
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence < 0) {
+                throw new FileStoreClosedException();
+            }
+            if (claimed.compareAndSet(sequence, sequence + count)) {
+                break;
+            }
+        }
+        long last = sequence + count - 1;
+        if (last - consumed >= slots.length) {
+            // 环形缓冲区已满，已领取位置不能放弃，等待后台写入腾出位置
+            awaitProgress(() -> last - consumed < slots.length, false);
+        }
+        for (int k = 0; k < count; k++) {
+            int i = (int) (sequence + k) & mask;
+            slots[i] = values[from + k];
+            published.set(i, sequence + k);
+        }
+        // 发布与等待标记均为volatile读写：后台写入线程先置等待标记再检查发布，不会错过唤醒
+        if (parked) {
+            LockSupport.unpark(appender);
+        }
+    }
+
+    /**
+     * 等待调用前写入环形缓冲区的数据全部写入数据文件
+     */
+    protected void await() {
+        long target = claimed.get() & ~SEALED;
+        awaitProgress(() -> consumed >= target || error != null, true);
+        RuntimeException e = error;
+        if (e != null) {
+            throw new IllegalArgumentException("write behind failed, buffered records [" + consumed + ", " + target + ") are not written yet, retrying", e);
+        }
+        assertNoError();
+    }
+
+    /**
+     * 等待写入进度满足条件【后台写入线程写入数据文件或失败时唤醒】
+     *
+     * @param condition     条件
+     * @param interruptible 是否响应中断，不响应时等待结束后恢复中断标记
+     */
+    private void awaitProgress(BooleanSupplier condition, boolean interruptible) {
+        boolean interrupted = false;
+        synchronized (progress) {
+            waiters++;
+            try {
+                while (!condition.getAsBoolean()) {
+                    LockSupport.unpark(appender);
+                    try {
+                        progress.wait(flushNanos / 1000000L + 1);
+                    } catch (InterruptedException e) {
+                        if (interruptible) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalArgumentException(e);
+                        }
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                waiters--;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 唤醒等待写入进度的线程【后台写入线程调用】
+     */
+    private void signalProgress() {
+        if (waiters > 0) {
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 关闭：不再接收数据，等待环形缓冲区中的数据全部写入数据文件后停止后台写入线程
+     *
+     * @return 关闭时写入失败而丢弃数据的异常，没有丢弃或已经返回过返回null
+     */
+    protected RuntimeException close() {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence < 0 || claimed.compareAndSet(sequence, sequence | SEALED)) {
+                break;
+            }
+        }
+        LockSupport.unpark(appender);
+        boolean interrupted = false;
+        while (appender.isAlive()) {
+            try {
+                appender.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        RuntimeException e = lost;
+        lost = null;
+        return e;
+    }
+
+    /**
+     * 后台写入：按位置顺序收集已发布的数据整批写入，没有数据时等待，至少每个刷盘间隔刷盘一次
+     */
+    @Override
+    public void run() {
+        long lastFlush = System.nanoTime();
+        boolean dirty = false;
+        while (true) {
+            long next = consumed;
+            long end = next;
+            while (end - next < MAX_BATCH && published.get((int) end & mask) == end) {
+                end++;
+            }
+            if (end > next) {
+                ByteBuffer[] buffers = new ByteBuffer[(int) (end - next)];
+                for (long sequence = next; sequence < end; sequence++) {
+                    buffers[(int) (sequence - next)] = ByteBuffer.wrap(slots[(int) sequence & mask]);
+                }
+                long before = queue.getNextSequence();
+                try {
+                    queue.appendBehind(buffers);
+                    dirty = true;
+                    error = null;
+                    release(next, end);
+                } catch (RuntimeException e) {
+                    // 只释放已写入数据文件的数据，其余保留重试
+                    long written = Math.max(0, Math.min(end - next, queue.getNextSequence() - before));
+                    if (written > 0) {
+                        dirty = true;
+                        release(next, next + written);
+                    }
+                    error = e;
+                    signalProgress();
+                    long limit = claimed.get();
+                    if (limit < 0) {
+                        // 关闭时不再重试，丢弃剩余数据
+                        lost = new IllegalArgumentException("write behind failed on close, buffered records [" + (next + written) + ", " + (limit & ~SEALED) + ") are lost", e);
+                        release(next + written, limit & ~SEALED);
+                        if (dirty) {
+                            flush();
+                        }
+                        return;
+                    }
+                    LockSupport.parkNanos(this, RETRY_NANOS);
+                    continue;
+                }
+            } else {
+                long limit = claimed.get();
+                if (limit < 0 && next == (limit & ~SEALED)) {
+                    // 关闭前刷盘最后写入的数据
+                    if (dirty) {
+                        flush();
+                    }
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            if (dirty && now - lastFlush >= flushNanos) {
+                dirty = !flush();
+                lastFlush = now;
+            }
+            if (end == next) {
+                parked = true;
+                if (published.get((int) next & mask) != next && claimed.get() >= 0) {
+                    LockSupport.parkNanos(this, dirty ? flushNanos - (now - lastFlush) : flushNanos);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    /**
+     * 释放已写入数据文件或丢弃的位置，唤醒等待的线程
+     *
+     * @param from 开始位置
+     * @param to   结束位置(不包含)
+     */
+    private void release(long from, long to) {
+        for (long sequence = from; sequence < to; sequence++) {
+            slots[(int) sequence & mask] = null;
+        }
+        consumed = to;
+        signalProgress();
+    }
+
+    /**
+     * 刷盘
+     *
+     * @return 是否成功，失败时下一个刷盘间隔重试
+     */
+    private boolean flush() {
+        try {
+            queue.syncAppended();
+            syncError = null;
+            return true;
+        } catch (RuntimeException e) {
+            syncError = e;
+            return false;
+        }
+    }
+
+    /**
+     * 检查后台写入异常【写入重试或刷盘成功后恢复】
+     */
+    private void assertNoError() {
+        RuntimeException e = error;
+        if (e == null) {
+            e = syncError;
+        }
+        if (e != null) {
+            throw new IllegalArgumentException("write behind failed, retrying", e);
+        }
+    }
+
+
+}
@@ -0,0 +1,20 @@
+package cn.emay.store.file.queue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 队列数据处理器【字节模式】<br/>
+ * 数据为只读视图，不拷贝、不解码，只在回调期间有效，需要保留时自行拷贝
+ *
+ * @author Frank
+ */
+public interface HistoryBufferHandler {
+
+    /**
+     * 处理数据
+     *
+     * @param data 数据(position到limit部分)
+     */
+    void handle(ByteBuffer data);
+
+}
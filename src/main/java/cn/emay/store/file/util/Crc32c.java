@@ -0,0 +1,91 @@
+package cn.emay.store.file.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C(Castagnoli) 校验工具<br/>
+ * JDK9+ 使用 java.util.zip.CRC32C(硬件指令加速)，JDK8 回退为查表实现，两者结果一致；
+ *
+ * @author Frank
+ */
+public class Crc32c {
+
+    /**
+     * java.util.zip.CRC32C 的构造方法，不支持时为null
+     */
+    private static final MethodHandle NEW_CRC32C;
+
+    /**
+     * Checksum.update(ByteBuffer)【JDK9+】，不支持时为null
+     */
+    private static final MethodHandle UPDATE_BUFFER;
+
+    /**
+     * 查表实现的表
+     */
+    private static final int[] TABLE = new int[256];
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+            constructor = MethodHandles.publicLookup().findConstructor(clazz, MethodType.methodType(void.class)).asType(MethodType.methodType(Checksum.class));
+            update = MethodHandles.publicLookup().findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            constructor = null;
+            update = null;
+        }
+        NEW_CRC32C = constructor;
+        UPDATE_BUFFER = update;
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    /**
+     * 计算多个缓冲区剩余数据的校验值，不改变缓冲区的position
+     *
+     * @param buffers 数据
+     * @return 校验值
+     */
+    public static int checksum(ByteBuffer... buffers) {
+        if (NEW_CRC32C != null) {
+            try {
+                Checksum checksum = (Checksum) NEW_CRC32C.invokeExact();
+                for (ByteBuffer buffer : buffers) {
+                    UPDATE_BUFFER.invokeExact(checksum, buffer.duplicate());
+                }
+                return (int) checksum.getValue();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        int crc = 0xFFFFFFFF;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                byte[] array = buffer.array();
+                int end = buffer.arrayOffset() + buffer.limit();
+                for (int i = buffer.arrayOffset() + buffer.position(); i < end; i++) {
+                    crc = (crc >>> 8) ^ TABLE[(crc ^ array[i]) & 0xFF];
+                }
+            } else {
+                for (int i = buffer.position(); i < buffer.limit(); i++) {
+                    crc = (crc >>> 8) ^ TABLE[(crc ^ buffer.get(i)) & 0xFF];
+                }
+            }
+        }
+        return ~crc;
+    }
+
+}
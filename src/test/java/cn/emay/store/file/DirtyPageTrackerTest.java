@@ -0,0 +1,39 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.core.DirtyPageTracker;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Frank
+ */
+public class DirtyPageTrackerTest {
+
+    @Test
+    public void testDrain() {
+        int page = DirtyPageTracker.PAGE_SIZE;
+        DirtyPageTracker tracker = new DirtyPageTracker(200L * page + 100);
+        tracker.mark(10, 20);
+        tracker.mark(page - 1, 2);
+        tracker.mark(63L * page, 2L * page);
+        tracker.mark(200L * page + 50, 10);
+
+        List<long[]> ranges = new ArrayList<>();
+        tracker.drain((position, length) -> ranges.add(new long[]{position, length}));
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertArrayEquals(new long[]{0, 2L * page}, ranges.get(0));
+        Assert.assertArrayEquals(new long[]{63L * page, 2L * page}, ranges.get(1));
+        Assert.assertArrayEquals(new long[]{200L * page, 100}, ranges.get(2));
+
+        ranges.clear();
+        tracker.drain((position, length) -> ranges.add(new long[]{position, length}));
+        Assert.assertTrue(ranges.isEmpty());
+        Assert.assertFalse(tracker.clear());
+        tracker.mark(5L * page, 1);
+        Assert.assertTrue(tracker.clear());
+    }
+
+}
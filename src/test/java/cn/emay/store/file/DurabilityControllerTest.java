@@ -0,0 +1,36 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.core.DurabilityController;
+import cn.emay.store.file.core.DurabilityPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Frank
+ */
+public class DurabilityControllerTest {
+
+    @Test
+    public void testEveryRecords() {
+        AtomicInteger syncs = new AtomicInteger();
+        DurabilityController controller = new DurabilityController(DurabilityPolicy.everyRecords(10), syncs::incrementAndGet);
+        // 一次批量写入越过多个整数倍只刷盘一次
+        controller.commit(controller.append(25));
+        Assert.assertEquals(1, syncs.get());
+        controller.commit(controller.append(3));
+        Assert.assertEquals(1, syncs.get());
+        // 累计记录数越过整数倍时刷盘
+        controller.commit(controller.append(2));
+        Assert.assertEquals(2, syncs.get());
+        for (int i = 0; i < 9; i++) {
+            controller.commit(controller.append());
+        }
+        Assert.assertEquals(2, syncs.get());
+        controller.commit(controller.append());
+        Assert.assertEquals(3, syncs.get());
+        controller.close();
+    }
+
+}
@@ -1,11 +1,23 @@
 package cn.emay.store.file;
 
+import cn.emay.store.file.core.MappingBudget;
 import cn.emay.store.file.map.FileMap;
+import cn.emay.store.file.map.FileMapConfig;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * @author Frank
  */
@@ -97,4 +109,154 @@ public class FileMapTest {
 
     }
 
+    @Test
+    public void testConcurrentGet() throws Exception {
+        String key0 = "并发KEY";
+        String value0 = "并发VALUE";
+        int total = 10000 * 10;
+        for (int i = 0; i < total; i++) {
+            map.put(key0 + i, value0 + i);
+        }
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> futures = new ArrayList<>();
+        long time = System.currentTimeMillis();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                int matched = 0;
+                for (int i = 0; i < total; i++) {
+                    if ((value0 + i).equals(map.get(key0 + i))) {
+                        matched++;
+                    }
+                }
+                return matched;
+            }));
+        }
+        // 读取期间继续写入，写入不应阻塞读取
+        for (int i = 0; i < total; i++) {
+            map.put(key0 + "w" + i, value0 + i);
+        }
+        for (Future<Integer> future : futures) {
+            Assert.assertEquals(total, (int) future.get());
+        }
+        executor.shutdown();
+        System.out.println("测试并发get\t" + (System.currentTimeMillis() - time));
+        Assert.assertEquals(map.size(), total * 2);
+    }
+
+    @Test
+    public void testBuffer() {
+        byte[] key = "BUFFER-KEY".getBytes(StandardCharsets.UTF_8);
+        byte[] value = "BUFFER-VALUE".getBytes(StandardCharsets.UTF_8);
+        map.putBuffer(key, ByteBuffer.wrap(value));
+        ByteBuffer dst = ByteBuffer.allocateDirect(64);
+        Assert.assertEquals(value.length, map.getInto(key, dst));
+        dst.flip();
+        byte[] read = new byte[dst.remaining()];
+        dst.get(read);
+        Assert.assertArrayEquals(value, read);
+        Assert.assertEquals(-1, map.getInto("NO-KEY", dst));
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        String dir = "./emaytest/filemap-recover";
+        FileMapConfig config = new FileMapConfig();
+        config.setCleanUpPeriodSecond(0);
+        config.setHashLength(1024);
+        FileMap recoverMap = new FileMap(dir, config);
+        recoverMap.put("first", "1");
+        recoverMap.put("second", "2");
+        recoverMap.close();
+        // 带校验的记录头29字节
+        long second = 29 + "first".length() + "1".length();
+        long end = second + 29 + "second".length() + "2".length();
+        File data = new File(dir, "1.emd");
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            // 模拟崩溃：第二条记录的数据损坏，之后还残留了一条记录头没有落盘的记录
+            raf.seek(end - 1);
+            raf.write('x');
+            raf.seek(end + 4);
+            raf.write(new byte[]{1, 2, 3, 4});
+        }
+        recoverMap = new FileMap(dir, config);
+        try {
+            Assert.assertEquals("1", recoverMap.get("first"));
+            try (RandomAccessFile raf = new RandomAccessFile(data, "r")) {
+                raf.seek(second);
+                byte[] tail = new byte[(int) (end + 8 - second)];
+                raf.readFully(tail);
+                Assert.assertArrayEquals(new byte[tail.length], tail);
+            }
+            recoverMap.put("third", "3");
+            Assert.assertEquals("1", recoverMap.get("first"));
+            Assert.assertEquals("3", recoverMap.get("third"));
+        } finally {
+            recoverMap.close();
+            recoverMap.delete();
+        }
+
+        // 数据结束(记录头为0)之后残留的内容同样清零
+        recoverMap = new FileMap(dir, config);
+        recoverMap.put("first", "1");
+        recoverMap.close();
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(second + 4);
+            raf.write(new byte[]{1, 2, 3, 4});
+        }
+        // 模拟崩溃：清除计数文件中的正常关闭标记，正常关闭后不再检查数据结束后的内容
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "emc"), "rw")) {
+            raf.seek(32);
+            Assert.assertEquals(1, raf.readInt());
+            raf.seek(32);
+            raf.writeInt(0);
+        }
+        recoverMap = new FileMap(dir, config);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(data, "r")) {
+                raf.seek(second + 4);
+                Assert.assertEquals(0, raf.readInt());
+            }
+            Assert.assertEquals("1", recoverMap.get("first"));
+        } finally {
+            recoverMap.close();
+            recoverMap.delete();
+        }
+        Assert.assertFalse(new File(dir).exists());
+    }
+
+    @Test
+    public void testMappingBudget() {
+        long fileSize = 10 * 1024 * 1024;
+        MappingBudget budget = new MappingBudget(3 * fileSize);
+        FileMapConfig config = new FileMapConfig();
+        config.setCleanUpPeriodSecond(0);
+        config.setHashLength(1024);
+        config.setMappingBudget(budget);
+        FileMap map1 = new FileMap("./emaytest/filemap-budget1", config);
+        FileMap map2 = new FileMap("./emaytest/filemap-budget2", config);
+        try {
+            byte[] value = new byte[1024];
+            // 每个Map写满3个数据文件，共6个，超出3个文件的预算
+            for (int i = 0; i < 25000; i++) {
+                value[0] = (byte) i;
+                map1.putBytes("k" + i, value);
+                map2.putBytes("k" + i, value);
+            }
+            Assert.assertTrue(budget.getMappedBytes() <= budget.getMaxMappedBytes());
+            // 被解除映射的数据文件在访问时重新映射
+            for (int i = 0; i < 25000; i++) {
+                Assert.assertEquals((byte) i, map1.getBytes("k" + i)[0]);
+                Assert.assertEquals((byte) i, map2.getBytes("k" + i)[0]);
+            }
+            Assert.assertTrue(budget.getMappedBytes() <= budget.getMaxMappedBytes());
+        } finally {
+            map1.close();
+            map1.delete();
+            map2.close();
+            map2.delete();
+        }
+        Assert.assertEquals(0, budget.getMappedBytes());
+    }
+
 }
@@ -0,0 +1,232 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.exception.FileStoreClosedException;
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * @author Frank
+ */
+public class FileQueueConcurrencyTest extends FileQueueFixture {
+
+    @Test
+    public void testConcurrent() throws Exception {
+        FileQueue queue = open("concurrent");
+        int producers = 4;
+        int consumers = 4;
+        int each = 50000;
+        ExecutorService pool = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            List<Future<?>> producerResults = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                producerResults.add(pool.submit(() -> {
+                    for (int i = 0; i < each; i++) {
+                        queue.offer(producer + ":" + i);
+                    }
+                }));
+            }
+            List<Future<List<String>>> consumerResults = new ArrayList<>();
+            for (int c = 0; c < consumers; c++) {
+                consumerResults.add(pool.submit(() -> {
+                    List<String> values = new ArrayList<>();
+                    String value;
+                    while ((value = queue.poll(1, TimeUnit.SECONDS)) != null) {
+                        values.add(value);
+                    }
+                    return values;
+                }));
+            }
+            for (Future<?> result : producerResults) {
+                result.get();
+            }
+            int[] next = new int[producers];
+            int total = 0;
+            for (Future<List<String>> result : consumerResults) {
+                int[] last = new int[producers];
+                Arrays.fill(last, -1);
+                for (String value : result.get()) {
+                    String[] parts = value.split(":");
+                    int producer = Integer.parseInt(parts[0]);
+                    int i = Integer.parseInt(parts[1]);
+                    // 同一消费者看到的同一生产者的数据保持顺序
+                    Assert.assertTrue(i > last[producer]);
+                    last[producer] = i;
+                    next[producer]++;
+                    total++;
+                }
+            }
+            Assert.assertEquals(producers * each, total);
+            for (int count : next) {
+                Assert.assertEquals(each, count);
+            }
+            Assert.assertEquals(0, queue.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultiProducer() throws Exception {
+        FileQueueConfig config = config();
+        config.setMultiProducer(true);
+        FileQueue multiQueue = open("multi", config);
+        int producers = 8;
+        int each = 20000;
+        byte[] padding = new byte[200];
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < each; ) {
+                        if (i % 3 == 0) {
+                            List<byte[]> batch = new ArrayList<>();
+                            for (int j = 0; j < 10 && i < each; j++, i++) {
+                                batch.add(ByteBuffer.allocate(8 + padding.length).putInt(producer).putInt(i).put(padding).array());
+                            }
+                            multiQueue.offerBatch(batch);
+                        } else {
+                            multiQueue.offerBytes(ByteBuffer.allocate(8 + padding.length).putInt(producer).putInt(i++).put(padding).array());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            Assert.assertEquals(producers * each, multiQueue.size());
+            int[] next = new int[producers];
+            for (int i = 0; i < producers * each; i++) {
+                ByteBuffer value = ByteBuffer.wrap(multiQueue.pollBytes());
+                int producer = value.getInt();
+                Assert.assertEquals(next[producer]++, value.getInt());
+            }
+            Assert.assertNull(multiQueue.pollBytes());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultiProducerFailure() throws Exception {
+        FileQueueConfig config = config();
+        config.setMultiProducer(true);
+        FileQueue multiQueue = open("multi-failure", config);
+        // 每条记录都会写入一个索引项
+        byte[] padding = new byte[4096];
+        int producers = 4;
+        int each = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        try {
+            multiQueue.offerBytes(ByteBuffer.allocate(8 + padding.length).putInt(-1).putInt(0).put(padding).array());
+            // 模拟写入失败：关闭当前数据文件的索引，之后写入索引项时抛出异常
+            Object dataIndex = get(get(multiQueue, "appending"), "index");
+            method(dataIndex, "close").invoke(dataIndex);
+
+            AtomicInteger failures = new AtomicInteger();
+            Set<Long> offered = ConcurrentHashMap.newKeySet();
+            List<Future<?>> results = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < each; i++) {
+                        try {
+                            multiQueue.offerBytes(ByteBuffer.allocate(8 + padding.length).putInt(producer).putInt(i).put(padding).array());
+                            offered.add(((long) producer << 32) | i);
+                        } catch (RuntimeException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            // 写入失败的生产者放弃数据文件，之后预留的生产者改为写入下一个数据文件，不会一直等待
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            Assert.assertTrue(failures.get() > 0);
+            Assert.assertEquals(producers * each, offered.size() + failures.get());
+            Assert.assertEquals(1 + offered.size(), multiQueue.size());
+            Assert.assertEquals(-1, number(multiQueue.pollBytes()));
+            for (int i = 0; i < offered.size(); i++) {
+                ByteBuffer value = ByteBuffer.wrap(multiQueue.pollBytes());
+                Assert.assertTrue(offered.contains(((long) value.getInt() << 32) | value.getInt()));
+            }
+            Assert.assertNull(multiQueue.pollBytes());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeleteWhileSyncAndSeek() throws Exception {
+        raceWithSyncAndSeek("delete", FileQueue::delete);
+    }
+
+    @Test
+    public void testCloseWhileSyncAndSeek() throws Exception {
+        raceWithSyncAndSeek("close", queue -> {
+            queue.close();
+            queue.delete();
+        });
+    }
+
+    /**
+     * 清理、移动游标的同时关闭或删除队列：加锁顺序一致，不会死锁
+     *
+     * @param name    名称
+     * @param closing 关闭或删除
+     * @throws Exception 异常
+     */
+    private void raceWithSyncAndSeek(String name, Consumer<FileQueue> closing) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 20; round++) {
+                // 由测试自己关闭或删除，不交给夹具
+                FileQueue racing = new FileQueue(dir(name + "-" + round), 0, 1024 * 1024, -1);
+                for (int i = 0; i < 100; i++) {
+                    racing.offer("data" + i);
+                }
+                AtomicInteger running = new AtomicInteger(1);
+                Future<?> syncing = executor.submit(() -> {
+                    while (running.get() > 0) {
+                        racing.sync();
+                    }
+                });
+                Future<?> seeking = executor.submit(() -> {
+                    while (running.get() > 0) {
+                        try {
+                            racing.seek(50);
+                        } catch (FileStoreClosedException e) {
+                            return;
+                        }
+                    }
+                });
+                Thread.sleep(5);
+                closing.accept(racing);
+                running.set(0);
+                syncing.get(10, TimeUnit.SECONDS);
+                seeking.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConfig;
+import cn.emay.store.file.queue.FileQueueConsumer;
+import cn.emay.store.file.queue.FileQueueDelivery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费组与确认消费
+ *
+ * @author Frank
+ */
+public class FileQueueConsumerTest extends FileQueueFixture {
+
+    /**
+     * 消费组测试的数据量【约30M数据，跨越多个数据文件】
+     */
+    private static final int GROUP_TOTAL = 30000;
+
+    @Test
+    public void testGroups() {
+        FileQueue groupQueue = openGroups("groups");
+        FileQueueConsumer billing = groupQueue.group("billing");
+        FileQueueConsumer report = groupQueue.group("report");
+        Assert.assertSame(billing, groupQueue.group("billing"));
+        Assert.assertEquals(GROUP_TOTAL, groupQueue.size());
+        Assert.assertEquals(GROUP_TOTAL - GROUP_TOTAL / 2, billing.size());
+        Assert.assertEquals(GROUP_TOTAL, report.size());
+        // 最慢的消费组还没有消费，数据文件不能删除
+        groupQueue.sync();
+        Assert.assertTrue(new File(dir("groups"), "1.eqd").exists());
+        groupQueue.removeGroup("report");
+        Assert.assertFalse(new File(dir("groups"), "report.eqg").exists());
+    }
+
+    @Test
+    public void testGroupsReopen() {
+        openGroups("groups-reopen").close();
+        FileQueue groupQueue = track(dir("groups-reopen"), new FileQueue(dir("groups-reopen"), 0, 0, 0));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("billing", "report")), groupQueue.getGroupNames());
+        // 只使用消费组，默认消费者从未使用
+        Assert.assertEquals(GROUP_TOTAL, groupQueue.size());
+        FileQueueConsumer billing = groupQueue.group("billing");
+        FileQueueConsumer report = groupQueue.group("report");
+        Assert.assertEquals(GROUP_TOTAL - GROUP_TOTAL / 2, billing.size());
+        Assert.assertEquals(GROUP_TOTAL, report.size());
+        for (int i = GROUP_TOTAL / 2; i < GROUP_TOTAL; i++) {
+            Assert.assertEquals(i, number(billing.pollBytes()));
+        }
+        List<byte[]> reported = new ArrayList<>();
+        Assert.assertEquals(GROUP_TOTAL, report.drainTo(reported));
+        for (int i = 0; i < GROUP_TOTAL; i++) {
+            Assert.assertEquals(i, number(reported.get(i)));
+        }
+        Assert.assertNull(billing.pollBytes());
+        // 从未使用的默认消费者不阻止清理
+        groupQueue.sync();
+        Assert.assertFalse(new File(dir("groups-reopen"), "1.eqd").exists());
+        // 默认消费者跟随清理移动，之后创建的消费组从保留的数据开始
+        long retained = groupQueue.size();
+        Assert.assertTrue(retained > 0 && retained < GROUP_TOTAL);
+        FileQueueConsumer audit = groupQueue.group("audit");
+        Assert.assertEquals(retained, audit.size());
+        Assert.assertEquals(GROUP_TOTAL - retained, number(audit.pollBytes()));
+        Assert.assertEquals(retained - 1, audit.drainTo(new ArrayList<>()));
+    }
+
+    /**
+     * 打开带billing、report两个消费组的队列并写入数据，billing消费一半【已消费的数据文件清理时立即删除】
+     *
+     * @param name 名称
+     * @return 队列
+     */
+    private FileQueue openGroups(String name) {
+        FileQueue groupQueue = track(dir(name), new FileQueue(dir(name), 0, 0, 0));
+        FileQueueConsumer billing = groupQueue.group("billing");
+        groupQueue.group("report");
+        byte[] padding = new byte[1024];
+        for (int i = 0; i < GROUP_TOTAL; i++) {
+            groupQueue.offerBytes(ByteBuffer.allocate(4 + padding.length).putInt(i).put(padding).array());
+        }
+        for (int i = 0; i < GROUP_TOTAL / 2; i++) {
+            Assert.assertEquals(i, number(billing.pollBytes()));
+        }
+        return groupQueue;
+    }
+
+    @Test
+    public void testAckWindow() {
+        FileQueue ackQueue = openAck("ack-window");
+        List<FileQueueDelivery> deliveries = deliver(ackQueue, 5);
+        // 投递窗口已满
+        Assert.assertNull(ackQueue.pollDelivery());
+        try {
+            ackQueue.poll();
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 投递窗口中有数据时不能直接消费
+        }
+        // 乱序确认不推进读取游标
+        deliveries.get(1).ack();
+        Assert.assertEquals(10, ackQueue.size());
+        deliveries.get(0).ack();
+        Assert.assertEquals(8, ackQueue.size());
+        Assert.assertEquals("ACK5", ackQueue.pollDelivery().getValue());
+    }
+
+    @Test
+    public void testNack() {
+        FileQueue ackQueue = openAck("nack");
+        List<FileQueueDelivery> deliveries = deliver(ackQueue, 5);
+        // 拒绝后立即重新投递，占用原来的窗口位置
+        ackQueue.nack(deliveries.get(2));
+        FileQueueDelivery redelivered = ackQueue.pollDelivery();
+        Assert.assertEquals("ACK2", redelivered.getValue());
+        Assert.assertEquals(2, redelivered.getDeliveryCount());
+        Assert.assertNull(ackQueue.pollDelivery());
+        redelivered.ack();
+        Assert.assertEquals(10, ackQueue.size());
+    }
+
+    @Test
+    public void testAckTimeout() throws Exception {
+        FileQueue ackQueue = openAck("ack-timeout");
+        List<FileQueueDelivery> deliveries = deliver(ackQueue, 5);
+        deliveries.get(0).ack();
+        Assert.assertEquals("ACK5", ackQueue.pollDelivery().getValue());
+        Assert.assertNull(ackQueue.pollDelivery());
+        // 超时未确认的数据按超时时间顺序重新投递
+        FileQueueDelivery timeout = ackQueue.pollDelivery(3, TimeUnit.SECONDS);
+        Assert.assertEquals("ACK1", timeout.getValue());
+        Assert.assertEquals(2, timeout.getDeliveryCount());
+    }
+
+    @Test
+    public void testAckReopen() {
+        FileQueue ackQueue = openAck("ack-reopen");
+        List<FileQueueDelivery> deliveries = deliver(ackQueue, 5);
+        deliveries.get(0).ack();
+        deliveries.get(1).ack();
+        deliveries.get(3).ack();
+        ackQueue.close();
+        // 未确认的数据重启后重新投递，读取游标只推进到连续确认的位置
+        ackQueue = openAck("ack-reopen", false);
+        Assert.assertEquals(8, ackQueue.size());
+        Assert.assertEquals("ACK2", ackQueue.poll());
+        Assert.assertEquals("ACK3", ackQueue.poll());
+    }
+
+    @Test
+    public void testAckWakeUp() throws Exception {
+        FileQueue ackQueue = open("ack-wake", config());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            FileQueueConsumer group = ackQueue.group("wake");
+            ackQueue.offer("first");
+            FileQueueDelivery first = ackQueue.pollDelivery();
+            Assert.assertEquals("first", group.pollDelivery().getValue());
+            executor.submit(() -> {
+                Thread.sleep(200);
+                ackQueue.offer("second");
+                return null;
+            });
+            // 投递窗口中有未确认的数据时，新数据同样唤醒等待投递的消费者
+            long time = System.currentTimeMillis();
+            Assert.assertEquals("second", ackQueue.pollDelivery(8, TimeUnit.SECONDS).getValue());
+            Assert.assertTrue(System.currentTimeMillis() - time < 4000);
+            time = System.currentTimeMillis();
+            Assert.assertEquals("second", group.pollDelivery(8, TimeUnit.SECONDS).getValue());
+            Assert.assertTrue(System.currentTimeMillis() - time < 4000);
+            first.ack();
+            Assert.assertEquals(1, ackQueue.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAckWakeUpOnAck() throws Exception {
+        FileQueueConfig config = config();
+        config.setMaxInFlight(1);
+        FileQueue ackQueue = open("ack-wake-ack", config);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ackQueue.offer("first");
+            ackQueue.offer("second");
+            FileQueueDelivery first = ackQueue.pollDelivery();
+            Assert.assertEquals("first", first.getValue());
+            executor.submit(() -> {
+                Thread.sleep(200);
+                first.ack();
+                return null;
+            });
+            // 投递窗口已满时等待的消费者在确认腾出位置后被唤醒
+            long time = System.currentTimeMillis();
+            Assert.assertEquals("second", ackQueue.pollDelivery(8, TimeUnit.SECONDS).getValue());
+            Assert.assertTrue(System.currentTimeMillis() - time < 4000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 打开确认消费的队列并写入10条数据【投递窗口5条，确认超时1秒】
+     *
+     * @param name 名称
+     * @return 队列
+     */
+    private FileQueue openAck(String name) {
+        return openAck(name, true);
+    }
+
+    /**
+     * 打开确认消费的队列【投递窗口5条，确认超时1秒】
+     *
+     * @param name  名称
+     * @param offer 是否写入10条数据
+     * @return 队列
+     */
+    private FileQueue openAck(String name, boolean offer) {
+        FileQueueConfig config = config();
+        config.setMaxInFlight(5);
+        config.setAckTimeoutSecond(1);
+        FileQueue ackQueue = open(name, config);
+        if (offer) {
+            for (int i = 0; i < 10; i++) {
+                ackQueue.offer("ACK" + i);
+            }
+        }
+        return ackQueue;
+    }
+
+    /**
+     * 按顺序投递数据
+     *
+     * @param ackQueue 队列
+     * @param count    数量
+     * @return 投递
+     */
+    private static List<FileQueueDelivery> deliver(FileQueue ackQueue, int count) {
+        List<FileQueueDelivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            FileQueueDelivery delivery = ackQueue.pollDelivery();
+            Assert.assertEquals("ACK" + i, delivery.getValue());
+            deliveries.add(delivery);
+        }
+        return deliveries;
+    }
+
+}
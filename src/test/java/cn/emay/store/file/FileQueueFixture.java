@@ -0,0 +1,180 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConfig;
+import org.junit.After;
+import org.junit.Assert;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FileQueue 测试的公共夹具<br/>
+ * 队列在 ./emaytest 下按名称打开，测试结束时关闭全部打开的队列，并删除每个文件夹最后打开的队列【测试中可以关闭后重新打开】；<br/>
+ * 删除后文件夹不应再有残留的文件
+ *
+ * @author Frank
+ */
+public abstract class FileQueueFixture {
+
+    /**
+     * 打开的队列
+     */
+    private final List<FileQueue> opened = new ArrayList<>();
+
+    /**
+     * 每个文件夹最后打开的队列
+     */
+    private final Map<String, FileQueue> latest = new LinkedHashMap<>();
+
+    @After
+    public void cleanUp() {
+        for (FileQueue queue : opened) {
+            try {
+                queue.close();
+            } catch (RuntimeException e) {
+                // 关闭时报告的异步写入失败由测试自己检查
+            }
+        }
+        for (Map.Entry<String, FileQueue> entry : latest.entrySet()) {
+            entry.getValue().delete();
+            Assert.assertFalse(new File(entry.getKey()).exists());
+        }
+    }
+
+    /**
+     * 队列文件夹
+     *
+     * @param name 名称
+     * @return 文件夹
+     */
+    protected static String dir(String name) {
+        return "./emaytest/filequeue-" + name;
+    }
+
+    /**
+     * 不定时清理的配置
+     *
+     * @return 配置
+     */
+    protected static FileQueueConfig config() {
+        FileQueueConfig config = new FileQueueConfig();
+        config.setCleanUpPeriodSecond(0);
+        return config;
+    }
+
+    /**
+     * 按默认配置打开队列【不定时清理、已消费的数据文件不过期】
+     *
+     * @param name 名称
+     * @return 队列
+     */
+    protected FileQueue open(String name) {
+        return track(dir(name), new FileQueue(dir(name), 0, 0, -1));
+    }
+
+    /**
+     * 按配置打开队列
+     *
+     * @param name   名称
+     * @param config 配置
+     * @return 队列
+     */
+    protected FileQueue open(String name, FileQueueConfig config) {
+        return track(dir(name), new FileQueue(dir(name), config));
+    }
+
+    /**
+     * 记录测试中打开的队列，测试结束时关闭并删除
+     *
+     * @param dir   文件夹
+     * @param queue 队列
+     * @return 队列
+     */
+    protected FileQueue track(String dir, FileQueue queue) {
+        opened.add(queue);
+        latest.put(dir, queue);
+        return queue;
+    }
+
+    /**
+     * 写入指定大小的数据，数据开头为编号
+     *
+     * @param queue 队列
+     * @param from  开始编号(包含)
+     * @param to    结束编号(不包含)
+     * @param size  每条数据大小
+     */
+    protected static void offerNumbers(FileQueue queue, int from, int to, int size) {
+        for (int i = from; i < to; i++) {
+            ByteBuffer value = ByteBuffer.allocate(size);
+            value.putInt(0, i);
+            queue.offerBuffer(value);
+        }
+    }
+
+    /**
+     * 数据开头的编号
+     *
+     * @param value 数据
+     * @return 编号
+     */
+    protected static int number(byte[] value) {
+        return ByteBuffer.wrap(value).getInt();
+    }
+
+    /**
+     * 可访问的字段【模拟故障、检查内部状态】
+     *
+     * @param target 对象
+     * @param name   字段名
+     * @return 字段
+     * @throws NoSuchFieldException 字段不存在
+     */
+    protected static Field field(Object target, String name) throws NoSuchFieldException {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // 查找父类
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    /**
+     * 字段的值
+     *
+     * @param target 对象
+     * @param name   字段名
+     * @return 值
+     * @throws ReflectiveOperationException 反射异常
+     */
+    protected static Object get(Object target, String name) throws ReflectiveOperationException {
+        return field(target, name).get(target);
+    }
+
+    /**
+     * 可访问的方法
+     *
+     * @param target 对象
+     * @param name   方法名
+     * @param types  参数类型
+     * @return 方法
+     * @throws NoSuchMethodException 方法不存在
+     */
+    protected static Method method(Object target, String name, Class<?>... types) throws NoSuchMethodException {
+        Method method = target.getClass().getDeclaredMethod(name, types);
+        method.setAccessible(true);
+        return method;
+    }
+
+}
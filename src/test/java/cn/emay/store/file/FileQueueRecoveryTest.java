@@ -0,0 +1,220 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConfig;
+import cn.emay.store.file.queue.FileQueueConsumer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * 检查点、启动恢复与计数文件迁移
+ *
+ * @author Frank
+ */
+public class FileQueueRecoveryTest extends FileQueueFixture {
+
+    /**
+     * 单条数据大小【每条约100K，跨越多个数据文件】
+     */
+    private static final int RECORD_SIZE = 100 * 1024;
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        FileQueueConfig config = config();
+        config.setCheckpointPeriodMills(0);
+        FileQueue cpQueue = open("checkpoint", config);
+        offerNumbers(cpQueue, 0, 50, RECORD_SIZE);
+        for (int i = 0; i < 20; i++) {
+            cpQueue.pollBytes();
+        }
+        cpQueue.sync();
+        // 检查点之后继续写入(跨越到新的数据文件)与消费
+        offerNumbers(cpQueue, 50, 150, RECORD_SIZE);
+        for (int i = 0; i < 10; i++) {
+            cpQueue.pollBytes();
+        }
+        // 模拟异常退出：复制当前文件，计数文件停留在检查点
+        File crashDir = new File(dir("checkpoint-crash"));
+        crashDir.mkdirs();
+        File[] files = new File(dir("checkpoint")).listFiles();
+        Assert.assertNotNull(files);
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(crashDir, file.getName()).toPath());
+        }
+        FileQueue crashQueue = open("checkpoint-crash", config);
+        // 写入游标按数据文件恢复，读取游标回到检查点
+        Assert.assertEquals(130, crashQueue.size());
+        Assert.assertEquals(150, crashQueue.getNextSequence());
+        Assert.assertEquals(20, number(crashQueue.pollBytes()));
+        crashQueue.offer("after");
+        List<byte[]> rest = crashQueue.pollBatch(200, Integer.MAX_VALUE);
+        Assert.assertEquals(130, rest.size());
+        Assert.assertEquals(149, number(rest.get(128)));
+        Assert.assertEquals("after", new String(rest.get(129), StandardCharsets.UTF_8));
+
+        cpQueue.close();
+        cpQueue = open("checkpoint", config);
+        Assert.assertEquals(120, cpQueue.size());
+        Assert.assertEquals(30, number(cpQueue.pollBytes()));
+    }
+
+    @Test
+    public void testLazyLoad() {
+        FileQueueConfig config = config();
+        config.setLazyLoad(true);
+        config.setReadAheadFiles(1);
+        FileQueue lazyQueue = open("lazy", config);
+        FileQueueConsumer group = lazyQueue.group("lazy");
+        offerNumbers(lazyQueue, 0, 400, RECORD_SIZE);
+        for (int i = 0; i < 10; i++) {
+            lazyQueue.pollBytes();
+        }
+        for (int i = 0; i < 150; i++) {
+            group.pollBytes();
+        }
+        lazyQueue.close();
+
+        // 只打开读取与写入的数据文件，数据量按序号计算
+        lazyQueue = open("lazy", config);
+        group = lazyQueue.group("lazy");
+        Assert.assertEquals(390L, lazyQueue.size());
+        Assert.assertEquals(250L, group.size());
+        Assert.assertEquals(10, lazyQueue.position());
+        Assert.assertEquals(150, group.position());
+        Assert.assertEquals(0, lazyQueue.getFirstSequence());
+        Assert.assertEquals(300, number(lazyQueue.read(300)));
+        // 清理时关闭按序号读取打开的数据文件，再次读取时重新打开
+        lazyQueue.sync();
+        Assert.assertEquals(300, number(lazyQueue.read(300)));
+        for (int i = 10; i < 400; i++) {
+            Assert.assertEquals(i, number(lazyQueue.pollBytes()));
+            if (i % 50 == 0) {
+                lazyQueue.sync();
+            }
+        }
+        Assert.assertNull(lazyQueue.pollBytes());
+        lazyQueue.seek(200);
+        Assert.assertEquals(200L, lazyQueue.size());
+        Assert.assertEquals(200, number(lazyQueue.pollBytes()));
+        for (int i = 150; i < 400; i++) {
+            Assert.assertEquals(i, number(group.pollBytes()));
+        }
+        lazyQueue.offer("after");
+        Assert.assertEquals("after", new String(group.pollBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRecoverCorruptRecord() throws Exception {
+        FileQueue recoverQueue = open("recover-record");
+        recoverQueue.offer("first");
+        recoverQueue.offer("second");
+        recoverQueue.offer("third");
+        recoverQueue.close();
+        // 模拟崩溃时第三条记录没有写完：记录头已落盘、数据损坏
+        long third = 2L * 8 + "first".length() + "second".length();
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir("recover-record"), "1.eqd"), "rw")) {
+            raf.seek(third + 8);
+            raf.write(new byte[]{0, 0, 0});
+        }
+        recoverQueue = open("recover-record");
+        Assert.assertEquals(2, recoverQueue.size());
+        Assert.assertEquals("first", recoverQueue.poll());
+        Assert.assertEquals("second", recoverQueue.poll());
+        Assert.assertNull(recoverQueue.poll());
+        recoverQueue.offer("fourth");
+        Assert.assertEquals("fourth", recoverQueue.poll());
+    }
+
+    @Test
+    public void testRecoverTail() throws Exception {
+        FileQueue recoverQueue = open("recover-tail");
+        recoverQueue.offer("first");
+        recoverQueue.close();
+        long end = 8 + "first".length();
+        File data = new File(dir("recover-tail"), "1.eqd");
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(end + 16);
+            raf.write(new byte[]{(byte) 0x80, 0, 0, 1, 0, 0, 0, 0, 'x'});
+        }
+        // 模拟崩溃：清除计数文件中的正常关闭标记，正常关闭后不再检查数据结束后的内容
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir("recover-tail"), "eqc"), "rw")) {
+            raf.seek(48);
+            int flags = raf.readInt();
+            Assert.assertEquals(2, flags & 2);
+            raf.seek(48);
+            raf.writeInt(flags & ~2);
+        }
+        // 数据结束(记录头为0)之后残留的内容同样清零，不会在之后的写入中被当作数据读出
+        recoverQueue = open("recover-tail");
+        try (RandomAccessFile raf = new RandomAccessFile(data, "r")) {
+            raf.seek(end + 16);
+            Assert.assertEquals(0, raf.readInt());
+        }
+        Assert.assertEquals(1, recoverQueue.size());
+        Assert.assertEquals("first", recoverQueue.poll());
+        Assert.assertNull(recoverQueue.poll());
+    }
+
+    @Test
+    public void testMigrateV1Info() throws Exception {
+        String dir = dir("v1");
+        new File(dir).mkdirs();
+        byte[] value = "旧格式数据".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(2 * (4 + value.length));
+        data.putInt(value.length).put(value).putInt(value.length).put(value);
+        Files.write(new File(dir, "1.eqd").toPath(), data.array());
+        // v1: nowReadFileIndex,nowReadByteIndex,count,nowWriteByteIndex,nowWriteFileIndex
+        ByteBuffer info = ByteBuffer.allocate(20);
+        info.putInt(1).putInt(4 + value.length).putInt(1).putInt(data.capacity()).putInt(1);
+        Files.write(new File(dir, "eqc").toPath(), info.array());
+
+        FileQueue v1Queue = open("v1");
+        Assert.assertEquals(1, v1Queue.size());
+        Assert.assertEquals("旧格式数据", v1Queue.poll());
+        Assert.assertNull(v1Queue.poll());
+        v1Queue.offer("新数据");
+        Assert.assertEquals("新数据", v1Queue.poll());
+        v1Queue.close();
+        Assert.assertEquals(3, ByteBuffer.wrap(Files.readAllBytes(new File(dir, "eqc").toPath())).getInt(4));
+    }
+
+    @Test
+    public void testMigrateV2Info() throws Exception {
+        String dir = dir("v2");
+        new File(dir).mkdirs();
+        byte[] value = "旧格式数据".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(2 * (4 + value.length));
+        data.putInt(value.length).put(value).putInt(value.length).put(value);
+        Files.write(new File(dir, "1.eqd").toPath(), data.array());
+        // v2: magic,version,nowReadFileIndex(4),nowReadByteIndex(8),count(4),nowWriteByteIndex(8),nowWriteFileIndex(4)
+        ByteBuffer info = ByteBuffer.allocate(64);
+        info.putInt(0x45514300).putInt(2).putInt(1).putLong(4 + value.length).putInt(1).putLong(data.capacity()).putInt(1);
+        Files.write(new File(dir, "eqc").toPath(), info.array());
+
+        FileQueue v2Queue = open("v2");
+        Assert.assertEquals(3, ByteBuffer.wrap(Files.readAllBytes(new File(dir, "eqc").toPath())).getInt(4));
+        Assert.assertFalse(new File(dir, "eqc.tmp").exists());
+        Assert.assertEquals(1, v2Queue.size());
+        Assert.assertEquals("旧格式数据", v2Queue.poll());
+        Assert.assertNull(v2Queue.poll());
+        v2Queue.offer("新数据");
+        Assert.assertEquals(1L, v2Queue.size());
+        v2Queue.close();
+
+        ByteBuffer v3 = ByteBuffer.wrap(Files.readAllBytes(new File(dir, "eqc").toPath()));
+        Assert.assertEquals(3, v3.getInt(4));
+        Assert.assertEquals(1L, v3.getLong(8));
+        Assert.assertEquals(1L, v3.getLong(24));
+        Assert.assertEquals(1L, v3.getLong(32));
+        v2Queue = open("v2");
+        Assert.assertEquals("新数据", v2Queue.poll());
+    }
+
+}
@@ -0,0 +1,216 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConsumer;
+import cn.emay.store.file.queue.FileQueueHistoryReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 序号、索引与按时间回放
+ *
+ * @author Frank
+ */
+public class FileQueueSequenceTest extends FileQueueFixture {
+
+    /**
+     * 单条数据大小【每条约100K，250条跨越多个数据文件】
+     */
+    private static final int RECORD_SIZE = 100 * 1024;
+
+    @Test
+    public void testSequenceRead() {
+        FileQueue seqQueue = openSequence("sequence-read");
+        Assert.assertEquals(0, seqQueue.getFirstSequence());
+        Assert.assertEquals(250, seqQueue.getNextSequence());
+        Assert.assertEquals(100, seqQueue.position());
+        Assert.assertEquals(7, number(seqQueue.read(7)));
+        Assert.assertEquals(180, number(seqQueue.read(180)));
+        Assert.assertNull(seqQueue.read(250));
+        // 按序号读取不移动读取游标
+        Assert.assertEquals(100, seqQueue.position());
+    }
+
+    @Test
+    public void testSeek() {
+        FileQueue seqQueue = openSequence("sequence-seek");
+        seqQueue.seek(42);
+        Assert.assertEquals(208, seqQueue.size());
+        Assert.assertEquals(42, number(seqQueue.pollBytes()));
+        seqQueue.seek(200);
+        Assert.assertEquals(50, seqQueue.size());
+        Assert.assertEquals(200, number(seqQueue.pollBytes()));
+        seqQueue.rewind();
+        Assert.assertEquals(0, seqQueue.position());
+        Assert.assertEquals(0, number(seqQueue.pollBytes()));
+        seqQueue.seek(250);
+        Assert.assertEquals(0, seqQueue.size());
+        Assert.assertNull(seqQueue.pollBytes());
+        try {
+            seqQueue.seek(251);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 尚未写入
+        }
+        FileQueueConsumer group = seqQueue.group("replay");
+        group.seek(120);
+        Assert.assertEquals(120, number(group.pollBytes()));
+    }
+
+    @Test
+    public void testSequenceReopen() {
+        FileQueue seqQueue = openSequence("sequence-reopen");
+        seqQueue.seek(250);
+        FileQueueConsumer group = seqQueue.group("replay");
+        group.seek(120);
+        Assert.assertEquals(120, number(group.pollBytes()));
+        seqQueue.close();
+
+        seqQueue = open("sequence-reopen");
+        Assert.assertEquals(250, seqQueue.getNextSequence());
+        Assert.assertEquals(250, seqQueue.position());
+        Assert.assertEquals(121, seqQueue.group("replay").position());
+        // 消费组之前的数据文件在重新打开时已成为历史文件
+        Assert.assertNull(seqQueue.read(5));
+        Assert.assertEquals(130, number(seqQueue.read(130)));
+        seqQueue.offer("next");
+        Assert.assertEquals("next", new String(seqQueue.read(250), StandardCharsets.UTF_8));
+        Assert.assertEquals("next", seqQueue.poll());
+    }
+
+    /**
+     * 打开队列写入250条数据，并消费100条
+     *
+     * @param name 名称
+     * @return 队列
+     */
+    private FileQueue openSequence(String name) {
+        FileQueue seqQueue = open(name);
+        offerNumbers(seqQueue, 0, 250, RECORD_SIZE);
+        for (int i = 0; i < 100; i++) {
+            seqQueue.pollBytes();
+        }
+        return seqQueue;
+    }
+
+    @Test
+    public void testIndexGrow() throws Exception {
+        FileQueue indexQueue = open("index");
+        indexQueue.offer("first");
+        // 索引文件按4K间隔预留索引项：头信息32字节，(数据文件大小 / 4K + 2)个24字节的索引项
+        long dataFileSize = new File(dir("index"), "1.eqd").length();
+        File indexFile = new File(dir("index"), "1.eqi");
+        Assert.assertEquals(32 + (dataFileSize / 4096 + 2) * 24, indexFile.length());
+        Object data = ((Map<?, ?>) get(indexQueue, "datas")).get(1L);
+        Object dataIndex = get(data, "index");
+        Method add = method(dataIndex, "add", long.class, long.class, long.class);
+        // 按时间记录的索引项更密，写满后扩容，最多(数据文件大小 / 1K + 2)个
+        int max = (int) (dataFileSize / 1024 + 2);
+        for (int i = 1; i < max; i++) {
+            add.invoke(dataIndex, i, i * 1024L, i);
+        }
+        Assert.assertEquals(32 + max * 24L, indexFile.length());
+        try {
+            add.invoke(dataIndex, max, max * 1024L, max);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        FileQueue replayQueue = open("replay");
+        char[] padding = new char[2048];
+        Arrays.fill(padding, 'x');
+        String suffix = new String(padding);
+        for (int i = 0; i < 20; i++) {
+            replayQueue.offer("A" + i + suffix);
+        }
+        Thread.sleep(1200);
+        Instant from = Instant.now();
+        for (int i = 0; i < 20; i++) {
+            replayQueue.offer("B" + i + suffix);
+        }
+        Thread.sleep(1200);
+        Instant to = Instant.now();
+        Thread.sleep(10);
+        for (int i = 0; i < 20; i++) {
+            replayQueue.offer("C" + i + suffix);
+        }
+        for (int round = 0; round < 2; round++) {
+            List<String> replayed = new ArrayList<>();
+            replayQueue.replayFrom(from, to, data -> replayed.add(data.substring(0, data.length() - suffix.length())));
+            int a = 0;
+            List<String> b = new ArrayList<>();
+            for (String data : replayed) {
+                Assert.assertFalse(data.startsWith("C"));
+                if (data.startsWith("A")) {
+                    a++;
+                } else {
+                    b.add(data);
+                }
+            }
+            // 时间精确到索引项：开始处最多多回放一个索引项(4K)内的数据
+            Assert.assertTrue(a <= 2);
+            Assert.assertEquals(20, b.size());
+            Assert.assertEquals("B0", b.get(0));
+            Assert.assertEquals("B19", b.get(19));
+            Assert.assertEquals(60, replayQueue.size());
+            // 重新打开后按持久化的索引回放
+            replayQueue.close();
+            replayQueue = open("replay");
+        }
+        List<String> all = new ArrayList<>();
+        replayQueue.replayFrom(Instant.ofEpochMilli(0), all::add);
+        Assert.assertEquals(60, all.size());
+    }
+
+    @Test
+    public void testHistoryParallel() {
+        FileQueue historyQueue = open("history");
+        offerNumbers(historyQueue, 0, 250, RECORD_SIZE);
+        historyQueue.close();
+        List<File> files = new ArrayList<>();
+        for (int i = 1; new File(dir("history"), i + ".eqd").exists(); i++) {
+            files.add(new File(dir("history"), i + ".eqd"));
+        }
+        Assert.assertTrue(files.size() > 1);
+
+        List<Integer> ordered = new ArrayList<>();
+        FileQueueHistoryReader.readHistoryBuffer(files, 4, true, null, data -> ordered.add(data.getInt(data.position())));
+        Assert.assertEquals(250, ordered.size());
+        for (int i = 0; i < 250; i++) {
+            Assert.assertEquals(i, ordered.get(i).intValue());
+        }
+
+        List<Integer> even = Collections.synchronizedList(new ArrayList<>());
+        FileQueueHistoryReader.readHistoryBuffer(files, 4, false, data -> data.getInt(data.position()) % 2 == 0, data -> even.add(data.getInt(data.position())));
+        Assert.assertEquals(125, even.size());
+        Assert.assertEquals(125, new TreeSet<>(even).size());
+
+        try {
+            FileQueueHistoryReader.readHistoryBuffer(files, 2, true, null, data -> {
+                if (data.getInt(data.position()) == 120) {
+                    throw new IllegalStateException("stop");
+                }
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("stop", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.core.DurabilityPolicy;
+import cn.emay.store.file.core.StorageType;
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 刷盘策略、数据文件预分配与回收、存储方式与预读
+ *
+ * @author Frank
+ */
+public class FileQueueStorageTest extends FileQueueFixture {
+
+    /**
+     * 单条数据大小【每条1M，10条以上跨越数据文件】
+     */
+    private static final int RECORD_SIZE = 1024 * 1024;
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        FileQueueConfig config = config();
+        config.setDurabilityPolicy(DurabilityPolicy.groupCommit());
+        FileQueue gcQueue = open("gc", config);
+        int threads = 8;
+        int perThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            long time = System.currentTimeMillis();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        gcQueue.offer(thread + "-" + i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            System.out.println("测试组提交\t" + (System.currentTimeMillis() - time));
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(threads * perThread, gcQueue.size());
+    }
+
+    @Test
+    public void testPreAllocate() {
+        FileQueueConfig config = config();
+        config.setPreAllocate(true);
+        config.setPreTouch(true);
+        FileQueue preQueue = open("pre", config);
+        offerNumbers(preQueue, 0, 25, RECORD_SIZE);
+        preQueue.close();
+        // 已写到第3个文件，第4个文件已预分配(关闭时等待预分配完成)
+        Assert.assertTrue(new File(dir("pre"), "4.eqd").exists());
+        preQueue = open("pre", config);
+        offerNumbers(preQueue, 25, 35, RECORD_SIZE);
+        Assert.assertEquals(35, preQueue.size());
+        for (int i = 0; i < 35; i++) {
+            Assert.assertEquals(i, number(preQueue.pollBytes()));
+        }
+        Assert.assertNull(preQueue.pollBytes());
+    }
+
+    @Test
+    public void testRecycle() {
+        FileQueueConfig config = config();
+        config.setRecycleUsedData(true);
+        FileQueue recycleQueue = open("recycle", config);
+        offerNumbers(recycleQueue, 0, 25, RECORD_SIZE);
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(i, number(recycleQueue.pollBytes()));
+        }
+        // 文件1、2已消费，回收为后续的数据文件
+        recycleQueue.sync();
+        Assert.assertTrue(recycleQueue.getOldDataFiles().isEmpty());
+        offerNumbers(recycleQueue, 100, 120, RECORD_SIZE);
+        Assert.assertFalse(new File(dir("recycle"), "1.eqd").exists());
+        Assert.assertFalse(new File(dir("recycle"), "2.eqd").exists());
+        Assert.assertTrue(new File(dir("recycle"), "5.eqd").exists());
+        // 回收文件已清零，不会读出旧数据
+        for (int i = 100; i < 120; i++) {
+            Assert.assertEquals(i, number(recycleQueue.pollBytes()));
+        }
+        Assert.assertNull(recycleQueue.pollBytes());
+        Assert.assertEquals(0, recycleQueue.size());
+    }
+
+    @Test
+    public void testFileChannel() {
+        FileQueue typeQueue = reopenStorage(StorageType.FILE_CHANNEL);
+        Assert.assertEquals(15, typeQueue.size());
+        for (int i = 0; i < 15; i++) {
+            Assert.assertEquals(i, number(typeQueue.pollBytes()));
+        }
+        Assert.assertNull(typeQueue.pollBytes());
+    }
+
+    @Test
+    public void testHeap() {
+        FileQueue typeQueue = reopenStorage(StorageType.HEAP);
+        // 内存存储关闭后数据丢失
+        Assert.assertEquals(0, typeQueue.size());
+        Assert.assertNull(typeQueue.pollBytes());
+    }
+
+    /**
+     * 按存储方式打开队列，写入15条数据后关闭并重新打开
+     *
+     * @param type 存储方式
+     * @return 重新打开的队列
+     */
+    private FileQueue reopenStorage(StorageType type) {
+        FileQueueConfig config = config();
+        config.setStorageType(type);
+        FileQueue typeQueue = open(type.toString(), config);
+        offerNumbers(typeQueue, 0, 15, RECORD_SIZE);
+        typeQueue.close();
+        return open(type.toString(), config);
+    }
+
+    @Test
+    public void testPrefetchMmap() throws Exception {
+        prefetch(StorageType.MMAP);
+    }
+
+    @Test
+    public void testPrefetchFileChannel() throws Exception {
+        prefetch(StorageType.FILE_CHANNEL);
+    }
+
+    /**
+     * 按存储方式检查顺序消费时的预读
+     *
+     * @param type 存储方式
+     * @throws Exception 异常
+     */
+    private void prefetch(StorageType type) throws Exception {
+        FileQueueConfig config = config();
+        config.setStorageType(type);
+        config.setLazyLoad(true);
+        config.setPrefetchBytes(4 * 1024 * 1024);
+        FileQueue prefetchQueue = open("prefetch-" + type, config);
+        offerNumbers(prefetchQueue, 0, 300, 100 * 1024);
+        long[] prefetched = (long[]) get(get(prefetchQueue, "consumer"), "prefetched");
+        ThreadPoolExecutor prefetcher = (ThreadPoolExecutor) get(prefetchQueue, "prefetcher");
+        for (int i = 0; i < 300; i++) {
+            Assert.assertEquals(i, number(prefetchQueue.pollBytes()));
+            if (i == 0) {
+                // 第一次消费后从读取游标开始预读一个预读数据量
+                Assert.assertEquals(1L, prefetched[0]);
+                Assert.assertTrue(prefetched[1] >= config.getPrefetchBytes());
+                long deadline = System.currentTimeMillis() + 5000;
+                while (prefetcher.getCompletedTaskCount() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assert.assertTrue(prefetcher.getCompletedTaskCount() > 0);
+            }
+            if (i % 100 == 0) {
+                // 清理与预读并发
+                prefetchQueue.sync();
+            }
+        }
+        Assert.assertNull(prefetchQueue.pollBytes());
+        prefetchQueue.seek(250);
+        Assert.assertEquals(250, number(prefetchQueue.pollBytes()));
+    }
+
+}
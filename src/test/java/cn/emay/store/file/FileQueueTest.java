@@ -3,30 +3,31 @@ package cn.emay.store.file;
 import cn.emay.store.file.queue.FileQueue;
 import cn.emay.store.file.queue.FileQueueHistoryReader;
 import cn.emay.store.file.queue.HistoryDataHandler;
-import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Frank
  */
-public class FileQueueTest {
+public class FileQueueTest extends FileQueueFixture {
 
     private FileQueue queue;
 
     @Before
     public void pre() {
-        queue = new FileQueue("./emaytest/filequeue", 5, 12 * 1024 * 1024, 6);
-    }
-
-    @After
-    public void after() {
-        queue.close();
-        queue.delete();
+        queue = track("./emaytest/filequeue", new FileQueue("./emaytest/filequeue", 5, 12 * 1024 * 1024, 6));
     }
 
     @Test
@@ -63,6 +64,93 @@ public class FileQueueTest {
 
     }
 
+    @Test
+    public void testBuffer() {
+        String value0 = "这个是BUFFER";
+        int total = 10000;
+        for (int i = 0; i < total; i++) {
+            ByteBuffer value = ByteBuffer.wrap((value0 + i).getBytes(StandardCharsets.UTF_8));
+            queue.offerBuffer(value);
+            Assert.assertEquals(0, value.position());
+        }
+        Assert.assertEquals(queue.size(), total);
+        ByteBuffer dst = ByteBuffer.allocateDirect(1024);
+        for (int i = 0; i < total; i++) {
+            dst.clear();
+            int length = queue.pollInto(dst);
+            dst.flip();
+            Assert.assertEquals(length, dst.remaining());
+            byte[] bytes = new byte[length];
+            dst.get(bytes);
+            Assert.assertEquals(value0 + i, new String(bytes, StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(-1, queue.pollInto(dst));
+        Assert.assertEquals(queue.size(), 0);
+    }
+
+    @Test
+    public void testBatch() {
+        // 单条约10K，每批1000条，跨越多个10M数据文件
+        byte[] padding = new byte[10 * 1024];
+        int total = 0;
+        for (int batch = 0; batch < 3; batch++) {
+            List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                ByteBuffer value = ByteBuffer.allocate(4 + padding.length);
+                value.putInt(total++).put(padding);
+                values.add(value.array());
+            }
+            values.add(null);
+            values.add(new byte[0]);
+            queue.offerBatch(values);
+        }
+        queue.offerBatch(new ByteBuffer[]{ByteBuffer.wrap("BATCH".getBytes(StandardCharsets.UTF_8))});
+        Assert.assertEquals(total + 1, queue.size());
+        List<byte[]> polled = new ArrayList<>();
+        while (polled.size() < 2000) {
+            List<byte[]> batch = queue.pollBatch(500, 100 * 1024);
+            Assert.assertFalse(batch.isEmpty());
+            Assert.assertTrue(batch.size() <= 10);
+            polled.addAll(batch);
+        }
+        Assert.assertEquals(total + 1 - polled.size(), queue.size());
+        Assert.assertEquals(total + 1 - polled.size(), queue.drainTo(polled));
+        Assert.assertEquals(0, queue.size());
+        for (int i = 0; i < total; i++) {
+            byte[] bytes = polled.get(i);
+            Assert.assertEquals(4 + padding.length, bytes.length);
+            Assert.assertEquals(i, ByteBuffer.wrap(bytes).getInt());
+        }
+        Assert.assertEquals("BATCH", new String(polled.get(total), StandardCharsets.UTF_8));
+        Assert.assertTrue(queue.pollBatch(500, 1).isEmpty());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testTake() throws Exception {
+        Assert.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        int consumers = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(consumers);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < consumers; i++) {
+            results.add(pool.submit(() -> queue.take()));
+        }
+        Thread.sleep(100);
+        for (int i = 0; i < consumers; i++) {
+            queue.offer("TAKE" + i);
+        }
+        List<String> values = new ArrayList<>();
+        for (Future<String> result : results) {
+            values.add(result.get(5, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+        Collections.sort(values);
+        for (int i = 0; i < consumers; i++) {
+            Assert.assertEquals("TAKE" + i, values.get(i));
+        }
+        Assert.assertEquals(0, queue.size());
+    }
+
     public void testHistory() throws InterruptedException {
         List<File> files = queue.getOldDataFiles();
         System.out.println("old file size :" + files);
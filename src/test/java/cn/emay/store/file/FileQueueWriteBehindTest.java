@@ -0,0 +1,179 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.queue.FileQueue;
+import cn.emay.store.file.queue.FileQueueConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 异步写入
+ *
+ * @author Frank
+ */
+public class FileQueueWriteBehindTest extends FileQueueFixture {
+
+    @Test
+    public void testWriteBehindOrder() throws Exception {
+        FileQueue behindQueue = openBehind("write-behind-order");
+        int producers = 4;
+        int perProducer = 5000;
+        int batchSize = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                futures.add(executor.submit(() -> {
+                    if (producer % 2 == 0) {
+                        ByteBuffer value = ByteBuffer.allocate(8);
+                        for (int i = 0; i < perProducer; i++) {
+                            value.putInt(0, producer).putInt(4, i);
+                            // 压入后可以立即修改缓冲区
+                            behindQueue.offerBuffer(value);
+                        }
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i += batchSize) {
+                        ByteBuffer[] batch = new ByteBuffer[batchSize];
+                        for (int j = 0; j < batchSize; j++) {
+                            batch[j] = ByteBuffer.allocate(8).putInt(0, producer).putInt(4, i + j);
+                        }
+                        behindQueue.offerBatch(batch);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        behindQueue.flush();
+        Assert.assertEquals(producers * perProducer, behindQueue.size());
+        int[] next = new int[producers];
+        int lastProducer = -1;
+        for (int i = 0; i < producers * perProducer; i++) {
+            ByteBuffer value = ByteBuffer.wrap(behindQueue.pollBytes());
+            int producer = value.getInt(0);
+            int sequence = value.getInt(4);
+            Assert.assertEquals(next[producer]++, sequence);
+            if (producer % 2 == 1 && sequence % batchSize != 0) {
+                // 同一批数据占用连续的位置
+                Assert.assertEquals(producer, lastProducer);
+            }
+            lastProducer = producer;
+        }
+        Assert.assertNull(behindQueue.pollBytes());
+    }
+
+    @Test
+    public void testWriteBehindOversize() {
+        FileQueue behindQueue = openBehind("write-behind-oversize");
+        try {
+            behindQueue.offerBytes(new byte[10 * 1024 * 1024]);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 超过单数据文件大小的数据在压入时拒绝
+        }
+        try {
+            behindQueue.offerBatch(Arrays.asList("first".getBytes(StandardCharsets.UTF_8), new byte[10 * 1024 * 1024]));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 整批检查后再压入，一条超长则整批拒绝
+        }
+        behindQueue.flush();
+        Assert.assertEquals(0, behindQueue.size());
+    }
+
+    @Test
+    public void testWriteBehindLargeBatch() {
+        FileQueue behindQueue = openBehind("write-behind-large");
+        // 超过环形缓冲区大小的批量数据分段压入
+        List<byte[]> large = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            large.add(ByteBuffer.allocate(4).putInt(0, i).array());
+        }
+        behindQueue.offerBatch(large);
+        behindQueue.flush();
+        Assert.assertEquals(2500, behindQueue.size());
+        for (int i = 0; i < 2500; i++) {
+            Assert.assertEquals(i, number(behindQueue.pollBytes()));
+        }
+        Assert.assertNull(behindQueue.pollBytes());
+    }
+
+    @Test
+    public void testWriteBehindClose() {
+        FileQueue behindQueue = openBehind("write-behind-close");
+        // 关闭时写完环形缓冲区中的数据
+        behindQueue.offer("last");
+        behindQueue.close();
+        behindQueue = openBehind("write-behind-close");
+        Assert.assertEquals("last", behindQueue.poll());
+    }
+
+    @Test
+    public void testWriteBehindRetry() throws Exception {
+        FileQueue behindQueue = openBehind("write-behind-retry");
+        behindQueue.offer("before");
+        behindQueue.flush();
+        // 模拟写入失败：标记关闭，后台写入数据文件时抛出关闭异常
+        Field isClose = field(behindQueue, "isClose");
+        isClose.set(behindQueue, true);
+        Object appender = get(behindQueue, "writeBehind");
+        try {
+            method(appender, "offer", byte[][].class).invoke(appender, (Object) new byte[][]{"failed".getBytes(StandardCharsets.UTF_8)});
+            method(appender, "await").invoke(appender);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            // 未写入的数据保留重试，等待写入时报告
+            Assert.assertTrue(e.getCause().getMessage().contains("not written yet"));
+        } finally {
+            isClose.set(behindQueue, false);
+        }
+        // 重试成功后恢复
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                behindQueue.flush();
+                break;
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+        behindQueue.offer("after");
+        behindQueue.flush();
+        Assert.assertEquals(3, behindQueue.size());
+        Assert.assertEquals("before", behindQueue.poll());
+        Assert.assertEquals("failed", behindQueue.poll());
+        Assert.assertEquals("after", behindQueue.poll());
+        Assert.assertNull(behindQueue.poll());
+    }
+
+    /**
+     * 打开异步写入的队列【环形缓冲区1000条，刷盘间隔10毫秒】
+     *
+     * @param name 名称
+     * @return 队列
+     */
+    private FileQueue openBehind(String name) {
+        FileQueueConfig config = config();
+        config.setWriteBehind(true);
+        config.setWriteBehindCapacity(1000);
+        config.setWriteBehindFlushMills(10);
+        return open(name, config);
+    }
+
+}
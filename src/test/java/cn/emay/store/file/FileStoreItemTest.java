@@ -0,0 +1,97 @@
+package cn.emay.store.file;
+
+import cn.emay.store.file.core.FileStoreAllocator;
+import cn.emay.store.file.core.FileStoreItem;
+import cn.emay.store.file.core.StorageType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Frank
+ */
+public class FileStoreItemTest {
+
+    @Test
+    public void testLargeFile() throws Exception {
+        long size = 3L * 1024 * 1024 * 1024;
+        FileStoreItem store = new FileStoreItem(new File("./emaytest/filestore/large.data"), size);
+        try {
+            Assert.assertEquals(size, store.getFileSize());
+            byte[] value = "跨越映射窗口边界的数据".getBytes(StandardCharsets.UTF_8);
+            long boundary = 1024L * 1024 * 1024;
+            long[] positions = {boundary - 7, 2 * boundary - 1, size - value.length};
+            for (long position : positions) {
+                store.write(position, value);
+                Assert.assertArrayEquals(value, store.read(position, value.length));
+                ByteBuffer slice = store.slice(position, value.length);
+                byte[] sliceBytes = new byte[slice.remaining()];
+                slice.get(sliceBytes);
+                Assert.assertArrayEquals(value, sliceBytes);
+            }
+            store.write(boundary - 2, ByteBuffer.allocate(4).putInt(0, 123456789));
+            Assert.assertEquals(123456789, store.readInt(boundary - 2));
+            store.sync();
+        } finally {
+            store.delete();
+        }
+    }
+
+    @Test
+    public void testStorageTypes() throws Exception {
+        byte[] value = "存储后端".getBytes(StandardCharsets.UTF_8);
+        for (StorageType type : StorageType.values()) {
+            File file = new File("./emaytest/filestore/" + type + ".data");
+            FileStoreItem store = new FileStoreItem(file, 64 * 1024, type);
+            try {
+                Assert.assertEquals(type.isPersistent(), file.exists());
+                store.write(100, ByteBuffer.allocate(4).putInt(0, value.length), ByteBuffer.wrap(value));
+                Assert.assertEquals(value.length, store.readInt(100));
+                Assert.assertArrayEquals(value, store.read(104, value.length));
+                ByteBuffer slice = store.slice(104, value.length);
+                Assert.assertTrue(slice.isReadOnly());
+                Assert.assertEquals(value[0], slice.get(0));
+                store.sync();
+                store.refulshFileSize(128 * 1024);
+                Assert.assertArrayEquals(value, store.read(104, value.length));
+                store.write(128 * 1024 - 4, ByteBuffer.allocate(4).putInt(0, 7));
+                Assert.assertEquals(7, store.readInt(128 * 1024 - 4));
+                store.zero();
+                Assert.assertEquals(0, store.readInt(100));
+            } finally {
+                store.delete();
+            }
+            Assert.assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testRecycleLimit() throws Exception {
+        File dir = new File("./emaytest/filestore/recycle");
+        FileStoreAllocator allocator = new FileStoreAllocator(false, false, StorageType.MMAP, null, 1);
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(dir, i + ".data");
+            new FileStoreItem(files[i], 64 * 1024).close();
+            Assert.assertTrue(allocator.recycle(files[i]));
+        }
+        // 回收池上限为1，只保留第一个回收文件
+        Assert.assertTrue(files[0].exists());
+        Assert.assertFalse(files[1].exists());
+        Assert.assertFalse(files[2].exists());
+        File reused = new File(dir, "reused.data");
+        FileStoreItem store = allocator.take(reused, 64 * 1024);
+        try {
+            Assert.assertFalse(files[0].exists());
+            Assert.assertFalse(allocator.hasRecycled());
+        } finally {
+            store.delete();
+            allocator.delete();
+        }
+        Assert.assertFalse(reused.exists());
+    }
+
+}